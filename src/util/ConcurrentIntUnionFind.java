@@ -0,0 +1,145 @@
+package util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free union-find over a fixed number of int elements 0..size-1, for
+ * performing unions from several threads at once (for example, computing the
+ * connected components of a large graph by splitting its edges between threads).
+ *
+ * A root is always linked under a root with a larger id, using compare-and-set;
+ * as links thus always point towards larger ids, no cycles can form even when
+ * unions race. Find uses path halving, also by compare-and-set; a failed
+ * update just means that another thread has already shortened the path.
+ *
+ * Linking by id instead of by rank may produce deeper trees than
+ * {@link IntUnionFind}, but path halving keeps them shallow in practice.
+ */
+public class ConcurrentIntUnionFind {
+
+    private final AtomicIntegerArray mParent;
+
+    /** Union-find containing elements 0..pNumElements-1, each in its own set */
+    public ConcurrentIntUnionFind(int pNumElements) {
+        mParent = new AtomicIntegerArray(pNumElements);
+        for (int i=0; i<pNumElements; i++) {
+            mParent.set(i, i);
+        }
+    }
+
+    public int size() {
+        return mParent.length();
+    }
+
+    /** @return current representative (root) of the set of pX */
+    public int find(int pX) {
+        while (true) {
+            int p = mParent.get(pX);
+            if (p == pX) {
+                return pX;
+            }
+            int gp = mParent.get(p);
+            if (p != gp) {
+                mParent.compareAndSet(pX, p, gp);
+            }
+            pX = gp;
+        }
+    }
+
+    /**
+     * Combine the sets of pX and pY.
+     * @return true, if they were in different sets (and this call combined them)
+     */
+    public boolean union(int pX, int pY) {
+        int x = pX;
+        int y = pY;
+        while (true) {
+            x = find(x);
+            y = find(y);
+            if (x == y) {
+                return false;
+            }
+            if (x > y) {
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+            if (mParent.compareAndSet(x, x, y)) {
+                return true;
+            }
+            // x got linked by another thread in the meantime; retry from the new roots
+        }
+    }
+
+    public boolean connected(int pX, int pY) {
+        int x = pX;
+        int y = pY;
+        while (true) {
+            x = find(x);
+            y = find(y);
+            if (x == y) {
+                return true;
+            }
+            if (mParent.get(x) == x) {
+                // x was still a root after y was found, so they were not connected then
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Perform unions (pX[i], pY[i]) for i in 0..pNum-1, split evenly between pNumThreads
+     * threads.
+     * @param pNumThreads non-positive means number of available processors
+     * @return number of unions that combined two sets
+     */
+    public long unionAll(final int[] pX, final int[] pY, int pNum, int pNumThreads) {
+        if (pNumThreads <= 0) {
+            pNumThreads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(pNumThreads);
+        try {
+            Future<?>[] futures = new Future<?>[pNumThreads];
+            for (int t=0; t<pNumThreads; t++) {
+                final int start = (int)((long)pNum * t / pNumThreads);
+                final int end = (int)((long)pNum * (t+1) / pNumThreads);
+                futures[t] = executor.submit(new Callable<Long>() {
+                    public Long call() {
+                        long count = 0;
+                        for (int i=start; i<end; i++) {
+                            if (union(pX[i], pY[i])) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                });
+            }
+            long count = 0;
+            for (Future<?> future: futures) {
+                count += (Long)ConcurrentUtils.getUnchecked(future);
+            }
+            return count;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return for each element, the id of its set; set ids are 0..numSets-1, in
+     * the order of the smallest element of each set. Should not be called while
+     * unions are in progress.
+     */
+    public int[] getSetIds() {
+        return IntUnionFind.setIds(size(), new IntUnionFind.Finder() {
+            public int find(int pX) {
+                return ConcurrentIntUnionFind.this.find(pX);
+            }
+        });
+    }
+}
@@ -0,0 +1,437 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-aware timer for performance analysis of multi-threaded code, as a
+ * lower-overhead alternative to {@link Timer}.
+ *
+ * Tasks are registered once by name, giving an integer handle, so that timing
+ * does not need any lookups by name. Each thread has its own stack of started
+ * tasks and its own accumulators (total time, count, max and a latency histogram
+ * for each task), which only that thread writes; they are merged only when
+ * results are requested. Thus timing involves no locking, and threads do not
+ * contend on shared counters.
+ *
+ * Nested tasks are recorded by their path (task names of the thread's stack,
+ * joined by "_", as in the hierarchical mode of {@link Timer}). Flat results
+ * (by task name) sum the paths ending in the task, so recursively nested
+ * timing of the same task counts the inner time several times.
+ *
+ * The histograms are log-linear (as in HdrHistogram): values are bucketed by their
+ * highest set bit and the 4 bits following it, giving percentiles within about
+ * 6% of the true value.
+ */
+public class ConcurrentTimer {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final int ROOT_PATH = 0;
+
+    /** Task names by handle */
+    private static final List<String> sNames = new ArrayList<String>();
+    private static final ConcurrentHashMap<String, Integer> sHandles = new ConcurrentHashMap<String, Integer>();
+
+    /** Parent path and task handle of each path (by path id); path 0 is the root */
+    private static int[] sPathParents = { -1 };
+    private static int[] sPathHandles = { -1 };
+    private static int sNumPaths = 1;
+    private static final Map<Long, Integer> sPathIds = new HashMap<Long, Integer>();
+
+    /** States of all threads that have timed something since the last clear() */
+    private static volatile CopyOnWriteArrayList<ThreadState> sThreadStates = new CopyOnWriteArrayList<ThreadState>();
+
+    private static final ThreadLocal<ThreadState> sThreadState = new ThreadLocal<ThreadState>();
+
+    /** @return handle for the task named pName; registering the same name again gives the same handle */
+    public static int register(String pName) {
+        Integer handle = sHandles.get(pName);
+        if (handle != null) {
+            return handle;
+        }
+        synchronized (sNames) {
+            handle = sHandles.get(pName);
+            if (handle == null) {
+                handle = sNames.size();
+                sNames.add(pName);
+                sHandles.put(pName, handle);
+            }
+            return handle;
+        }
+    }
+
+    public static String getName(int pHandle) {
+        synchronized (sNames) {
+            return sNames.get(pHandle);
+        }
+    }
+
+    /** Start timing task pHandle in the current thread, nested in the tasks already started by it */
+    public static void start(int pHandle) {
+        ThreadState state = getThreadState();
+        state.push(pHandle, System.nanoTime());
+    }
+
+    /**
+     * End timing task pHandle in the current thread. Tasks started after pHandle and
+     * not yet ended are ended as well.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public static long stop(int pHandle) {
+        long now = System.nanoTime();
+        ThreadState state = getThreadState();
+        int depth = state.depth;
+        while (depth > 0 && state.handleStack[depth-1] != pHandle) {
+            depth--;
+        }
+        if (depth == 0) {
+            throw new RuntimeException("Not timing task "+getName(pHandle)+" in thread "+Thread.currentThread().getName());
+        }
+        long elapsed = 0;
+        while (state.depth >= depth) {
+            elapsed = state.pop(now);
+        }
+        return elapsed;
+    }
+
+    /** Record pNanos as one execution of task pHandle, nested in the tasks currently started by this thread */
+    public static void record(int pHandle, long pNanos) {
+        ThreadState state = getThreadState();
+        int parent = state.depth > 0 ? state.pathStack[state.depth-1] : ROOT_PATH;
+        state.add(state.childPath(parent, pHandle), pNanos);
+    }
+
+    /** Forget all results. Tasks being timed remain started. */
+    public static void clear() {
+        sThreadStates = new CopyOnWriteArrayList<ThreadState>();
+    }
+
+    private static ThreadState getThreadState() {
+        ThreadState state = sThreadState.get();
+        CopyOnWriteArrayList<ThreadState> states = sThreadStates;
+        if (state == null || state.owner != states) {
+            state = new ThreadState(states, state);
+            sThreadState.set(state);
+            states.add(state);
+        }
+        return state;
+    }
+
+    private static int getOrCreatePath(int pParent, int pHandle) {
+        Long key = ((long)pParent << 32) | pHandle;
+        synchronized (sPathIds) {
+            Integer path = sPathIds.get(key);
+            if (path == null) {
+                path = sNumPaths;
+                if (sNumPaths == sPathParents.length) {
+                    sPathParents = Arrays.copyOf(sPathParents, sNumPaths*2);
+                    sPathHandles = Arrays.copyOf(sPathHandles, sNumPaths*2);
+                }
+                sPathParents[path] = pParent;
+                sPathHandles[path] = pHandle;
+                sNumPaths++;
+                sPathIds.put(key, path);
+            }
+            return path;
+        }
+    }
+
+    /** @return name of pPath: names of its tasks from the root, joined by "_" */
+    private static String getPathName(int pPath, int[] pParents, int[] pHandles) {
+        String name = getName(pHandles[pPath]);
+        int parent = pParents[pPath];
+        return parent == ROOT_PATH ? name : getPathName(parent, pParents, pHandles)+"_"+name;
+    }
+
+    /**
+     * Results for one task (or path of tasks), merged over all threads.
+     * Times are in nanoseconds.
+     */
+    public static class TaskStats {
+        public final String name;
+        private long mCount;
+        private long mTotal;
+        private long mMax;
+        private final long[] mHistogram = new long[NUM_BUCKETS];
+
+        private TaskStats(String pName) {
+            name = pName;
+        }
+
+        private void add(Counters pCounters, int pIndex) {
+            mCount += pCounters.counts.get(pIndex);
+            mTotal += pCounters.totals.get(pIndex);
+            mMax = Math.max(mMax, pCounters.maxes.get(pIndex));
+            AtomicLongArray histogram = pCounters.histograms[pIndex];
+            if (histogram != null) {
+                for (int b=0; b<NUM_BUCKETS; b++) {
+                    mHistogram[b] += histogram.get(b);
+                }
+            }
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotal_nanos() {
+            return mTotal;
+        }
+
+        public long getMax_nanos() {
+            return mMax;
+        }
+
+        public double getMean_nanos() {
+            return mCount > 0 ? (double)mTotal / mCount : 0;
+        }
+
+        /** @param pFraction e.g. 0.99 for the 99th percentile */
+        public long getPercentile_nanos(double pFraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(pFraction * mCount));
+            long cumulative = 0;
+            for (int b=0; b<NUM_BUCKETS; b++) {
+                cumulative += mHistogram[b];
+                if (cumulative >= rank) {
+                    return Math.min(bucketUpperBound(b), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        public String toString() {
+            return name+": count="+mCount+", total="+millis(mTotal)+"ms, mean="+millis(getMean_nanos())+
+                   "ms, p50="+millis(getPercentile_nanos(0.5))+"ms, p90="+millis(getPercentile_nanos(0.9))+
+                   "ms, p99="+millis(getPercentile_nanos(0.99))+"ms, max="+millis(mMax)+"ms";
+        }
+
+        /** 3 decimals, or 3 significant digits for times under 1ms */
+        private static String millis(double pNanos) {
+            return String.format(pNanos >= 1000000 || pNanos == 0 ? "%.3f" : "%.3g", pNanos / 1000000);
+        }
+    }
+
+    /**
+     * @param pHierarchical if true, give results for each path of nested tasks;
+     *   otherwise for each task (in order of registration)
+     */
+    public static List<TaskStats> getStats(boolean pHierarchical) {
+        int numPaths;
+        int[] parents;
+        int[] handles;
+        synchronized (sPathIds) {
+            numPaths = sNumPaths;
+            parents = Arrays.copyOf(sPathParents, numPaths);
+            handles = Arrays.copyOf(sPathHandles, numPaths);
+        }
+        int numTasks;
+        synchronized (sNames) {
+            numTasks = sNames.size();
+        }
+
+        TaskStats[] stats = new TaskStats[pHierarchical ? numPaths : numTasks];
+        for (ThreadState state: sThreadStates) {
+            Counters counters = state.counters;
+            for (int path=1; path<Math.min(numPaths, counters.counts.length()); path++) {
+                if (counters.counts.get(path) == 0) {
+                    continue;
+                }
+                int index = pHierarchical ? path : handles[path];
+                if (stats[index] == null) {
+                    stats[index] = new TaskStats(pHierarchical ? getPathName(path, parents, handles)
+                                                              : getName(index));
+                }
+                stats[index].add(counters, path);
+            }
+        }
+
+        List<TaskStats> result = new ArrayList<TaskStats>();
+        for (TaskStats s: stats) {
+            if (s != null) {
+                result.add(s);
+            }
+        }
+        return result;
+    }
+
+    /** @return stats for the task named pName, or null if it has not been timed */
+    public static TaskStats getStats(String pName) {
+        for (TaskStats stats: getStats(false)) {
+            if (stats.name.equals(pName)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    /** @return total times in milliseconds, as in {@link Timer#asMillisecondsMap()} */
+    public static Map<String, Long> asMillisecondsMap(boolean pHierarchical) {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (TaskStats stats: getStats(pHierarchical)) {
+            result.put(stats.name, stats.getTotal_nanos() / 1000000);
+        }
+        return result;
+    }
+
+    /**
+     * One line per task (or path), with count, total, mean, percentiles and max.
+     * The last line of the rep does not contain a newline.
+     */
+    public static String stringRep(String pKeyPrefix, boolean pHierarchical) {
+        StringBuilder buf = new StringBuilder();
+        for (TaskStats stats: getStats(pHierarchical)) {
+            if (buf.length() > 0) {
+                buf.append('\n');
+            }
+            if (pKeyPrefix != null) {
+                buf.append(pKeyPrefix);
+            }
+            buf.append(stats);
+        }
+        return buf.toString();
+    }
+
+    private static int bucket(long pNanos) {
+        if (pNanos < SUB_BUCKETS) {
+            return (int)Math.max(pNanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(pNanos);
+        int sub = (int)(pNanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS-1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int pBucket) {
+        if (pBucket < SUB_BUCKETS) {
+            return pBucket;
+        }
+        int shift = pBucket / SUB_BUCKETS - 1;
+        long sub = pBucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Accumulators of a thread by path id. Written only by the owning thread (by
+     * lazySet, which is enough for a single writer), read when merging.
+     */
+    private static class Counters {
+        final AtomicLongArray counts;
+        final AtomicLongArray totals;
+        final AtomicLongArray maxes;
+        /** Allocated on first use of each path */
+        final AtomicLongArray[] histograms;
+
+        Counters(int pCapacity, Counters pOld) {
+            counts = new AtomicLongArray(pCapacity);
+            totals = new AtomicLongArray(pCapacity);
+            maxes = new AtomicLongArray(pCapacity);
+            histograms = new AtomicLongArray[pCapacity];
+            if (pOld != null) {
+                for (int i=0; i<pOld.counts.length(); i++) {
+                    counts.set(i, pOld.counts.get(i));
+                    totals.set(i, pOld.totals.get(i));
+                    maxes.set(i, pOld.maxes.get(i));
+                    histograms[i] = pOld.histograms[i];
+                }
+            }
+        }
+    }
+
+    private static class ThreadState {
+        /** The list of states this one belongs to; a different one after clear() */
+        final CopyOnWriteArrayList<ThreadState> owner;
+        volatile Counters counters = new Counters(16, null);
+
+        int[] pathStack = new int[16];
+        int[] handleStack = new int[16];
+        long[] startStack = new long[16];
+        int depth;
+
+        /** Cache of child path ids: childPaths[parent][handle], 0 if not known */
+        int[][] childPaths = new int[0][];
+
+        /** Continue the started tasks of pOld, if any */
+        ThreadState(CopyOnWriteArrayList<ThreadState> pOwner, ThreadState pOld) {
+            owner = pOwner;
+            if (pOld != null) {
+                pathStack = pOld.pathStack;
+                handleStack = pOld.handleStack;
+                startStack = pOld.startStack;
+                depth = pOld.depth;
+                childPaths = pOld.childPaths;
+            }
+        }
+
+        int childPath(int pParent, int pHandle) {
+            if (pParent >= childPaths.length) {
+                childPaths = Arrays.copyOf(childPaths, Math.max(pParent+1, childPaths.length*2));
+            }
+            int[] children = childPaths[pParent];
+            if (children == null || pHandle >= children.length) {
+                children = children == null ? new int[pHandle+8] : Arrays.copyOf(children, pHandle*2+1);
+                childPaths[pParent] = children;
+            }
+            int path = children[pHandle];
+            if (path == 0) {
+                path = getOrCreatePath(pParent, pHandle);
+                children[pHandle] = path;
+            }
+            return path;
+        }
+
+        void push(int pHandle, long pStart) {
+            int parent = depth > 0 ? pathStack[depth-1] : ROOT_PATH;
+            int path = childPath(parent, pHandle);
+            if (depth == pathStack.length) {
+                pathStack = Arrays.copyOf(pathStack, depth*2);
+                handleStack = Arrays.copyOf(handleStack, depth*2);
+                startStack = Arrays.copyOf(startStack, depth*2);
+            }
+            pathStack[depth] = path;
+            handleStack[depth] = pHandle;
+            startStack[depth] = pStart;
+            depth++;
+        }
+
+        /** @return elapsed time of the popped task */
+        long pop(long pNow) {
+            depth--;
+            long elapsed = pNow - startStack[depth];
+            add(pathStack[depth], elapsed);
+            return elapsed;
+        }
+
+        void add(int pPath, long pNanos) {
+            Counters c = counters;
+            if (pPath >= c.counts.length()) {
+                c = new Counters(Math.max(pPath+1, c.counts.length()*2), c);
+                counters = c;
+            }
+            c.counts.lazySet(pPath, c.counts.get(pPath)+1);
+            c.totals.lazySet(pPath, c.totals.get(pPath)+pNanos);
+            if (pNanos > c.maxes.get(pPath)) {
+                c.maxes.lazySet(pPath, pNanos);
+            }
+            AtomicLongArray histogram = c.histograms[pPath];
+            if (histogram == null) {
+                histogram = new AtomicLongArray(NUM_BUCKETS);
+                c.histograms[pPath] = histogram;
+            }
+            int b = bucket(pNanos);
+            histogram.lazySet(b, histogram.get(b)+1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Utilities for executors and for waiting for the tasks submitted to them */
+public class ConcurrentUtils {
+
+    /**
+     * Wait for pFuture, rethrowing the exception of a failed task as such if it is a
+     * RuntimeException or an Error, and wrapped into a RuntimeException otherwise.
+     * If interrupted, the interrupt status is restored and a RuntimeException thrown.
+     */
+    public static <T> T getUnchecked(Future<T> pFuture) {
+        try {
+            return pFuture.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a task", e);
+        }
+        catch (ExecutionException e) {
+            throw throwUnchecked(e.getCause());
+        }
+    }
+
+    /** As {@link #getUnchecked}, but IOExceptions of the task are rethrown as such */
+    public static <T> T getIO(Future<T> pFuture) throws IOException {
+        try {
+            return pFuture.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a task", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw throwUnchecked(e.getCause());
+        }
+    }
+
+    /**
+     * Throw pCause as such if it is a RuntimeException or an Error, and wrapped into a
+     * RuntimeException otherwise. Never returns normally; declared to return the exception
+     * so that callers can write <code>throw throwUnchecked(cause)</code>.
+     */
+    public static RuntimeException throwUnchecked(Throwable pCause) {
+        if (pCause instanceof RuntimeException) {
+            throw (RuntimeException)pCause;
+        }
+        else if (pCause instanceof Error) {
+            throw (Error)pCause;
+        }
+        throw new RuntimeException(pCause);
+    }
+
+    /**
+     * Thread factory for pools that should not keep the JVM alive: the threads are
+     * daemons, named pName-1, pName-2, ...
+     */
+    public static ThreadFactory daemonThreadFactory(final String pName) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+            public Thread newThread(Runnable pRunnable) {
+                Thread thread = new Thread(pRunnable, pName+"-"+mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -1,28 +1,314 @@
 package util;
 
-import java.util.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-/** Note that currently only works for single-threaded execution */ 
+/**
+ * A thread-safe cache for (typically large) data structures, such as parsed
+ * relations or matrices, that are expensive to construct.
+ *
+ * Each entry has a weight (given by a {@link Weigher}; by default 1 per entry), and
+ * when the total weight exceeds the budget, entries are evicted in LRU (least
+ * recently used first) or LFU (least frequently used first) order. Optionally, values
+ * are only softly referenced, so that the garbage collector may also drop them
+ * under memory pressure.
+ *
+ * {@link #get(Object, Loader)} loads missing values, so that concurrent requests
+ * for the same key wait for a single load instead of each loading it.
+ *
+ * Lookups go through a ConcurrentHashMap; eviction scans all entries (under a
+ * lock), which is meant for caches of relatively few, large entries.
+ *
+ * The static methods {@link #get(Object)} and {@link #put(Object, Object)} use
+ * a shared instance, which has no weight budget but keeps its values only softly
+ * reachable.
+ */
 public final class DataStructureCache {
 
-    private HashMap mData = new HashMap();
-    
-    private static DataStructureCache mSingletonInstance;
-    
-    private static DataStructureCache getInstance() {
-        if (mSingletonInstance == null) {
-            mSingletonInstance = new DataStructureCache();
-        }
+    public enum EvictionPolicy {
+        LRU,
+        LFU;
+    }
+
+    /** Gives the weight (e.g. estimated size in bytes) of an entry */
+    public interface Weigher {
+        public long weigh(Object pKey, Object pVal);
+    }
+
+    /** Constructs a missing value */
+    public interface Loader<V> {
+        public V load(Object pKey) throws Exception;
+    }
+
+    private static volatile DataStructureCache mSingletonInstance =
+        new DataStructureCache(Long.MAX_VALUE, null, EvictionPolicy.LRU, true);
+
+    private final ConcurrentHashMap<Object, Entry> mData = new ConcurrentHashMap<Object, Entry>();
+    /** Loads in progress */
+    private final ConcurrentHashMap<Object, FutureTask<Object>> mLoading = new ConcurrentHashMap<Object, FutureTask<Object>>();
+
+    private final long mMaxWeight;
+    private final Weigher mWeigher;
+    private final EvictionPolicy mPolicy;
+    private final boolean mSoftValues;
+    /** Soft references cleared by the garbage collector end up here */
+    private final ReferenceQueue<Object> mClearedValues = new ReferenceQueue<Object>();
+
+    private final Object mEvictionLock = new Object();
+    private final AtomicLong mWeight = new AtomicLong();
+    /** Logical time of accesses, for LRU */
+    private final AtomicLong mClock = new AtomicLong();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mLoads = new AtomicLong();
+
+    /**
+     * @param pMaxWeight budget for the total weight of the entries
+     * @param pWeigher null means weight 1 for each entry
+     * @param pSoftValues keep values only softly reachable
+     */
+    public DataStructureCache(long pMaxWeight, Weigher pWeigher, EvictionPolicy pPolicy, boolean pSoftValues) {
+        mMaxWeight = pMaxWeight;
+        mWeigher = pWeigher;
+        mPolicy = pPolicy;
+        mSoftValues = pSoftValues;
+    }
+
+    public static DataStructureCache getInstance() {
         return mSingletonInstance;
     }
-    
+
+    /** Replace the shared instance used by the static methods */
+    public static void setInstance(DataStructureCache pCache) {
+        mSingletonInstance = pCache;
+    }
+
     public static Object get(Object pKey) {
-        return getInstance().mData.get(pKey);    
+        return getInstance().getValue(pKey);
     }
 
     public static Object put(Object pKey, Object pVal) {
-        return getInstance().mData.put(pKey, pVal);    
-    }                
+        return getInstance().putValue(pKey, pVal);
+    }
+
+    /** @return cached value, or null if there is none */
+    public Object getValue(Object pKey) {
+        expungeClearedValues();
+        Entry entry = mData.get(pKey);
+        Object val = entry != null ? entry.get() : null;
+        if (val != null) {
+            entry.touch();
+            mHits.incrementAndGet();
+        }
+        else {
+            mMisses.incrementAndGet();
+        }
+        return val;
+    }
+
+    /** @return previously cached value, or null if there was none */
+    public Object putValue(Object pKey, Object pVal) {
+        if (pVal == null) {
+            throw new RuntimeException("Cannot cache a null value for key: "+pKey);
+        }
+        expungeClearedValues();
+        Entry entry = new Entry(pKey, pVal);
+        Entry old = mData.put(pKey, entry);
+        mWeight.addAndGet(entry.weight);
+        Object oldVal = null;
+        if (old != null) {
+            mWeight.addAndGet(-old.weight);
+            oldVal = old.get();
+        }
+        evictIfNeeded();
+        return oldVal;
+    }
+
+    /**
+     * @return cached value for pKey, loading it by pLoader if there is none. If
+     * another thread is already loading the same key, wait for that load instead.
+     * Exceptions thrown by the loader are rethrown (wrapped in a RuntimeException,
+     * if necessary), and nothing is cached.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(final Object pKey, final Loader<V> pLoader) {
+        Object val = getValue(pKey);
+        if (val != null) {
+            return (V)val;
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+                // another load may have completed after our lookup
+                Entry entry = mData.get(pKey);
+                Object val = entry != null ? entry.get() : null;
+                if (val == null) {
+                    val = pLoader.load(pKey);
+                    mLoads.incrementAndGet();
+                    putValue(pKey, val);
+                }
+                return val;
+            }
+        });
+        FutureTask<Object> running = mLoading.putIfAbsent(pKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            }
+            finally {
+                mLoading.remove(pKey, task);
+            }
+        }
+
+        return (V)ConcurrentUtils.getUnchecked(running);
+    }
+
+    /** @return the removed value, or null if there was none */
+    public Object remove(Object pKey) {
+        Entry entry = mData.remove(pKey);
+        if (entry == null) {
+            return null;
+        }
+        mWeight.addAndGet(-entry.weight);
+        return entry.get();
+    }
+
+    public void clear() {
+        for (Object key: mData.keySet()) {
+            remove(key);
+        }
+    }
 
+    public int size() {
+        return mData.size();
+    }
+
+    /** @return total weight of the cached entries */
+    public long getWeight() {
+        return mWeight.get();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** @return number of entries evicted due to the weight budget, or dropped by the garbage collector */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /** @return number of values loaded by {@link #get(Object, Loader)} */
+    public long getLoadCount() {
+        return mLoads.get();
+    }
+
+    public String getStatistics() {
+        return "size="+size()+", weight="+getWeight()+", hits="+getHitCount()+
+               ", misses="+getMissCount()+", evictions="+getEvictionCount()+", loads="+getLoadCount();
+    }
+
+    /** Remove the entries whose values the garbage collector has dropped */
+    private void expungeClearedValues() {
+        if (!mSoftValues) {
+            return;
+        }
+        Object ref;
+        while ((ref = mClearedValues.poll()) != null) {
+            Entry entry = ((ValueRef)ref).entry;
+            if (mData.remove(entry.key, entry)) {
+                mWeight.addAndGet(-entry.weight);
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (mWeight.get() <= mMaxWeight) {
+            return;
+        }
+        synchronized (mEvictionLock) {
+            if (mWeight.get() <= mMaxWeight) {
+                return;
+            }
+            List<Entry> entries = new ArrayList<Entry>(mData.values());
+            Collections.sort(entries, mPolicy == EvictionPolicy.LRU ? LRU_ORDER : LFU_ORDER);
+            for (Entry entry: entries) {
+                if (mWeight.get() <= mMaxWeight) {
+                    break;
+                }
+                if (mData.remove(entry.key, entry)) {
+                    mWeight.addAndGet(-entry.weight);
+                    mEvictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /** Least recently used first */
+    private static final Comparator<Entry> LRU_ORDER = new Comparator<Entry>() {
+        public int compare(Entry p1, Entry p2) {
+            return Long.compare(p1.lastAccess, p2.lastAccess);
+        }
+    };
+
+    /** Least frequently used first; of as frequently used ones, least recently used first */
+    private static final Comparator<Entry> LFU_ORDER = new Comparator<Entry>() {
+        public int compare(Entry p1, Entry p2) {
+            if (p1.numAccesses != p2.numAccesses) {
+                return Long.compare(p1.numAccesses, p2.numAccesses);
+            }
+            return Long.compare(p1.lastAccess, p2.lastAccess);
+        }
+    };
+
+    private class Entry {
+        final Object key;
+        /** Either the value itself or a ValueRef to it */
+        final Object val;
+        final long weight;
+        /** Updated racily; approximate values are good enough for eviction */
+        volatile long lastAccess;
+        volatile long numAccesses;
+
+        Entry(Object pKey, Object pVal) {
+            key = pKey;
+            val = mSoftValues ? new ValueRef(pVal, this, mClearedValues) : pVal;
+            weight = mWeigher != null ? mWeigher.weigh(pKey, pVal) : 1;
+            touch();
+        }
+
+        Object get() {
+            return val instanceof ValueRef ? ((ValueRef)val).get() : val;
+        }
+
+        void touch() {
+            lastAccess = mClock.incrementAndGet();
+            numAccesses++;
+        }
+    }
+
+    private static class ValueRef extends SoftReference<Object> {
+        final DataStructureCache.Entry entry;
+
+        ValueRef(Object pVal, DataStructureCache.Entry pEntry, ReferenceQueue<Object> pQueue) {
+            super(pVal, pQueue);
+            entry = pEntry;
+        }
+    }
 }
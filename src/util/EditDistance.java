@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import util.collections.Pair;
 import util.comparator.ByFieldComparator;
@@ -27,11 +29,29 @@ public class EditDistance {
      * Computes the edit distance between two strings.
      *
      * <p>
-     * The complexity is O(nm) where n=a.length() and m=b.length().
+     * When the shorter string has at most 64 characters, the bit-parallel 
+     * algorithm of Myers is used, with complexity O(n) where n is the length of
+     * the longer string; otherwise, the complexity is O(nm) where n=a.length() 
+     * and m=b.length().
      */
     public static int editDistance( String a, String b ) {
+        if (a.length() <= Pattern.MAX_BIT_PARALLEL_LENGTH || b.length() <= Pattern.MAX_BIT_PARALLEL_LENGTH) {
+            return a.length() <= b.length() 
+                   ? Pattern.pattern(a).distance(b, Integer.MAX_VALUE)
+                   : Pattern.pattern(b).distance(a, Integer.MAX_VALUE);
+        }
         return new EditDistance(a,b).calc();
     }
+    
+    /**
+     * Computes the edit distance between two strings, if it is at most max; 
+     * otherwise, some value greater than max is returned. This is faster than 
+     * computing the exact distance, as the computation is stopped as soon 
+     * as the distance is known to exceed max.
+     */
+    public static int editDistance( String a, String b, int max ) {
+        return Pattern.pattern(a).distance(b, max);
+    }
 
     /**
      * Finds the string in the <code>group</code> closest to
@@ -43,12 +63,19 @@ public class EditDistance {
         return findNearest(key,Arrays.asList(group));
     }
 
+    /**
+     * Of several as close strings, the first one is returned. Each distance
+     * is only computed as far as needed to know that the string is not 
+     * closer than the closest one so far. For repeated queries against the same 
+     * group, use a {@link QGramIndex}.
+     */
     public static String findNearest( String key, Collection<String> group ) {
+        Pattern pattern = Pattern.pattern(key);
         int c = Integer.MAX_VALUE;
         String r = null;
 
         for (String g : group) {
-            int ed = editDistance(key, g);
+            int ed = pattern.distance(g, c-1);
             if (c > ed) {
                 c = ed;
                 r = g;
@@ -56,6 +83,211 @@ public class EditDistance {
         }
         return r;
     }
+    
+    /**
+     * A string whose distance to many other strings is to be computed; the 
+     * preprocessing for the bit-parallel algorithm is then done only once.
+     * An instance can be shared by several threads, as long as it is not 
+     * {@link #set} again; {@link #pattern} gives a reusable instance for the 
+     * current thread.
+     */
+    static final class Pattern {
+        
+        /** Max length of a pattern for the bit-parallel algorithm (bits in a long) */
+        static final int MAX_BIT_PARALLEL_LENGTH = 64;
+        
+        private String mPattern;
+        /** 
+         * For the bit-parallel algorithm: bit i of mPeq[c] is set iff character i 
+         * of the pattern is c (for c < 256). Only used if the pattern is short enough;
+         * allocated once and cleared by set().
+         */
+        private long[] mPeq;
+        /** The same for the characters >= 256 of the pattern (first mNumExt entries) */
+        private char[] mExtChars = new char[0];
+        private long[] mExtPeq = new long[0];
+        private int mNumExt;
+        
+        Pattern() {
+            mPattern = "";
+        }
+        
+        Pattern(String pPattern) {
+            set(pPattern);
+        }
+        
+        /** Preprocess pPattern, reusing the tables of the previous pattern */
+        Pattern set(String pPattern) {
+            if (mPeq != null && mPattern.length() <= MAX_BIT_PARALLEL_LENGTH) {
+                // clear only the entries of the previous pattern
+                for (int i=0; i<mPattern.length(); i++) {
+                    char c = mPattern.charAt(i);
+                    if (c < 256) {
+                        mPeq[c] = 0;
+                    }
+                }
+            }
+            mPattern = pPattern;
+            mNumExt = 0;
+            int m = pPattern.length();
+            if (m > MAX_BIT_PARALLEL_LENGTH) {
+                return this;
+            }
+            if (mPeq == null) {
+                mPeq = new long[256];
+            }
+            if (mExtChars.length < m) {
+                mExtChars = new char[m];
+                mExtPeq = new long[m];
+            }
+            for (int i=0; i<m; i++) {
+                char c = pPattern.charAt(i);
+                if (c < 256) {
+                    mPeq[c] |= 1L << i;
+                }
+                else {
+                    int k = 0;
+                    while (k < mNumExt && mExtChars[k] != c) {
+                        k++;
+                    }
+                    if (k == mNumExt) {
+                        mExtChars[mNumExt] = c;
+                        mExtPeq[mNumExt++] = 0;
+                    }
+                    mExtPeq[k] |= 1L << i;
+                }
+            }
+            return this;
+        }
+        
+        /** @return the Pattern of the current thread, set to pPattern */
+        static Pattern pattern(String pPattern) {
+            return THREAD_PATTERN.get().set(pPattern);
+        }
+        
+        private static final ThreadLocal<Pattern> THREAD_PATTERN = new ThreadLocal<Pattern>() {
+            protected Pattern initialValue() {
+                return new Pattern();
+            }
+        };
+        
+        String getString() {
+            return mPattern;
+        }
+        
+        private long peq(char c) {
+            if (c < 256) {
+                return mPeq[c];
+            }
+            for (int k=0; k<mNumExt; k++) {
+                if (mExtChars[k] == c) {
+                    return mExtPeq[k];
+                }
+            }
+            return 0;
+        }
+        
+        /** 
+         * @return edit distance between the pattern and pText, if it is at most pMax;
+         * otherwise, some value greater than pMax.
+         */
+        int distance(String pText, int pMax) {
+            int m = mPattern.length();
+            int n = pText.length();
+            // the distance is at least the difference in length, and at most the larger length 
+            if (Math.abs(n - m) > pMax) {
+                return pMax+1;
+            }
+            pMax = Math.min(pMax, Math.max(n, m));
+            if (m == 0) {
+                return n;
+            }
+            return m <= MAX_BIT_PARALLEL_LENGTH ? bitParallelDistance(pText, pMax) : bandedDistance(pText, pMax);
+        }
+        
+        /**
+         * Myers' algorithm, in the formulation of Hyyrö for the global distance: 
+         * the vertical deltas (+1/-1) of a column of the DP matrix are kept as 
+         * bit vectors pv and mv, and each character of the text is processed in 
+         * a constant number of word operations. The score is the value in the last
+         * row, which decreases by at most 1 per text character; the computation can
+         * thus be stopped when the score exceeds pMax by more than the number of 
+         * remaining characters.
+         */
+        private int bitParallelDistance(String pText, int pMax) {
+            int m = mPattern.length();
+            int n = pText.length();
+            long last = 1L << (m-1);
+            long pv = -1L;
+            long mv = 0;
+            int score = m;
+            for (int j=0; j<n; j++) {
+                long eq = peq(pText.charAt(j));
+                long xv = eq | mv;
+                long xh = (((eq & pv) + pv) ^ pv) | eq;
+                long ph = mv | ~(xh | pv);
+                long mh = pv & xh;
+                if ((ph & last) != 0) {
+                    score++;
+                }
+                else if ((mh & last) != 0) {
+                    score--;
+                }
+                if (score - (n - j - 1) > pMax) {
+                    return pMax+1;
+                }
+                ph = (ph << 1) | 1;
+                mh = mh << 1;
+                pv = mh | ~(xv | ph);
+                mv = ph & xv;
+            }
+            return score;
+        }
+        
+        /**
+         * DP restricted to the diagonal band |i-j| <= pMax (cells outside it have a 
+         * distance > pMax anyway), stopped as soon as a whole row exceeds pMax.
+         */
+        private int bandedDistance(String pText, int pMax) {
+            String a = mPattern;
+            int n = a.length();
+            int m = pText.length();
+            int inf = pMax+1;
+            int[] prev = new int[n+1];
+            int[] cur = new int[n+1];
+            for (int i=0; i<=n; i++) {
+                prev[i] = Math.min(i, inf);
+            }
+            for (int j=1; j<=m; j++) {
+                char c = pText.charAt(j-1);
+                int lo = Math.max(1, j-pMax);
+                int hi = Math.min(n, j+pMax);
+                cur[0] = Math.min(j, inf);
+                int rowMin = cur[0];
+                if (lo > 1) {
+                    cur[lo-1] = inf;
+                }
+                for (int i=lo; i<=hi; i++) {
+                    int v = prev[i-1] + (a.charAt(i-1) == c ? 0 : 1);
+                    v = Math.min(v, cur[i-1]+1);
+                    v = Math.min(v, prev[i]+1);
+                    v = Math.min(v, inf);
+                    cur[i] = v;
+                    rowMin = Math.min(rowMin, v);
+                }
+                if (hi < n) {
+                    cur[hi+1] = inf;
+                }
+                if (rowMin > pMax) {
+                    return inf;
+                }
+                int[] tmp = prev;
+                prev = cur;
+                cur = tmp;
+            }
+            return prev[n];
+        }
+    }
 
     /** cost vector. */
     private int[] cost;
@@ -102,7 +334,7 @@ public class EditDistance {
     
     /** If multiple as good matches, just return the first one */ 
     public static Match findClosestMatch(String query, List<String> list) {
-        String bestMatch = CollectionUtils.findSmallest(list, new DistanceComparator(query));
+        String bestMatch = findNearest(query, list);
         int d = editDistance(query,bestMatch);
         return new Match(bestMatch,d);
     }
@@ -136,15 +368,37 @@ public class EditDistance {
         }
     }
     
+    /** Runs the queries in a pool shared by all calls (see {@link SharedPool}) */
     public static Map<String,Match> findClosestMatches(List<String> list1, List<String> list2) {
+        return findClosestMatches(list1, list2, SharedPool.EXECUTOR, SharedPool.NUM_THREADS);
+    }
+    
+    /** Runs the queries as pNumTasks tasks on pExecutor (which is not shut down) */
+    public static Map<String,Match> findClosestMatches(List<String> list1, List<String> list2,
+                                                       ExecutorService pExecutor, int pNumTasks) {
         Map<String,Match> result = new LinkedHashMap<String,Match>();
-        for (String s1: list1) {
-            Match s2 = findClosestMatch(s1, list2);
-            result.put(s1, s2);
+        if (list2.isEmpty()) {
+            return result;
+        }
+        QGramIndex index = new QGramIndex(list2);
+        String[] matches = index.findNearest(list1, pExecutor, pNumTasks);
+        for (int i=0; i<matches.length; i++) {
+            String s1 = list1.get(i);
+            result.put(s1, new Match(matches[i], editDistance(s1, matches[i])));
         }
         return result;
     }
     
+    /** 
+     * Pool for {@link #findClosestMatches(List, List)}, created on first use. The threads
+     * are daemons, so the pool is never shut down. 
+     */
+    private static class SharedPool {
+        static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+        static final ExecutorService EXECUTOR = 
+            Executors.newFixedThreadPool(NUM_THREADS, ConcurrentUtils.daemonThreadFactory("EditDistance"));
+    }
+    
     private static class Match extends Pair<String,Integer> {
         
         /**
@@ -0,0 +1,126 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Union-find (disjoint sets) over int elements 0..size-1, stored in primitive
+ * arrays: the parent of each element in an int[], and the rank of each root in a
+ * byte[] (ranks never exceed 31). Find uses path halving, which needs no
+ * recursion or second pass; together with union by rank it gives the usual
+ * near-constant amortized time per operation.
+ *
+ * Memory usage is 5 bytes per element. New elements may be added by
+ * {@link #makeSet()}; the arrays are grown as needed.
+ *
+ * Not thread-safe; see {@link ConcurrentIntUnionFind} for that.
+ */
+public class IntUnionFind {
+
+    private int[] mParent;
+    private byte[] mRank;
+    private int mSize;
+    private int mNumSets;
+
+    /** Union-find containing elements 0..pNumElements-1, each in its own set */
+    public IntUnionFind(int pNumElements) {
+        mParent = new int[Math.max(pNumElements, 16)];
+        mRank = new byte[mParent.length];
+        for (int i=0; i<pNumElements; i++) {
+            mParent[i] = i;
+        }
+        mSize = pNumElements;
+        mNumSets = pNumElements;
+    }
+
+    /** Add a new element in a set of its own; @return the new element, that is, the old size */
+    public int makeSet() {
+        if (mSize == mParent.length) {
+            mParent = Arrays.copyOf(mParent, mParent.length * 2);
+            mRank = Arrays.copyOf(mRank, mParent.length);
+        }
+        mParent[mSize] = mSize;
+        mNumSets++;
+        return mSize++;
+    }
+
+    /** @return number of elements */
+    public int size() {
+        return mSize;
+    }
+
+    /** @return number of disjoint sets */
+    public int getNumSets() {
+        return mNumSets;
+    }
+
+    /** @return representative (root) of the set of pX */
+    public int find(int pX) {
+        int[] parent = mParent;
+        while (parent[pX] != pX) {
+            // path halving: make every other node on the path point to its grandparent
+            parent[pX] = parent[parent[pX]];
+            pX = parent[pX];
+        }
+        return pX;
+    }
+
+    /**
+     * Combine the sets of pX and pY.
+     * @return true, if they were in different sets
+     */
+    public boolean union(int pX, int pY) {
+        int x = find(pX);
+        int y = find(pY);
+        if (x == y) {
+            return false;
+        }
+        if (mRank[x] < mRank[y]) {
+            mParent[x] = y;
+        }
+        else if (mRank[x] > mRank[y]) {
+            mParent[y] = x;
+        }
+        else {
+            mParent[y] = x;
+            mRank[x]++;
+        }
+        mNumSets--;
+        return true;
+    }
+
+    public boolean connected(int pX, int pY) {
+        return find(pX) == find(pY);
+    }
+
+    /**
+     * @return for each element, the id of its set; set ids are 0..getNumSets()-1, in
+     * the order of the smallest element of each set.
+     */
+    public int[] getSetIds() {
+        return setIds(mSize, new Finder() {
+            public int find(int pX) {
+                return IntUnionFind.this.find(pX);
+            }
+        });
+    }
+
+    interface Finder {
+        int find(int pX);
+    }
+
+    /** Shared with {@link ConcurrentIntUnionFind} */
+    static int[] setIds(int pSize, Finder pFinder) {
+        int[] idByRoot = new int[pSize];
+        Arrays.fill(idByRoot, -1);
+        int[] result = new int[pSize];
+        int numSets = 0;
+        for (int i=0; i<pSize; i++) {
+            int root = pFinder.find(i);
+            if (idByRoot[root] == -1) {
+                idByRoot[root] = numSets++;
+            }
+            result[i] = idByRoot[root];
+        }
+        return result;
+    }
+}
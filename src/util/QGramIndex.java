@@ -0,0 +1,276 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Index of a fixed dictionary of strings by their q-grams (substrings of
+ * length Q), for repeated nearest-neighbour queries by {@link EditDistance edit
+ * distance}.
+ *
+ * By the q-gram lemma, strings x and y within edit distance k share at least
+ * max(|x|,|y|) - Q + 1 - k*Q q-grams (counted as multisets), as each edit
+ * operation destroys at most Q of them. For a query, the number of q-grams
+ * shared with each dictionary word is counted from the inverted lists of the
+ * q-grams of the query, and the words are then examined in descending order of
+ * that count: the closer the best word found so far, the more q-grams the
+ * remaining words must share with the query to have any chance, so typically
+ * only a few words need to be examined at all. Distances are computed only as
+ * far as needed to decide whether the word is closer than the best so far
+ * (see {@link EditDistance#editDistance(String, String, int)}).
+ *
+ * The index is immutable after construction, so it can be queried from any
+ * number of threads.
+ */
+public class QGramIndex {
+
+    private static final int Q = 2;
+
+    private final List<String> mWords;
+    /** Inverted lists: for each q-gram, words containing it and the number of occurrences in each */
+    private final Map<Long, Posting> mPostings = new HashMap<Long, Posting>();
+
+    /** Words containing a q-gram, in ascending order, and number of occurrences in each */
+    private static class Posting {
+        int[] words = new int[4];
+        int[] counts = new int[4];
+        int size;
+
+        void add(int pWord) {
+            if (size > 0 && words[size-1] == pWord) {
+                counts[size-1]++;
+                return;
+            }
+            if (size == words.length) {
+                words = Arrays.copyOf(words, size*2);
+                counts = Arrays.copyOf(counts, size*2);
+            }
+            words[size] = pWord;
+            counts[size] = 1;
+            size++;
+        }
+    }
+
+    /** Per-query scratch space, reused for the queries of a thread */
+    private class Scratch {
+        /** Number of shared q-grams by word; all zero between queries */
+        final int[] shared = new int[mWords.size()];
+        int[] touched = new int[64];
+        int numTouched;
+        final EditDistance.Pattern pattern = new EditDistance.Pattern();
+    }
+
+    private final ThreadLocal<Scratch> mScratch = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /** @param pDictionary duplicates are allowed; of several as close words, the first one is returned */
+    public QGramIndex(Collection<String> pDictionary) {
+        mWords = new ArrayList<String>(pDictionary);
+        for (int w=0; w<mWords.size(); w++) {
+            String word = mWords.get(w);
+            for (int i=0; i+Q<=word.length(); i++) {
+                Long gram = gram(word, i);
+                Posting posting = mPostings.get(gram);
+                if (posting == null) {
+                    posting = new Posting();
+                    mPostings.put(gram, posting);
+                }
+                posting.add(w);
+            }
+        }
+    }
+
+    private static Long gram(String pString, int pPos) {
+        long gram = 0;
+        for (int k=0; k<Q; k++) {
+            gram = (gram << 16) | pString.charAt(pPos+k);
+        }
+        return gram;
+    }
+
+    public int size() {
+        return mWords.size();
+    }
+
+    /**
+     * @return the word of the dictionary closest to pKey; of several as close words, the one
+     *   occurring first in the dictionary. Null if the dictionary is empty.
+     */
+    public String findNearest(String pKey) {
+        if (mWords.isEmpty()) {
+            return null;
+        }
+        Scratch scratch = mScratch.get();
+        EditDistance.Pattern pattern = scratch.pattern.set(pKey);
+        int numGrams = countSharedGrams(pKey, scratch);
+
+        // bucket the words sharing any q-grams by the number shared (ties between 
+        // as close words are resolved by comparing indices, so order within buckets does not matter)
+        int[] shared = scratch.shared;
+        int[] touched = scratch.touched;
+        int numTouched = scratch.numTouched;
+        int[] bucketStart = new int[numGrams+2];
+        for (int i=0; i<numTouched; i++) {
+            bucketStart[numGrams - shared[touched[i]] + 1]++;
+        }
+        for (int c=1; c<bucketStart.length; c++) {
+            bucketStart[c] += bucketStart[c-1];
+        }
+        int[] byShared = new int[numTouched];
+        for (int i=0; i<numTouched; i++) {
+            byShared[bucketStart[numGrams - shared[touched[i]]]++] = touched[i];
+        }
+
+        int best = Integer.MAX_VALUE;
+        int bestWord = -1;
+        for (int i=0; i<numTouched; i++) {
+            int w = byShared[i];
+            if (shared[w] < minShared(numGrams, best)) {
+                // neither this nor any of the remaining words can be as close
+                break;
+            }
+            int d = pattern.distance(mWords.get(w), best);
+            if (d < best || (d == best && w < bestWord)) {
+                best = d;
+                bestWord = w;
+            }
+        }
+
+        if (minShared(numGrams, best) <= 0) {
+            // words sharing no q-grams may still be as close
+            for (int w=0; w<mWords.size(); w++) {
+                if (shared[w] == 0) {
+                    int d = pattern.distance(mWords.get(w), best);
+                    if (d < best || (d == best && w < bestWord)) {
+                        best = d;
+                        bestWord = w;
+                    }
+                }
+            }
+        }
+
+        clear(scratch);
+        return mWords.get(bestWord);
+    }
+
+    /**
+     * @return all words (in the order of the dictionary) within distance pMaxDist of pKey
+     */
+    public List<String> findWithin(String pKey, int pMaxDist) {
+        Scratch scratch = mScratch.get();
+        EditDistance.Pattern pattern = scratch.pattern.set(pKey);
+        int numGrams = countSharedGrams(pKey, scratch);
+        int minShared = minShared(numGrams, pMaxDist);
+        List<String> result = new ArrayList<String>();
+        for (int w=0; w<mWords.size(); w++) {
+            if (scratch.shared[w] >= minShared && pattern.distance(mWords.get(w), pMaxDist) <= pMaxDist) {
+                result.add(mWords.get(w));
+            }
+        }
+        clear(scratch);
+        return result;
+    }
+
+    /** Min number of q-grams shared with a query having pNumGrams q-grams, for a word within distance pDist */
+    private static int minShared(int pNumGrams, int pDist) {
+        long min = pNumGrams - (long)pDist * Q;
+        return (int)Math.max(min, Integer.MIN_VALUE);
+    }
+
+    /**
+     * Count the q-grams shared by pKey with each word into pScratch.shared (as multisets),
+     * recording the words with a non-zero count into pScratch.touched.
+     * @return number of q-grams of pKey
+     */
+    private int countSharedGrams(String pKey, Scratch pScratch) {
+        int numGrams = Math.max(pKey.length() - Q + 1, 0);
+        Map<Long, Integer> queryGrams = new HashMap<Long, Integer>();
+        for (int i=0; i<numGrams; i++) {
+            Long gram = gram(pKey, i);
+            Integer count = queryGrams.get(gram);
+            queryGrams.put(gram, count != null ? count+1 : 1);
+        }
+        int[] shared = pScratch.shared;
+        for (Map.Entry<Long, Integer> entry: queryGrams.entrySet()) {
+            Posting posting = mPostings.get(entry.getKey());
+            if (posting == null) {
+                continue;
+            }
+            int queryCount = entry.getValue();
+            for (int k=0; k<posting.size; k++) {
+                int w = posting.words[k];
+                if (shared[w] == 0) {
+                    if (pScratch.numTouched == pScratch.touched.length) {
+                        pScratch.touched = Arrays.copyOf(pScratch.touched, pScratch.numTouched*2);
+                    }
+                    pScratch.touched[pScratch.numTouched++] = w;
+                }
+                shared[w] += Math.min(queryCount, posting.counts[k]);
+            }
+        }
+        return numGrams;
+    }
+
+    private void clear(Scratch pScratch) {
+        for (int i=0; i<pScratch.numTouched; i++) {
+            pScratch.shared[pScratch.touched[i]] = 0;
+        }
+        pScratch.numTouched = 0;
+    }
+
+    /**
+     * Batch version of {@link #findNearest(String)}, using a pool of pNumThreads threads
+     * created for this call.
+     * @param pNumThreads non-positive means number of available processors
+     * @return nearest word for each key, in the order of pKeys
+     */
+    public String[] findNearest(List<String> pKeys, int pNumThreads) {
+        if (pNumThreads <= 0) {
+            pNumThreads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(pNumThreads);
+        try {
+            return findNearest(pKeys, executor, pNumThreads);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Batch version of {@link #findNearest(String)}: the queries are split into
+     * pNumTasks contiguous chunks, run on pExecutor (which is not shut down).
+     * @return nearest word for each key, in the order of pKeys
+     */
+    public String[] findNearest(final List<String> pKeys, ExecutorService pExecutor, int pNumTasks) {
+        final String[] result = new String[pKeys.size()];
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t=0; t<pNumTasks; t++) {
+            final int start = (int)((long)result.length * t / pNumTasks);
+            final int end = (int)((long)result.length * (t+1) / pNumTasks);
+            futures.add(pExecutor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i=start; i<end; i++) {
+                        result[i] = findNearest(pKeys.get(i));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future: futures) {
+            ConcurrentUtils.getUnchecked(future);
+        }
+        return result;
+    }
+}
@@ -21,6 +21,10 @@ import util.dbg.*;
  * KEY_UNNAMED is stored completely independently of the hierarchical timing
  * system.
  * 
+ * In thread-aware mode (see {@link #setThreadAware}), timing by key is delegated
+ * to {@link ConcurrentTimer}, which keeps a separate task stack and accumulators for
+ * each thread, and merges them for reporting. In that mode, KEY_TOTAL is a task 
+ * like any other, and KEY_UNNAMED is not timed.
  */
 public class Timer {
 
@@ -37,7 +41,8 @@ public class Timer {
     
     public static boolean outputSecondsInsteadOfMilliseconds;  
     
-    public static void clear() {
+    public synchronized static void clear() {
+        ConcurrentTimer.clear();
         mTotalTimes.clear();    
         mActiveTasks.clear();    
         sTaskStack.clear();
@@ -50,6 +55,8 @@ public class Timer {
     
     private static boolean sHierarchicalTiming = false;
     
+    private static volatile boolean sThreadAware = false;
+    
     /** 
      * We may want to exclude some classes from timing. Of course, 
      * those classes must then kindly identify themselves for this to work;
@@ -62,7 +69,20 @@ public class Timer {
         sHierarchicalTiming = pFlag;
     }
     
-    public synchronized static void startTiming(String pKey, boolean pLog) {       
+    /** 
+     * If true, time by {@link ConcurrentTimer} instead (without locking, 
+     * hierarchically within each thread).
+     * Results already collected are not carried over. 
+     */
+    public synchronized static void setThreadAware(boolean pFlag) {
+        sThreadAware = pFlag;
+    }
+    
+    public static boolean isThreadAware() {
+        return sThreadAware;
+    }
+    
+    public static void startTiming(String pKey, boolean pLog) {       
         if (!sTimingEnabled) return;        
         startTiming(pKey);
         
@@ -86,7 +106,7 @@ public class Timer {
      * pContext is prepended to pKey, unless hierarchical timing is in use,
      * in which case pContext is ignored.
      */
-    public synchronized static void startTiming(String pContext, String pKey) {
+    public static void startTiming(String pContext, String pKey) {
         if (sHierarchicalTiming) {
             startTiming(pKey);
         }
@@ -99,7 +119,7 @@ public class Timer {
     * pContext is prepended to pKey, unless hierarchical timing is in use,
     * in which case pContext is ignored.
     */
-    public synchronized static void endTiming(String pContext, String pKey) {
+    public static void endTiming(String pContext, String pKey) {
         if (sHierarchicalTiming) {
             endTiming(pKey);
         }
@@ -108,7 +128,7 @@ public class Timer {
         }
     }
     
-    public synchronized static void endTiming(String pKey, boolean pLog) {       
+    public static void endTiming(String pKey, boolean pLog) {       
         if (!sTimingEnabled) return;        
         endTiming(pKey);
         
@@ -127,9 +147,20 @@ public class Timer {
         endTiming(KEY_TOTAL);
     }
     
-    public synchronized static void startTiming(String pKey) {        
+    public static void startTiming(String pKey) {        
         if (!sTimingEnabled) return; 
-            
+        
+        if (sThreadAware) {
+            ConcurrentTimer.start(ConcurrentTimer.register(pKey));
+            return;
+        }
+        
+        synchronized (Timer.class) {
+            internalStartTimingByKey(pKey);
+        }
+    }
+    
+    private static void internalStartTimingByKey(String pKey) {
 //        Logger.info("startTiming: "+pKey);
         
         if (sHierarchicalTiming) {
@@ -191,9 +222,20 @@ public class Timer {
         }
     }
     
-    public synchronized static void endTiming(String pKey) {
+    public static void endTiming(String pKey) {
         if (!sTimingEnabled) return;
         
+        if (sThreadAware) {
+            ConcurrentTimer.stop(ConcurrentTimer.register(pKey));
+            return;
+        }
+        
+        synchronized (Timer.class) {
+            internalEndTimingByKey(pKey);
+        }
+    }
+    
+    private static void internalEndTimingByKey(String pKey) {
 //        Logger.info("endTiming: "+pKey);
                 
         if (sHierarchicalTiming) {
@@ -282,6 +324,10 @@ public class Timer {
     public synchronized static long getTime_millis(String pKey) {
         if (!sTimingEnabled) return 0;
         
+        if (sThreadAware) {
+            return getTime_nanos(pKey)/1000000;
+        }
+        
         Long val = mTotalTimes.get(pKey);
         if (val == null) {
             return 0;
@@ -295,6 +341,10 @@ public class Timer {
     public synchronized static double getTime_sec(String pKey) {
         if (!sTimingEnabled) return 0;
         
+        if (sThreadAware) {
+            return ((double)getTime_millis(pKey)) / 1000;
+        }
+        
         Long val = mTotalTimes.get(pKey);
         if (val == null) {
             return 0;
@@ -308,6 +358,11 @@ public class Timer {
     public synchronized static long getTime_nanos(String pKey) {
         if (!sTimingEnabled) return 0;
         
+        if (sThreadAware) {
+            ConcurrentTimer.TaskStats stats = ConcurrentTimer.getStats(pKey);
+            return stats != null ? stats.getTotal_nanos() : 0;
+        }
+        
         Long val = mTotalTimes.get(pKey);
         if (val == null) {
             return 0;
@@ -437,6 +492,10 @@ public class Timer {
      */
     public synchronized static Map<String, Long> asMillisecondsMap() {
         if (!sTimingEnabled) return Collections.EMPTY_MAP;
+        
+        if (sThreadAware) {
+            return Collections.unmodifiableMap(ConcurrentTimer.asMillisecondsMap(sHierarchicalTiming));
+        }
     	
     	Map<String, Long> result = new LinkedHashMap(mTotalTimes);
     	if (result.containsKey(KEY_TOTAL)) {
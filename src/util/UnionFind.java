@@ -1,8 +1,10 @@
 package util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,23 +13,37 @@ import util.collections.MultiMap;
 import util.collections.MultiSet;
 import util.collections.SymmetricPair;
 
+/**
+ * Union-find over arbitrary objects: each object is given an int id on first 
+ * sight, and the sets are maintained by an {@link IntUnionFind} over the ids.
+ */
 public class UnionFind<T> {
 
-    private Map<T, Entry> mMap;            
+    private Map<T, Integer> mIdByObj;
+    private List<T> mObjs;
+    private IntUnionFind mUF;
     
     public UnionFind() {
-        mMap = new HashMap<T, Entry>();
+        mIdByObj = new HashMap<T, Integer>();
+        mObjs = new ArrayList<T>();
+        mUF = new IntUnionFind(0);
     }
     
     /**
      * Invariant: set does not exist yet (violating this could have
      * grave consequences!)
      */
-    private void internalMakeSet(T pObj) {        
-        Entry entry = new Entry(pObj);
-        mMap.put(pObj, entry);
-        entry.parent = entry;
-        entry.rank = 0;
+    private int internalMakeSet(T pObj) {        
+        int id = mUF.makeSet();
+        mIdByObj.put(pObj, id);
+        mObjs.add(pObj);
+        return id;
+    }
+    
+    /** @return id of pObj, making a singleton set of it first, if needed */
+    private int id(T pObj) {
+        Integer id = mIdByObj.get(pObj);
+        return id != null ? id : internalMakeSet(pObj);
     }
         
     /** 
@@ -35,11 +51,11 @@ public class UnionFind<T> {
      * shall boom out.
      */ 
     public void makeSet(T pObj) {
-        if (mMap.containsKey(pObj)) {
+        if (mIdByObj.containsKey(pObj)) {
             throw new RuntimeException("Already contains key: "+pObj);
         }
         else {
-            makeSet(pObj);
+            internalMakeSet(pObj);
         }
     }
     
@@ -63,52 +79,21 @@ public class UnionFind<T> {
      * existed.
      */ 
     public boolean union(T pX, T pY) {
-        
-        if (!(mMap.containsKey(pX))) {
-            internalMakeSet(pX);
-        }
-        
-        if (!(mMap.containsKey(pY))) {
-            internalMakeSet(pY);
-        }
-        
-        Entry xEntry = mMap.get(pX);
-        Entry yEntry = mMap.get(pY);
-        Entry xRoot = internalFind(xEntry);
-        Entry yRoot = internalFind(yEntry);        
-        
-        if (xRoot.rank > yRoot.rank) {
-             yRoot.parent = xRoot;
-             return true;
-        }
-        else if (xRoot.rank < yRoot.rank) {
-            xRoot.parent = yRoot;
-            return true;
-        }
-        else if (xRoot != yRoot) {
-            yRoot.parent = xRoot;
-            xRoot.rank = xRoot.rank + 1;
-            return true;
-        }
-        else {
-            return false;
-        }
+        return mUF.union(id(pX), id(pY));
     }
     
     // Find the representative (root) of the set that pX belongs to */
     public T find(T pX) {
-        Entry xEntry = mMap.get(pX);
-        return internalFind(xEntry).obj;
+        Integer id = mIdByObj.get(pX);
+        if (id == null) {
+            throw new RuntimeException("Not in any set: "+pX);
+        }
+        return mObjs.get(mUF.find(id));
     }
     
-    private Entry internalFind(Entry pEntry) {
-        if (pEntry.parent == pEntry) {
-            return pEntry;
-        }     
-        else {
-            pEntry.parent = internalFind(pEntry.parent);
-            return pEntry.parent;
-        }
+    /** @return number of disjoint sets */
+    public int getNumSets() {
+        return mUF.getNumSets();
     }
 
     /**
@@ -118,8 +103,8 @@ public class UnionFind<T> {
     public MultiSet<T> countSetSizes() {
         MultiSet<T> result = new HashMultiSet();
         
-        for (T o: mMap.keySet()) {
-            result.add(find(o));
+        for (int id=0; id<mObjs.size(); id++) {
+            result.add(mObjs.get(mUF.find(id)));
         }
          
         return result;
@@ -129,8 +114,8 @@ public class UnionFind<T> {
         MultiSet<T> sizes = countSetSizes();
         MultiMap<T,T> result = MultiMap.makeExactSizeHashBasedMultiMap(sizes);
                 
-        for (T o: mMap.keySet()) {
-            result.put(find(o), o);
+        for (int id=0; id<mObjs.size(); id++) {
+            result.put(mObjs.get(mUF.find(id)), mObjs.get(id));
         }
 
         return result.getValuesAsCollectionOfSets();
@@ -154,7 +139,7 @@ public class UnionFind<T> {
     }
     
     public Set<T> getAllObjects() {
-        return mMap.keySet();
+        return mIdByObj.keySet();
     }
     
     public String toString() {
@@ -166,17 +151,5 @@ public class UnionFind<T> {
         return buf.toString();
     }
     
-    private class Entry {
-        T obj;
-        Entry parent;
-        /** Note that rank is only used for the roots */
-        int rank;
-        
-        Entry(T pObj) {
-            obj = pObj;
-        }
-        
-    }
-    
 }
  
\ No newline at end of file
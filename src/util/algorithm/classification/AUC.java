@@ -1,5 +1,7 @@
 package util.algorithm.classification;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -13,12 +15,33 @@ import util.dbg.Logger;
  * Minimal implementation for computing area under any (not necessarily ROC)
  * 
  *  read/write std streams.
+ *  
+ * Input lines are either points (x y) of the curve, or scored instances
+ * (id class score), as in {@link ROCUtils#main}; instances are streamed to
+ * primitive arrays (see {@link PrimitiveROC}), so that huge files can be handled.
  */
 public class AUC {
     
     public static void main(String[] args) throws Exception {
         
-        List<String> lines = IOUtils.readLines();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in), 1 << 16);
+        String first = reader.readLine();
+        while (first != null && first.trim().length() == 0) {
+            first = reader.readLine();
+        }
+        if (first != null && PrimitiveROC.tokenize(first, new int[6]) == 3) {
+            PrimitiveROC roc = PrimitiveROC.readInstances(reader, first);
+            Logger.info("Read "+roc.getNumPositive()+" positive and "+roc.getNumNegative()+" negative instances");
+            double result = roc.getAUC();
+            Logger.info("Computed AUC: "+result);
+            System.out.println(result);
+            return;
+        }
+        
+        List<String> lines = IOUtils.readLines(reader);
+        if (first != null) {
+            lines.add(0, first);
+        }
         List<Point> points = new ArrayList<Point>();
         
         for (String line: lines) {
@@ -0,0 +1,425 @@
+package util.algorithm.classification;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.ConcurrentUtils;
+import util.algorithm.classification.ROCUtils.Point;
+
+/**
+ * ROC and precision-recall curves, AUC and its bootstrap confidence interval
+ * over primitive arrays of scores and labels, as a lightweight alternative to
+ * {@link ROCUtils#generateROCPoints}, for very large numbers of instances.
+ *
+ * As the labels are binary, there is no need to sort (score,label) pairs: the
+ * scores of the positive and negative instances are sorted separately
+ * (by {@link Arrays#parallelSort(double[])}), after which everything
+ * is computed by merging the two sorted arrays.
+ *
+ * AUC is computed as the Mann-Whitney U statistic, normalized by the number
+ * of (positive,negative) pairs: the fraction of such pairs where the positive
+ * instance has a higher score, ties counting as half. This equals the area
+ * under the (trapezoidal) ROC curve.
+ */
+public class PrimitiveROC {
+
+    /** Scores of positive and negative instances, ascending */
+    private final double[] mPos;
+    private final double[] mNeg;
+
+    /** A curve, with the threshold (score) of each point; points in order of descending threshold */
+    public static class Curve {
+        public final double[] x;
+        public final double[] y;
+        public final double[] thresholds;
+
+        Curve(double[] pX, double[] pY, double[] pThresholds) {
+            x = pX;
+            y = pY;
+            thresholds = pThresholds;
+        }
+
+        public int size() {
+            return x.length;
+        }
+
+        /** @return the points as ROCUtils.Point objects, e.g. for ROCUtils.computeAUC_xSorted */
+        public List<Point> toPoints() {
+            List<Point> result = new ArrayList<Point>(x.length);
+            for (int i=0; i<x.length; i++) {
+                result.add(new Point(x[i], y[i], thresholds[i]));
+            }
+            return result;
+        }
+    }
+
+    /** @param pLabels true for positive instances */
+    public PrimitiveROC(double[] pScores, boolean[] pLabels) {
+        this(pScores, pLabels, pScores.length);
+    }
+
+    /** Use the first pNumInstances scores and labels */
+    public PrimitiveROC(double[] pScores, boolean[] pLabels, int pNumInstances) {
+        int numPos = 0;
+        for (int i=0; i<pNumInstances; i++) {
+            if (pLabels[i]) {
+                numPos++;
+            }
+        }
+        mPos = new double[numPos];
+        mNeg = new double[pNumInstances-numPos];
+        int p = 0;
+        int n = 0;
+        for (int i=0; i<pNumInstances; i++) {
+            double score = pScores[i];
+            if (Double.isNaN(score)) {
+                throw new RuntimeException("NaN score for instance "+i);
+            }
+            if (pLabels[i]) {
+                mPos[p++] = score;
+            }
+            else {
+                mNeg[n++] = score;
+            }
+        }
+        sort();
+    }
+
+    /** @param pLabels non-zero for positive instances */
+    public PrimitiveROC(double[] pScores, byte[] pLabels) {
+        this(pScores, toBoolean(pLabels));
+    }
+
+    /** @param pPosScores, pNegScores scores of positive and negative instances; not modified */
+    public PrimitiveROC(double[] pPosScores, double[] pNegScores) {
+        mPos = pPosScores.clone();
+        mNeg = pNegScores.clone();
+        sort();
+    }
+
+    /**
+     * Read instances streamingly, one per line, with columns (separated by whitespace):
+     *   1: instance id (ignored)
+     *   2: class (as in {@link BinaryClassification#getByString})
+     *   3: score
+     * Only the scores are kept in memory, as primitive arrays.
+     */
+    public static PrimitiveROC readInstances(InputStream pStream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(pStream), 1 << 16);
+        return readInstances(reader, null);
+    }
+
+    /**
+     * As {@link #readInstances(InputStream)}, with pFirstLine (if not null) already
+     * read from pReader.
+     */
+    static PrimitiveROC readInstances(BufferedReader pReader, String pFirstLine) throws IOException {
+        double[] pos = new double[1024];
+        double[] neg = new double[1024];
+        int numPos = 0;
+        int numNeg = 0;
+        int[] bounds = new int[6];
+        for (String line = pFirstLine != null ? pFirstLine : pReader.readLine(); line != null; line = pReader.readLine()) {
+            int numTokens = tokenize(line, bounds);
+            if (numTokens == 0) {
+                continue;
+            }
+            if (numTokens != 3) {
+                throw new RuntimeException("Invalid line (expecting id, class and score): "+line);
+            }
+            BinaryClassification c = BinaryClassification.getByString(line.substring(bounds[2], bounds[3]));
+            double score = Double.parseDouble(line.substring(bounds[4], bounds[5]));
+            if (c == BinaryClassification.POS) {
+                if (numPos == pos.length) {
+                    pos = Arrays.copyOf(pos, grow(numPos));
+                }
+                pos[numPos++] = score;
+            }
+            else {
+                if (numNeg == neg.length) {
+                    neg = Arrays.copyOf(neg, grow(numNeg));
+                }
+                neg[numNeg++] = score;
+            }
+        }
+        return new PrimitiveROC(Arrays.copyOf(pos, numPos), Arrays.copyOf(neg, numNeg));
+    }
+
+    private static int grow(int pSize) {
+        if (pSize >= Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Too many instances");
+        }
+        return (int)Math.min((long)pSize + (pSize >> 1) + 1, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Find whitespace-separated tokens of pLine, storing the start and end of
+     * the first pBounds.length/2 of them into pBounds.
+     * @return number of tokens, or pBounds.length/2+1 if there are more
+     */
+    static int tokenize(String pLine, int[] pBounds) {
+        int maxTokens = pBounds.length / 2;
+        int n = 0;
+        int len = pLine.length();
+        int i = 0;
+        while (true) {
+            while (i < len && Character.isWhitespace(pLine.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                return n;
+            }
+            if (n == maxTokens) {
+                return n+1;
+            }
+            pBounds[2*n] = i;
+            while (i < len && !Character.isWhitespace(pLine.charAt(i))) {
+                i++;
+            }
+            pBounds[2*n+1] = i;
+            n++;
+        }
+    }
+
+    private void sort() {
+        Arrays.parallelSort(mPos);
+        Arrays.parallelSort(mNeg);
+        if (mPos.length == 0 || mNeg.length == 0) {
+            throw new RuntimeException("Need both positive and negative instances; got "+
+                                       mPos.length+" positive and "+mNeg.length+" negative");
+        }
+        if (Double.isNaN(mPos[mPos.length-1]) || Double.isNaN(mNeg[mNeg.length-1])) {
+            throw new RuntimeException("NaN score");
+        }
+    }
+
+    private static boolean[] toBoolean(byte[] pLabels) {
+        boolean[] result = new boolean[pLabels.length];
+        for (int i=0; i<pLabels.length; i++) {
+            result[i] = pLabels[i] != 0;
+        }
+        return result;
+    }
+
+    public int getNumPositive() {
+        return mPos.length;
+    }
+
+    public int getNumNegative() {
+        return mNeg.length;
+    }
+
+    public double getAUC() {
+        return auc(null, null);
+    }
+
+    /**
+     * Mann-Whitney AUC, each instance weighted by its count in pPosCounts or
+     * pNegCounts (null meaning 1 for all).
+     */
+    private double auc(int[] pPosCounts, int[] pNegCounts) {
+        double u = 0;
+        double negBelow = 0;
+        double totalPos = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mPos.length) {
+            double score = mPos[i];
+            while (j < mNeg.length && mNeg[j] < score) {
+                negBelow += pNegCounts != null ? pNegCounts[j] : 1;
+                j++;
+            }
+            double negTied = 0;
+            for (int k=j; k<mNeg.length && mNeg[k] == score; k++) {
+                negTied += pNegCounts != null ? pNegCounts[k] : 1;
+            }
+            double pos = 0;
+            for (; i<mPos.length && mPos[i] == score; i++) {
+                pos += pPosCounts != null ? pPosCounts[i] : 1;
+            }
+            u += pos * (negBelow + 0.5 * negTied);
+            totalPos += pos;
+        }
+        double totalNeg = 0;
+        if (pNegCounts != null) {
+            for (int count: pNegCounts) {
+                totalNeg += count;
+            }
+        }
+        else {
+            totalNeg = mNeg.length;
+        }
+        return u / (totalPos * totalNeg);
+    }
+
+    /**
+     * @return ROC curve (x=false positive rate, y=true positive rate), with one
+     * point per distinct score, preceded by (0,0) with threshold +∞; as in
+     * {@link ROCUtils#generateROCPoints}.
+     */
+    public Curve getROCCurve() {
+        int numDistinct = countDistinctScores();
+        double[] x = new double[numDistinct+1];
+        double[] y = new double[numDistinct+1];
+        double[] thresholds = new double[numDistinct+1];
+        thresholds[0] = Double.POSITIVE_INFINITY;
+        int i = mPos.length-1;
+        int j = mNeg.length-1;
+        long tp = 0;
+        long fp = 0;
+        for (int k=1; k<=numDistinct; k++) {
+            double score = Math.max(i >= 0 ? mPos[i] : Double.NEGATIVE_INFINITY,
+                                    j >= 0 ? mNeg[j] : Double.NEGATIVE_INFINITY);
+            for (; i >= 0 && mPos[i] == score; i--) {
+                tp++;
+            }
+            for (; j >= 0 && mNeg[j] == score; j--) {
+                fp++;
+            }
+            x[k] = (double)fp / mNeg.length;
+            y[k] = (double)tp / mPos.length;
+            thresholds[k] = score;
+        }
+        return new Curve(x, y, thresholds);
+    }
+
+    /**
+     * @return precision-recall curve (x=recall, y=precision), with one point per
+     * distinct score, preceded by (0,1) with threshold +∞.
+     */
+    public Curve getPRCurve() {
+        Curve roc = getROCCurve();
+        int n = roc.size();
+        double[] x = new double[n];
+        double[] y = new double[n];
+        x[0] = 0;
+        y[0] = 1;
+        for (int k=1; k<n; k++) {
+            double tp = roc.y[k] * mPos.length;
+            double fp = roc.x[k] * mNeg.length;
+            x[k] = roc.y[k];
+            y[k] = tp / (tp + fp);
+        }
+        return new Curve(x, y, roc.thresholds);
+    }
+
+    /** @return average precision: precision at each threshold, weighted by the increase in recall */
+    public double getAveragePrecision() {
+        Curve pr = getPRCurve();
+        double result = 0;
+        for (int k=1; k<pr.size(); k++) {
+            result += (pr.x[k] - pr.x[k-1]) * pr.y[k];
+        }
+        return result;
+    }
+
+    private int countDistinctScores() {
+        int result = 0;
+        int i = 0;
+        int j = 0;
+        while (i < mPos.length || j < mNeg.length) {
+            double score = Math.min(i < mPos.length ? mPos[i] : Double.POSITIVE_INFINITY,
+                                    j < mNeg.length ? mNeg[j] : Double.POSITIVE_INFINITY);
+            for (; i < mPos.length && mPos[i] == score; i++);
+            for (; j < mNeg.length && mNeg[j] == score; j++);
+            result++;
+        }
+        return result;
+    }
+
+    /**
+     * Stratified bootstrap: AUC of each of pNumResamples resamples, each drawing
+     * as many positive and negative instances as there are in the data, with
+     * replacement (see {@link #resample}).
+     * Each resample is drawn from its own random generator, split from one seeded by pSeed, so the
+     * result does not depend on the number of threads.
+     *
+     * @param pNumResamples has to be positive
+     * @param pNumThreads non-positive means number of available processors
+     * @return AUCs of the resamples, sorted
+     */
+    public double[] bootstrapAUC(final int pNumResamples, long pSeed, int pNumThreads) {
+        if (pNumResamples <= 0) {
+            throw new IllegalArgumentException("Number of resamples has to be positive: "+pNumResamples);
+        }
+        int numThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+        numThreads = Math.max(1, Math.min(numThreads, pNumResamples));
+        final double[] result = new double[pNumResamples];
+        final SplittableRandom[] randoms = new SplittableRandom[pNumResamples];
+        SplittableRandom seedRandom = new SplittableRandom(pSeed);
+        for (int r=0; r<pNumResamples; r++) {
+            randoms[r] = seedRandom.split();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            Future<?>[] futures = new Future<?>[numThreads];
+            for (int t=0; t<numThreads; t++) {
+                final int start = (int)((long)pNumResamples * t / numThreads);
+                final int end = (int)((long)pNumResamples * (t+1) / numThreads);
+                futures[t] = executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        int[] posCounts = new int[mPos.length];
+                        int[] negCounts = new int[mNeg.length];
+                        for (int r=start; r<end; r++) {
+                            resample(posCounts, randoms[r]);
+                            resample(negCounts, randoms[r]);
+                            result[r] = auc(posCounts, negCounts);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future: futures) {
+                ConcurrentUtils.getUnchecked(future);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @param pConfidence e.g. 0.95
+     * @param pNumResamples has to be positive
+     * @return percentile bootstrap confidence interval {lower, upper} for the AUC
+     */
+    public double[] bootstrapConfidenceInterval(double pConfidence, int pNumResamples, long pSeed, int pNumThreads) {
+        double[] aucs = bootstrapAUC(pNumResamples, pSeed, pNumThreads);
+        double alpha = (1 - pConfidence) / 2;
+        return new double[] { percentile(aucs, alpha), percentile(aucs, 1-alpha) };
+    }
+
+    /** @param pSorted sorted values */
+    private static double percentile(double[] pSorted, double pFraction) {
+        double pos = pFraction * (pSorted.length-1);
+        int i = (int)Math.floor(pos);
+        if (i >= pSorted.length-1) {
+            return pSorted[pSorted.length-1];
+        }
+        return pSorted[i] + (pos - i) * (pSorted[i+1] - pSorted[i]);
+    }
+
+    /**
+     * Draw pCounts.length instances with replacement: pCounts[i] = number of times
+     * instance i is drawn. Thus each resample has exactly as many instances of each
+     * class as the data, and no class can end up empty.
+     */
+    private static void resample(int[] pCounts, SplittableRandom pRandom) {
+        Arrays.fill(pCounts, 0);
+        for (int i=0; i<pCounts.length; i++) {
+            pCounts[pRandom.nextInt(pCounts.length)]++;
+        }
+    }
+}
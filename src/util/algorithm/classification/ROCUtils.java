@@ -258,15 +258,8 @@ public class ROCUtils {
     private void run() throws IOException {
         String infile = args.getNonOptArg(0);
         String baseName = StringUtils.removeExtension(infile);
-        List<Instance<String>> instances = readInstances(new FileInputStream(infile));
-        Map<String, BinaryClassification> classifications = new HashMap<String, BinaryClassification>();
-        Map<String, Double> scores = new HashMap();
-        for (Instance<String> i: instances) {
-            classifications.put(i.key, i.trueClass);
-            scores.put(i.key, i.score);
-        }
-        
-        List<Point> points = generateROCPoints(classifications, scores);
+        PrimitiveROC roc = PrimitiveROC.readInstances(new FileInputStream(infile));
+        List<Point> points = roc.getROCCurve().toPoints();
         String pointsfile = args.getOpt("pointsfile");
         if (pointsfile == null) pointsfile = baseName+".points";
         IOUtils.writeToFile(pointsfile, SU.toString(points));
@@ -280,7 +273,7 @@ public class ROCUtils {
         }
         IOUtils.writeCollection(gpfile, gnuplotLines);
         
-        double AUC = computeAUC_scoreSorted(points);
+        double AUC = roc.getAUC();
         Logger.info("AUC: "+AUC);
 //        IOUtils.writeToFile(baseName+".AUC", ""+AUC);
         String summaryFile = args.getOpt("summaryfile");
@@ -0,0 +1,480 @@
+package util.algorithm.clustering;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+import util.ConversionUtils;
+import util.IOUtils;
+import util.algorithm.clustering.DistanceMatrix.MissingDistancePolicy;
+import util.collections.IndexMap;
+import util.converter.Converter;
+import util.converter.ObjectToStringConverter;
+import util.dbg.Logger;
+
+/**
+ * A distance matrix with the same contract as {@link DistanceMatrix}, but
+ * storing the distances in a condensed upper-triangular array instead of a
+ * HashMap of UnorderedPairs. Objects are mapped to dense int ids once
+ * (in their natural order, as in DistanceMatrix), after which the distance of
+ * pair (i,j), i<j, is found at position n*i - i*(i+1)/2 + (j-i-1).
+ *
+ * Depending on {@link StorageMode}, the array is either a double[] or float[]
+ * on the heap, or a memory-mapped file, which enables matrices larger than
+ * the heap.
+ *
+ * Missing distances are stored as NaN and resolved by the
+ * MissingDistancePolicy when queried. The distance of an object to itself is
+ * always 0.
+ */
+public class CondensedDistanceMatrix<T> implements IDataManagingDistanceFunction<T> {
+
+    private Set<T> mObjects;
+    private IndexMap<T> mIndex;
+    private int mN;
+    private Storage mStorage;
+    private MissingDistancePolicy mMissingDistancePolicy;
+    private Double mMax;
+
+    /**
+     * Read file of the form "A B dist" (same format as for DistanceMatrix), the objects
+     * being the names A and B as such; thus T has to be String.
+     */
+    public CondensedDistanceMatrix(String pDistanceFile,
+                                   MissingDistancePolicy pMissingDistancePolicy,
+                                   StorageMode pStorageMode,
+                                   File pMappedFile) throws IOException {
+        this(pDistanceFile, CondensedDistanceMatrix.<T>namesAsObjects(), pMissingDistancePolicy, pStorageMode, pMappedFile);
+    }
+
+    /** Read file of the form "A B dist", the objects being given by pNameConverter from names A and B */
+    public CondensedDistanceMatrix(String pDistanceFile,
+                                   Converter<String, T> pNameConverter,
+                                   MissingDistancePolicy pMissingDistancePolicy,
+                                   StorageMode pStorageMode,
+                                   File pMappedFile) throws IOException {
+        mMissingDistancePolicy = pMissingDistancePolicy;
+        readData(pDistanceFile, pNameConverter, pStorageMode, pMappedFile);
+    }
+
+    public CondensedDistanceMatrix(String pDistanceFile,
+                                   MissingDistancePolicy pMissingDistancePolicy,
+                                   StorageMode pStorageMode) throws IOException {
+        this(pDistanceFile, pMissingDistancePolicy, pStorageMode, null);
+    }
+
+    /**
+     * Compute the function once and use the matrix to serve the distances.
+     * Distances are computed using pNumThreads threads (see
+     * {@link ParallelDistanceMatrixBuilder}); the function has to be thread-safe
+     * if pNumThreads != 1.
+     */
+    public CondensedDistanceMatrix(IDistanceFunction<T> pFunction,
+                                   Collection<T> pElements,
+                                   MissingDistancePolicy pMissingDistancePolicy,
+                                   StorageMode pStorageMode,
+                                   File pMappedFile,
+                                   int pNumThreads) throws IOException {
+        mMissingDistancePolicy = pMissingDistancePolicy;
+        init(new TreeSet<T>(pElements), pStorageMode, pMappedFile);
+
+        ParallelDistanceMatrixBuilder.computeDistances(pFunction, mIndex.asList(), pNumThreads,
+                                                       new ParallelDistanceMatrixBuilder.Target() {
+            public void set(int pI, int pJ, long pInd, double pDist) {
+                mStorage.set(pInd, pDist);
+            }
+        });
+    }
+
+    public CondensedDistanceMatrix(IDistanceFunction<T> pFunction,
+                                   Collection<T> pElements,
+                                   MissingDistancePolicy pMissingDistancePolicy,
+                                   StorageMode pStorageMode) throws IOException {
+        this(pFunction, pElements, pMissingDistancePolicy, pStorageMode, null, 1);
+    }
+
+    private void init(Set<T> pObjects, StorageMode pStorageMode, File pMappedFile) throws IOException {
+        mObjects = Collections.unmodifiableSet(pObjects);
+        mIndex = new IndexMap<T>(new ArrayList<T>(pObjects));
+        mN = mIndex.size();
+        long numPairs = numPairs(mN);
+        if (pStorageMode == StorageMode.AUTO) {
+            pStorageMode = chooseStorageMode(numPairs);
+        }
+        Logger.info("Allocating condensed distance matrix for "+mN+" objects ("+numPairs+" pairs), storage: "+pStorageMode);
+        if (pStorageMode == StorageMode.DOUBLE) {
+            mStorage = new DoubleArrayStorage(numPairs);
+        }
+        else if (pStorageMode == StorageMode.FLOAT) {
+            mStorage = new FloatArrayStorage(numPairs);
+        }
+        else if (pStorageMode == StorageMode.MAPPED_DOUBLE) {
+            mStorage = new MappedStorage(numPairs, 8, pMappedFile);
+        }
+        else if (pStorageMode == StorageMode.MAPPED_FLOAT) {
+            mStorage = new MappedStorage(numPairs, 4, pMappedFile);
+        }
+        else {
+            throw new RuntimeException("Unknown storage mode: "+pStorageMode);
+        }
+    }
+
+    /** Use a heap array if it takes at most half of the currently available heap */
+    private static StorageMode chooseStorageMode(long pNumPairs) {
+        Runtime rt = Runtime.getRuntime();
+        long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        if (pNumPairs <= Storage.MAX_ARRAY_SIZE && pNumPairs * 8 <= available / 2) {
+            return StorageMode.DOUBLE;
+        }
+        else {
+            return StorageMode.MAPPED_DOUBLE;
+        }
+    }
+
+    private static long numPairs(int pN) {
+        return (long)pN * (pN-1) / 2;
+    }
+
+    /** Position of pair (i,j), i != j, in the condensed array */
+    private long ind(int i, int j) {
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return (long)mN*i - (long)i*(i+1)/2 + (j-i-1);
+    }
+
+    /** Number of data points */
+    public int size() {
+        return mN;
+    }
+
+    /** @return null, if no such object */
+    public Integer getIndex(T pObj) {
+        return mIndex.getIndex(pObj);
+    }
+
+    public T getObject(int pIndex) {
+        return mIndex.get(pIndex);
+    }
+
+    /**
+     * Distance by object ids; NaN denotes a missing distance (the
+     * MissingDistancePolicy is not applied here).
+     */
+    public double dist(int p1, int p2) {
+        if (p1 == p2) {
+            return 0;
+        }
+        return mStorage.get(ind(p1, p2));
+    }
+
+    public Double dist(T p1, T p2) {
+        Integer i1 = mIndex.getIndex(p1);
+        Integer i2 = mIndex.getIndex(p2);
+        double d = (i1 != null && i2 != null) ? dist(i1, i2) : Double.NaN;
+        if (Double.isNaN(d)) {
+            return missingDistance(p1, p2);
+        }
+        else {
+            return d;
+        }
+    }
+
+    private Double missingDistance(T p1, T p2) {
+        if (mMissingDistancePolicy == MissingDistancePolicy.PERMIT_NULL) {
+            return null;
+        }
+        else if (mMissingDistancePolicy == MissingDistancePolicy.DOUBLE_MAX) {
+            if (mMax == null) {
+                findMax();
+            }
+            return mMax * 2;
+        }
+        else if (mMissingDistancePolicy == MissingDistancePolicy.MAX) {
+            if (mMax == null) {
+                findMax();
+            }
+            return mMax;
+        }
+        else if (mMissingDistancePolicy == MissingDistancePolicy.ONE) {
+            return 1.0;
+        }
+        else if (mMissingDistancePolicy == MissingDistancePolicy.NULL_IS_AN_ERROR) {
+            throw new RuntimeException("No distance for pair: "+p1+", "+p2);
+        }
+        else {
+            throw new RuntimeException("Unknown MissingDistancePolicy: "+mMissingDistancePolicy);
+        }
+    }
+
+    private void findMax() {
+        double max = Double.NEGATIVE_INFINITY;
+        long numPairs = numPairs(mN);
+        for (long k=0; k<numPairs; k++) {
+            double d = mStorage.get(k);
+            if (d > max) {
+                max = d;
+            }
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            throw new RuntimeException("No distances in matrix, cannot compute max");
+        }
+        mMax = max;
+    }
+
+    public Set<T> getDataPoints() {
+        return mObjects;
+    }
+
+    public void minusLogTransform() {
+        long numPairs = numPairs(mN);
+        for (long k=0; k<numPairs; k++) {
+            double d = mStorage.get(k);
+            if (!Double.isNaN(d)) {
+                mStorage.set(k, -Math.log(d));
+            }
+        }
+        mMax = null;
+    }
+
+    public String format() {
+        StringBuffer buf = new StringBuffer();
+        for (int i=0; i<mN; i++) {
+            buf.append(dist(mIndex.get(i), mIndex.get(0)));
+            for (int j=1; j<mN; j++) {
+                buf.append("\t"+dist(mIndex.get(i), mIndex.get(j)));
+            }
+            buf.append("\n");
+        }
+        return buf.toString();
+    }
+
+    /** Release the storage (unmaps and deletes a temporary mapped file, if any) */
+    public void close() throws IOException {
+        mStorage.close();
+    }
+
+    public String toString() {
+        return "CondensedDistanceMatrix ("+numPairs(mN)+" pairs, "+mN+" objects, storage: "+mStorage+")";
+    }
+
+    /**
+     * Read in two passes: first collect the objects to assign the ids,
+     * then fill in the distances. Avoids storing the lines in memory.
+     */
+    private void readData(String pDistanceFile, Converter<String, T> pNameConverter,
+                          StorageMode pStorageMode, File pMappedFile) throws IOException {
+
+        TreeSet<T> objects = new TreeSet<T>();
+        for (String line: new IOUtils.LineIterable(pDistanceFile)) {
+            StringTokenizer tok = new StringTokenizer(line);
+            objects.add(pNameConverter.convert(tok.nextToken()));
+            objects.add(pNameConverter.convert(tok.nextToken()));
+        }
+
+        init(objects, pStorageMode, pMappedFile);
+
+        for (String line: new IOUtils.LineIterable(pDistanceFile)) {
+            StringTokenizer tok = new StringTokenizer(line);
+            int i1 = mIndex.getIndex(pNameConverter.convert(tok.nextToken()));
+            int i2 = mIndex.getIndex(pNameConverter.convert(tok.nextToken()));
+            double d = Double.parseDouble(tok.nextToken());
+            if (i1 != i2) {
+                mStorage.set(ind(i1, i2), d);
+            }
+        }
+    }
+
+    private static final Converter<String, String> NAMES_AS_OBJECTS = new Converter<String, String>() {
+        public String convert(String pName) {
+            return pName;
+        }
+    };
+
+    /** Identity converter for reading names as objects, when T is String */
+    @SuppressWarnings("unchecked")
+    private static <T> Converter<String, T> namesAsObjects() {
+        return (Converter<String, T>)(Converter<String, ?>)NAMES_AS_OBJECTS;
+    }
+
+    public enum StorageMode {
+        DOUBLE("double"),
+        FLOAT("float"),
+        MAPPED_DOUBLE("mapped_double"),
+        MAPPED_FLOAT("mapped_float"),
+        AUTO("auto"); // heap double array if it comfortably fits, mapped double otherwise
+
+        String mName;
+
+        StorageMode(String pName) {
+            mName = pName;
+        }
+
+        public static StorageMode getByName(String pName) {
+            for (StorageMode mode: StorageMode.values()) {
+                if (mode.mName.equals(pName)) {
+                    return mode;
+                }
+            }
+            throw new RuntimeException("No such storage mode: " + pName);
+        }
+
+        public String toString() {
+            return mName;
+        }
+
+        public static List<String> names() {
+            return ConversionUtils.convert(Arrays.asList(StorageMode.values()),
+                                           new ObjectToStringConverter<StorageMode>());
+        }
+    }
+
+    /** All storages are initialized to NaN (=missing) */
+    private static abstract class Storage {
+        static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+        abstract double get(long pInd);
+        abstract void set(long pInd, double pVal);
+
+        void close() throws IOException {
+            // nothing to release by default
+        }
+
+        static int checkArraySize(long pSize) {
+            if (pSize > MAX_ARRAY_SIZE) {
+                throw new RuntimeException("Too many pairs for an array: "+pSize+"; use a mapped storage mode");
+            }
+            return (int)pSize;
+        }
+    }
+
+    private static class DoubleArrayStorage extends Storage {
+        private double[] mArr;
+
+        DoubleArrayStorage(long pSize) {
+            mArr = new double[checkArraySize(pSize)];
+            Arrays.fill(mArr, Double.NaN);
+        }
+
+        double get(long pInd) {
+            return mArr[(int)pInd];
+        }
+
+        void set(long pInd, double pVal) {
+            mArr[(int)pInd] = pVal;
+        }
+
+        public String toString() {
+            return "double[]";
+        }
+    }
+
+    private static class FloatArrayStorage extends Storage {
+        private float[] mArr;
+
+        FloatArrayStorage(long pSize) {
+            mArr = new float[checkArraySize(pSize)];
+            Arrays.fill(mArr, Float.NaN);
+        }
+
+        double get(long pInd) {
+            return mArr[(int)pInd];
+        }
+
+        void set(long pInd, double pVal) {
+            mArr[(int)pInd] = (float)pVal;
+        }
+
+        public String toString() {
+            return "float[]";
+        }
+    }
+
+    /**
+     * Values stored in a file mapped in segments (a single MappedByteBuffer
+     * cannot exceed 2GB).
+     */
+    private static class MappedStorage extends Storage {
+        /** Elements per segment; a power of two to make addressing cheap */
+        private static final int SEGMENT_BITS = 27;
+        private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+        private final int mElemSize;
+        private final File mFile;
+        private final boolean mDeleteOnClose;
+        private RandomAccessFile mRaf;
+        private MappedByteBuffer[] mSegments;
+
+        MappedStorage(long pSize, int pElemSize, File pFile) throws IOException {
+            mElemSize = pElemSize;
+            if (pFile == null) {
+                mFile = File.createTempFile("distancematrix", ".bin");
+                mFile.deleteOnExit();
+                mDeleteOnClose = true;
+            }
+            else {
+                mFile = pFile;
+                mDeleteOnClose = false;
+            }
+
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mRaf.setLength(pSize * mElemSize);
+            FileChannel channel = mRaf.getChannel();
+            int numSegments = (int)((pSize + SEGMENT_MASK) >>> SEGMENT_BITS);
+            mSegments = new MappedByteBuffer[numSegments];
+            for (int s=0; s<numSegments; s++) {
+                long start = ((long)s << SEGMENT_BITS);
+                long len = Math.min(pSize - start, 1L << SEGMENT_BITS);
+                mSegments[s] = channel.map(FileChannel.MapMode.READ_WRITE, start * mElemSize, len * mElemSize);
+                mSegments[s].order(ByteOrder.nativeOrder());
+            }
+
+            for (long i=0; i<pSize; i++) {
+                set(i, Double.NaN);
+            }
+        }
+
+        double get(long pInd) {
+            MappedByteBuffer seg = mSegments[(int)(pInd >>> SEGMENT_BITS)];
+            int pos = (int)(pInd & SEGMENT_MASK) * mElemSize;
+            return mElemSize == 8 ? seg.getDouble(pos) : seg.getFloat(pos);
+        }
+
+        void set(long pInd, double pVal) {
+            MappedByteBuffer seg = mSegments[(int)(pInd >>> SEGMENT_BITS)];
+            int pos = (int)(pInd & SEGMENT_MASK) * mElemSize;
+            if (mElemSize == 8) {
+                seg.putDouble(pos, pVal);
+            }
+            else {
+                seg.putFloat(pos, (float)pVal);
+            }
+        }
+
+        void close() throws IOException {
+            // the mapping itself is released only when the buffers are gc'd
+            mSegments = null;
+            mRaf.close();
+            if (mDeleteOnClose) {
+                mFile.delete();
+            }
+        }
+
+        public String toString() {
+            return "mapped " + (mElemSize == 8 ? "double" : "float") + " file " + mFile;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import util.CollectionUtils;
 import util.ConversionUtils;
@@ -36,31 +37,40 @@ public class DistanceMatrix<T> implements IDataManagingDistanceFunction<T> {
     }
     
     /** Compute the function once and use the matrix to serve the distances */
-    public DistanceMatrix(IDistanceFunction pFunction,
-                          Collection pElements,
+    public DistanceMatrix(IDistanceFunction<T> pFunction,
+                          Collection<T> pElements,
                           MissingDistancePolicy pMissingDistancePolicy) throws IOException {
-        mData = new HashMap();
+        this(pFunction, pElements, pMissingDistancePolicy, 1);
+    }
+    
+    /**
+     * As above, but compute the distances using pNumThreads threads
+     * (see {@link ParallelDistanceMatrixBuilder}); the function has to be thread-safe
+     * if pNumThreads != 1. The tiles store their distances directly into the map,
+     * which is a ConcurrentHashMap when using more than one thread.
+     */
+    public DistanceMatrix(IDistanceFunction<T> pFunction,
+                          Collection<T> pElements,
+                          MissingDistancePolicy pMissingDistancePolicy,
+                          int pNumThreads) throws IOException {
+        mData = pNumThreads == 1 
+              ? new HashMap<UnorderedPair<T>, Double>()
+              : new ConcurrentHashMap<UnorderedPair<T>, Double>();
         mMissingDistancePolicy = pMissingDistancePolicy;
-        mObjects = new TreeSet(pElements);
+        mObjects = new TreeSet<T>(pElements);
         
-        int nElems = pElements.size();
-        ArrayList elemList = new ArrayList(pElements);
-        // int nPairs = nElems * (nElems-1) / 2; 
-                               
-        for (int i=0; i<nElems-1; i++) {
-            for (int j=i+1; j<nElems; j++) {
-                Object e1 = elemList.get(i);
-                Object e2 = elemList.get(j);                
-                Double d = pFunction.dist(e1, e2);
-                if (d != null) {
+        final List<T> elemList = new ArrayList<T>(pElements);
+        final Map<UnorderedPair<T>, Double> data = mData;
+        ParallelDistanceMatrixBuilder.computeDistances(pFunction, elemList, pNumThreads,
+                                                       new ParallelDistanceMatrixBuilder.Target() {
+            public void set(int pI, int pJ, long pInd, double pDist) {
+                if (!Double.isNaN(pDist)) {
                     // only store if not null (null means "missing", or "max", 
                     // and is the responsibility of pMissingDistancePolicy
-                    UnorderedPair key = new UnorderedPair(e1, e2);
-                    mData.put(key, d);
-                }                
+                    data.put(new UnorderedPair<T>(elemList.get(pI), elemList.get(pJ)), pDist);
+                }
             }
-        }
-                
+        });
     }
      
     public String format() {
@@ -33,9 +33,14 @@ public class DotProductDistanceFunction<E,A> implements IDataManagingDistanceFun
     /**
      * Buffer for the common set of attributes.
      * Recycle this set, as computing intersections is needed constantly.
-     * Of course, destroys any possibility of concurrent access...
+     * One buffer per thread, to allow computing distances concurrently
+     * (see {@link ParallelDistanceMatrixBuilder}).
      */
-    private Set<A> mIntersectionBuf = new HashSet();
+    private ThreadLocal<Set<A>> mIntersectionBuf = new ThreadLocal<Set<A>>() {
+        protected Set<A> initialValue() {
+            return new HashSet<A>();
+        }
+    };
     
     /**
      * Remember to init()!
@@ -109,9 +114,10 @@ public class DotProductDistanceFunction<E,A> implements IDataManagingDistanceFun
         WeightedSet<A> v2 = mData.get(p2);
 //        Logger.info("v1: "+v1);
 //        Logger.info("v2: "+v2);
-        CollectionUtils.intersection(v1, v2, mIntersectionBuf);
+        Set<A> intersection = mIntersectionBuf.get();
+        CollectionUtils.intersection(v1, v2, intersection);
         double sum = 0;
-        for (A a: mIntersectionBuf) {
+        for (A a: intersection) {
             sum += v1.getWeight(a) * v2.getWeight(a);
         }
         // max sum is the maximum number of common elements, given the 
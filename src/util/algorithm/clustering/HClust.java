@@ -12,6 +12,7 @@ import util.StringUtils;
 import util.Utils;
 import util.algorithm.clustering.DistanceMatrix.MissingDistancePolicy;
 import util.collections.BinaryHeap;
+import util.collections.IntDoubleIndexedHeap;
 import util.collections.MultiMap;
 import util.collections.UnorderedPair;
 import util.collections.BinaryHeap.Mode;
@@ -28,6 +29,7 @@ public class HClust {
         {"datafile", null, true}, // goes hand in hand with "distancefunction" distance function is initialized with this file        
         {"linkage", null, true, "single", HClusterDistanceFunction.Linkage.valueList() },                
         {"minuslog", null, false}, // apply -log-transformation to the elements of the "distance" matrix
+        {"matrixstorage", null, true, null, CondensedDistanceMatrix.StorageMode.names()}, // if given, store distancefile into a condensed matrix with this storage (instead of a hash map)
         {"missingdistancepolicy", null, true, "max", DistanceMatrix.MissingDistancePolicy.names()}, // what happens when the distance between a pair of objects is not known
         {"spanningtreefile", null, true}, // output the spanning tree (implicitly) formed during the algorithm.
                                           // (the spanning tree contains the elements (leaves of the dendrogram) only)
@@ -40,6 +42,9 @@ public class HClust {
         {"max_outliers", null, true}, // if outlier detection is in use, this is the max number of nodes labeled as outliers...
         {"outlier_detection", "o", true, "none", OutlierDetection.names()}, // how to detect outliers
         {"no_heap", null, false}, // use the old impl
+        {"indexed_heap", null, false}, // use an int-indexed heap instead of a BinaryHeap of object pairs (same algorithm as the default impl)
+        {"nn_chain", null, false}, // use the nearest-neighbor-chain impl (primitive arrays, O(n^2) memory and time; no spanning tree output)
+        {"numthreads", null, true, "1"}, // number of threads for computing the distances with nn_chain (0 for all processors)
         // logging (TODO: implement generic arg def into logger, use that)
         { Logger.PARAM_NAME_LOG_LEVEL, null, true,
             new Integer(Logger.LOGLEVEL_INFO) 
@@ -180,6 +185,132 @@ public class HClust {
     }
     
     
+    /**
+     * Same algorithm as {@link #performClustering(HClusterDistanceFunction, Collection)},
+     * but with an {@link IntDoubleIndexedHeap} instead of a BinaryHeap of 
+     * UnorderedPairs and a MultiMap of pairs by cluster.
+     * 
+     * Each cluster without a parent occupies a "slot" 0..n-1 (initially, the 
+     * data points; a new cluster takes the slot of one of its children), and
+     * the heap contains pairs of slots, represented by their index in a 
+     * condensed (upper-triangular) matrix. The pairs of a merged cluster are
+     * then simply found by going through the other active slots.
+     * 
+     * Memory usage is 4 bytes per pair for the positions of the heap, and 12 bytes
+     * per pair with a finite distance for the heap itself; compared to about 
+     * 150 bytes per pair for the objects of the original implementation.
+     * 
+     * On ties, the pairs may be merged in a different order than in the
+     * original implementation.
+     */
+    public static <T> HCluster<T> performClustering_indexedHeap(HClusterDistanceFunction<T> pDistanceFunction,
+                                                                Collection<T> pDataPoints) {
+        if (pDataPoints.size() < 2) {
+            throw new RuntimeException("Cannot cluster less than 2 data points!");
+        }
+        
+        Logger.info("Clustering "+pDataPoints.size()+" data points (using an indexed heap)...");
+        
+        Object[] clusterBySlot = new LinkedHashSet<T>(pDataPoints).toArray();
+        int n = clusterBySlot.length;
+        long numPairs = (long)n * (n-1) / 2;
+        if (numPairs > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Too many data points for an indexed heap: "+n);
+        }
+        
+        IntDoubleIndexedHeap heap = new IntDoubleIndexedHeap((int)numPairs);
+        for (int i=0; i<n; i++) {                
+            for (int j=i+1; j<n; j++) {
+                Double d = pDistanceFunction.dist(new UnorderedPair<Object>(clusterBySlot[i], clusterBySlot[j]));
+                if (d != null) {
+                    heap.add(pairIndex(n, i, j), d);
+                }                
+            }
+        }
+        
+        Logger.info("Added "+heap.size()+" pairs to heap");
+        
+        int numClusters = 0;
+        HCluster<T> root = null;
+        for (int m=0; m<n-1; m++) {
+            if (heap.isEmpty()) {
+                throw new RuntimeException("No distances left between the remaining "+(n-m)+" clusters!");
+            }
+            
+            // find closest pair
+            double closestDistance = heap.topKey();
+            int pair = heap.pop();
+            int a = pairFirstSlot(n, pair);
+            int b = pairSecondSlot(n, pair, a);
+            
+            // remove old distances from heap:
+            for (int c=0; c<n; c++) {
+                if (clusterBySlot[c] != null && c != a && c != b) {
+                    int pairA = pairIndex(n, a, c);
+                    if (heap.contains(pairA)) {
+                        heap.remove(pairA);
+                    }
+                    int pairB = pairIndex(n, b, c);
+                    if (heap.contains(pairB)) {
+                        heap.remove(pairB);
+                    }
+                }
+            }
+            
+            // actually create the new cluster (into slot a):
+            HCluster<T> newCluster = new HCluster<T>(new UnorderedPair<Object>(clusterBySlot[a], clusterBySlot[b]), 
+                                                     closestDistance, ++numClusters);
+            clusterBySlot[a] = newCluster;
+            clusterBySlot[b] = null;
+            root = newCluster;
+            
+            // compute distances to all old clusters and put to heap:
+            for (int c=0; c<n; c++) {
+                if (clusterBySlot[c] != null && c != a) {
+                    Double d = pDistanceFunction.dist(new UnorderedPair<Object>(newCluster, clusterBySlot[c]));
+                    if (d != null) {
+                        heap.add(pairIndex(n, a, c), d);
+                    }
+                }
+            }
+        }
+        
+        if (heap.size() > 0) {
+            throw new RuntimeException("There are still "+heap.size()+" objects in the heap!");
+        }
+        
+        return root;
+    }
+    
+    /** Index of pair (i,j), i != j, in a condensed matrix of n elements */
+    private static int pairIndex(int n, int i, int j) {
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return (int)((long)n*i - (long)i*(i+1)/2 + (j-i-1));
+    }
+    
+    /** Inverse of pairIndex: the smaller slot of the pair */
+    private static int pairFirstSlot(int n, int pPair) {
+        // solve the row from the quadratic formula, then fix possible rounding errors
+        double nn = 2.0*n - 1;
+        int i = (int)((nn - Math.sqrt(nn*nn - 8.0*pPair)) / 2);
+        while (i > 0 && pairIndex(n, i, i+1) > pPair) {
+            i--;
+        }
+        while (i+2 < n && pairIndex(n, i+1, i+2) <= pPair) {
+            i++;
+        }
+        return i;
+    }
+    
+    /** Inverse of pairIndex: the larger slot of the pair */
+    private static int pairSecondSlot(int n, int pPair, int pFirstSlot) {
+        return pPair - pairIndex(n, pFirstSlot, pFirstSlot+1) + pFirstSlot + 1;
+    }
+    
     public static <T> HCluster performClustering_old(HClusterDistanceFunction pDistanceFunction,
                                                       Collection<T> pDataPoints) {
         
@@ -404,8 +535,8 @@ public class HClust {
         
         Logger.info(args.toString2(Collections.EMPTY_SET));
         
-        IDataManagingDistanceFunction distanceFunction = null;
-        List dataPoints = null;            
+        IDataManagingDistanceFunction<String> distanceFunction = null;
+        List<String> dataPoints = null;            
         String distanceFile = null;
         
         if (args.isDefined("distancefile")) {
@@ -415,9 +546,22 @@ public class HClust {
             
             MissingDistancePolicy mdp = DistanceMatrix.MissingDistancePolicy.getByName(args.getOpt("missingdistancepolicy")); 
             
-            DistanceMatrix distanceMatrix = new DistanceMatrix(distanceFile, mdp);
-            if (args.isDefined("minuslog")) {
-                distanceMatrix.minusLogTransform();
+            IDataManagingDistanceFunction<String> distanceMatrix;
+            if (args.isDefined("matrixstorage")) {
+                CondensedDistanceMatrix.StorageMode storageMode =
+                    CondensedDistanceMatrix.StorageMode.getByName(args.getOpt("matrixstorage"));
+                CondensedDistanceMatrix<String> condensedMatrix = new CondensedDistanceMatrix<String>(distanceFile, mdp, storageMode);
+                if (args.isDefined("minuslog")) {
+                    condensedMatrix.minusLogTransform();
+                }
+                distanceMatrix = condensedMatrix;
+            }
+            else {
+                DistanceMatrix<String> hashedMatrix = new DistanceMatrix<String>(distanceFile, mdp);
+                if (args.isDefined("minuslog")) {
+                    hashedMatrix.minusLogTransform();
+                }
+                distanceMatrix = hashedMatrix;
             }
             
             if (args.isDefined("datapointfile")) {
@@ -427,7 +571,7 @@ public class HClust {
             }               
             else {
                 // deduce data points from distance file
-                dataPoints = new ArrayList(distanceMatrix.getDataPoints());
+                dataPoints = new ArrayList<String>(distanceMatrix.getDataPoints());
             }
                         
             distanceFunction = distanceMatrix;
@@ -445,7 +589,7 @@ public class HClust {
                 dataPoints = IOUtils.readLines(args.getOpt("datapointfile"));
             }               
             else {
-                dataPoints = new ArrayList(distanceFunction.getDataPoints());
+                dataPoints = new ArrayList<String>(distanceFunction.getDataPoints());
             }
         }
         else {
@@ -453,7 +597,7 @@ public class HClust {
         }
         
         String clusterdistancefunctionName = args.getOpt("linkage");
-        HClusterDistanceFunction cDist = 
+        HClusterDistanceFunction<String> cDist = 
             HClusterDistanceFunction.Linkage.getImpl(clusterdistancefunctionName, distanceFunction);                
         
         if (args.isDefined("distancefunction")) {
@@ -462,9 +606,26 @@ public class HClust {
         
         // perform clustering
         Logger.info("Start actual clustering...");        
-        HCluster root = args.isDefined("no_heap")
-                         ? HClust.performClustering_old(cDist, dataPoints)
-                         : HClust.performClustering(cDist, dataPoints);                
+        HCluster root;
+        if (args.isDefined("nn_chain")) {
+            if (args.isDefined("spanningtreefile")) {
+                Utils.die("Option spanningtreefile is not supported with nn_chain");
+            }
+            root = NNChainHClust.performClustering(distanceFunction, dataPoints,
+                                                   HClusterDistanceFunction.Linkage.getByName(clusterdistancefunctionName),
+                                                   args.getIntOpt("numthreads"));
+        }
+        else {
+            if (args.isDefined("no_heap")) {
+                root = HClust.performClustering_old(cDist, dataPoints);
+            }
+            else if (args.isDefined("indexed_heap")) {
+                root = HClust.performClustering_indexedHeap(cDist, dataPoints);
+            }
+            else {
+                root = HClust.performClustering(cDist, dataPoints);
+            }
+        }
         
         
         String spanningTreeFile = args.getOpt("spanningtreefile");
@@ -570,7 +731,7 @@ public class HClust {
                         }
                         else {
                             // root is just a single-node cluster itself                            
-                            d = distanceFunction.dist(o, cRoot); 
+                            d = distanceFunction.dist((String)o, (String)cRoot); 
                         }
                         
                         if (bestClusterRoot == null || d < bestDistance) {
@@ -168,11 +168,15 @@ public abstract class HClusterDistanceFunction<T> {
 
         public static HClusterDistanceFunction getImpl(String pName, 
                                                        IDistanceFunction pBaseDistanceFunction) throws Exception {
+            HClusterDistanceFunction d = (HClusterDistanceFunction)getByName(pName).mImplClass.newInstance();
+            d.init(pBaseDistanceFunction);
+            return d;
+        }
+
+        public static Linkage getByName(String pName) {
             for (Linkage l: Linkage.values()) {
                 if (l.mName.equals(pName)) {
-                    HClusterDistanceFunction d = (HClusterDistanceFunction)l.mImplClass.newInstance();
-                    d.init(pBaseDistanceFunction);
-                    return d;
+                    return l;
                 }
             }
             throw new RuntimeException("No such linkage function: " + pName);
@@ -0,0 +1,268 @@
+package util.algorithm.clustering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import util.algorithm.clustering.HClusterDistanceFunction.Linkage;
+import util.collections.UnorderedPair;
+import util.dbg.Logger;
+
+/**
+ * Hierarchical clustering using the nearest-neighbor-chain algorithm.
+ *
+ * Unlike {@link HClust#performClustering(HClusterDistanceFunction, Collection)},
+ * does not store pairs in a heap nor in any other object-based structure;
+ * instead, all distances are kept in a single condensed (upper-triangular)
+ * double array indexed by the positions of the data points, and distances
+ * from merged clusters are updated in place using the Lance-Williams formulas.
+ *
+ * Time is O(n^2), memory is n(n-1)/2 doubles (plus O(n) for the rest).
+ *
+ * Works for single, complete and average linkage, which are all "reducible",
+ * meaning that the nn-chain algorithm produces the same dendrogram as the
+ * naive algorithm that always merges the globally closest pair. Merges are
+ * found in a different order than in the naive algorithm, so they are sorted
+ * by distance before building the tree; this way HCluster.mNum still has the
+ * property that an ancestor always has a larger number than a descendant
+ * (which is needed by {@link HClust#cutTree}).
+ *
+ * Missing distances (null returned by the base function) are considered
+ * to be infinite.
+ *
+ * Note that as no HClusterDistanceFunction is involved,
+ * {@link HClusterDistanceFunction#getActualPair(UnorderedPair)} is not available
+ * for trees produced by this class.
+ */
+public class NNChainHClust {
+
+    /** Max number of pairs that can be stored into a single java array */
+    private static final long MAX_PAIRS = Integer.MAX_VALUE - 8;
+
+    private final Linkage mLinkage;
+
+    /** Number of data points */
+    private final int mN;
+
+    /** Condensed distance matrix; see {@link #ind(int, int)} */
+    private final double[] mDist;
+
+    /** Number of data points in the cluster represented by each slot */
+    private final int[] mSize;
+
+    /** False for slots that have been merged into another slot */
+    private final boolean[] mActive;
+
+    private NNChainHClust(Linkage pLinkage, int pN) {
+        long numPairs = (long)pN * (pN-1) / 2;
+        if (numPairs > MAX_PAIRS) {
+            throw new RuntimeException("Too many data points for nn-chain clustering: "+pN);
+        }
+        mLinkage = pLinkage;
+        mN = pN;
+        mDist = new double[(int)numPairs];
+        mSize = new int[pN];
+        mActive = new boolean[pN];
+        Arrays.fill(mSize, 1);
+        Arrays.fill(mActive, true);
+    }
+
+    /**
+     * Perform clustering, computing each base distance exactly once.
+     *
+     * @return root of the dendrogram, as for {@link HClust#performClustering}.
+     */
+    public static <T> HCluster<T> performClustering(IDistanceFunction<T> pBaseFunction,
+                                                    Collection<T> pDataPoints,
+                                                    Linkage pLinkage) {
+        return performClustering(pBaseFunction, pDataPoints, pLinkage, 1);
+    }
+
+    /**
+     * As above, but compute the base distances using pNumThreads threads
+     * (see {@link ParallelDistanceMatrixBuilder}).
+     */
+    public static <T> HCluster<T> performClustering(IDistanceFunction<T> pBaseFunction,
+                                                    Collection<T> pDataPoints,
+                                                    Linkage pLinkage,
+                                                    int pNumThreads) {
+        if (pDataPoints.size() < 2) {
+            throw new RuntimeException("Cannot cluster less than 2 data points!");
+        }
+
+        Logger.info("Clustering "+pDataPoints.size()+" data points using nn-chain, linkage="+pLinkage);
+
+        List<T> points = new ArrayList<T>(pDataPoints);
+        NNChainHClust engine = new NNChainHClust(pLinkage, points.size());
+
+        final double[] dist = engine.mDist;
+        ParallelDistanceMatrixBuilder.computeDistances(pBaseFunction, points, pNumThreads,
+                                                       new ParallelDistanceMatrixBuilder.Target() {
+            public void set(int pI, int pJ, long pInd, double pDist) {
+                dist[(int)pInd] = Double.isNaN(pDist) ? Double.POSITIVE_INFINITY : pDist;
+            }
+        });
+
+        return engine.cluster(points);
+    }
+
+    /** Index of pair (i,j), i != j, in the condensed matrix */
+    private int ind(int i, int j) {
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return (int)((long)mN*i - (long)i*(i+1)/2 + (j-i-1));
+    }
+
+    private <T> HCluster<T> cluster(List<T> pPoints) {
+
+        int numMerges = mN-1;
+
+        // merges in the order they are found; slots are identified by
+        // the index of one of the original data points in the cluster
+        final int[] mergeSlot1 = new int[numMerges];
+        final int[] mergeSlot2 = new int[numMerges];
+        final double[] mergeDist = new double[numMerges];
+
+        int[] chain = new int[mN];
+        int chainLen = 0;
+        int nextStart = 0;
+
+        for (int m=0; m<numMerges; m++) {
+
+            if (chainLen == 0) {
+                while (!mActive[nextStart]) {
+                    nextStart++;
+                }
+                chain[chainLen++] = nextStart;
+            }
+
+            while (true) {
+                int a = chain[chainLen-1];
+
+                // find nearest neighbor of a; prefer the previous chain element
+                // on ties, to guarantee termination
+                int b = -1;
+                double bestD = Double.POSITIVE_INFINITY;
+                if (chainLen >= 2) {
+                    b = chain[chainLen-2];
+                    bestD = mDist[ind(a, b)];
+                }
+                for (int c=0; c<mN; c++) {
+                    if (c != a && mActive[c]) {
+                        double d = mDist[ind(a, c)];
+                        if (d < bestD || b == -1) {
+                            b = c;
+                            bestD = d;
+                        }
+                    }
+                }
+
+                if (chainLen >= 2 && b == chain[chainLen-2]) {
+                    // a and b are reciprocal nearest neighbors => merge
+                    chainLen -= 2;
+                    merge(a, b);
+                    mergeSlot1[m] = a;
+                    mergeSlot2[m] = b;
+                    mergeDist[m] = bestD;
+                    break;
+                }
+                else {
+                    chain[chainLen++] = b;
+                }
+            }
+        }
+
+        return buildTree(pPoints, mergeSlot1, mergeSlot2, mergeDist);
+    }
+
+    /** Merge slot pA into pB, updating distances of pB by Lance-Williams */
+    private void merge(int pA, int pB) {
+        int sizeA = mSize[pA];
+        int sizeB = mSize[pB];
+        mActive[pA] = false;
+        for (int c=0; c<mN; c++) {
+            if (c != pB && mActive[c]) {
+                double dA = mDist[ind(pA, c)];
+                int indB = ind(pB, c);
+                double dB = mDist[indB];
+                double d;
+                if (mLinkage == Linkage.SINGLE) {
+                    d = Math.min(dA, dB);
+                }
+                else if (mLinkage == Linkage.COMPLETE) {
+                    d = Math.max(dA, dB);
+                }
+                else if (mLinkage == Linkage.AVG) {
+                    if (dA == Double.POSITIVE_INFINITY || dB == Double.POSITIVE_INFINITY) {
+                        d = Double.POSITIVE_INFINITY;
+                    }
+                    else {
+                        d = (sizeA*dA + sizeB*dB) / (sizeA + sizeB);
+                    }
+                }
+                else {
+                    throw new RuntimeException("Unsupported linkage: "+mLinkage);
+                }
+                mDist[indB] = d;
+            }
+        }
+        mSize[pB] = sizeA + sizeB;
+    }
+
+    /**
+     * Sort merges by distance (stable, so that a cluster is always created
+     * before the cluster it is merged into, even on ties), then form the actual
+     * HCluster objects.
+     */
+    private static <T> HCluster<T> buildTree(List<T> pPoints,
+                                             int[] pSlot1,
+                                             int[] pSlot2,
+                                             final double[] pDist) {
+        int numMerges = pDist.length;
+        Integer[] order = new Integer[numMerges];
+        for (int i=0; i<numMerges; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer p1, Integer p2) {
+                return Double.compare(pDist[p1], pDist[p2]);
+            }
+        });
+
+        // union-find over original data point indices; the tree node
+        // corresponding to each root is stored in nodes
+        int n = pPoints.size();
+        int[] parent = new int[n];
+        Object[] nodes = new Object[n];
+        for (int i=0; i<n; i++) {
+            parent[i] = i;
+            nodes[i] = pPoints.get(i);
+        }
+
+        HCluster<T> root = null;
+        int numClusters = 0;
+        for (int m: order) {
+            int r1 = find(parent, pSlot1[m]);
+            int r2 = find(parent, pSlot2[m]);
+            root = new HCluster<T>(new UnorderedPair<Object>(nodes[r1], nodes[r2]), pDist[m], ++numClusters);
+            parent[r1] = r2;
+            nodes[r1] = null;
+            nodes[r2] = root;
+        }
+
+        return root;
+    }
+
+    private static int find(int[] pParent, int pX) {
+        while (pParent[pX] != pX) {
+            pParent[pX] = pParent[pParent[pX]];
+            pX = pParent[pX];
+        }
+        return pX;
+    }
+}
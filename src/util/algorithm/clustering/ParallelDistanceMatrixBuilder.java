@@ -0,0 +1,146 @@
+package util.algorithm.clustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import util.dbg.Logger;
+
+/**
+ * Computes all pairwise distances of a list of elements in parallel.
+ *
+ * The upper triangle of the distance matrix is divided into square tiles of
+ * TILE_SIZE x TILE_SIZE elements (small enough for the elements of both
+ * "sides" of a tile to stay in cache while the tile is processed), and the
+ * tiles are processed on a ForkJoinPool by recursively splitting the list of
+ * tiles.
+ *
+ * Results are written into condensed (upper-triangular) positions, so each
+ * pair is always written to the same place, irrespective of the number of
+ * threads; for thread-safe (and deterministic) distance functions the result
+ * is thus the same as when computing sequentially.
+ *
+ * The distance function must of course be thread-safe when using more than
+ * one thread.
+ */
+public class ParallelDistanceMatrixBuilder {
+
+    /** Number of elements on each side of a tile */
+    public static final int TILE_SIZE = 64;
+
+    /** Do not split lists of tiles shorter than this into further tasks */
+    private static final int MIN_TILES_PER_TASK = 4;
+
+    /**
+     * Receives the computed distances. Called concurrently from several
+     * threads, but never twice for the same position.
+     */
+    public interface Target {
+        /**
+         * @param pI index of the first element of the pair
+         * @param pJ index of the second element of the pair, pI < pJ
+         * @param pInd position of pair (i,j) in the condensed matrix, that is,
+         *   n*i - i*(i+1)/2 + (j-i-1).
+         * @param pDist distance, or NaN if the function returned null (=missing).
+         */
+        public void set(int pI, int pJ, long pInd, double pDist);
+    }
+
+    /**
+     * @param pNumThreads number of threads; non-positive means number of available processors
+     */
+    public static <T> void computeDistances(IDistanceFunction<T> pFunction,
+                                            List<T> pElements,
+                                            int pNumThreads,
+                                            Target pTarget) {
+
+        if (pNumThreads <= 0) {
+            pNumThreads = Runtime.getRuntime().availableProcessors();
+        }
+
+        // random access needed
+        List<T> elements = new ArrayList<T>(pElements);
+        int n = elements.size();
+        int numBlocks = (n + TILE_SIZE - 1) / TILE_SIZE;
+
+        // tiles (bi, bj), bi <= bj, encoded as bi*numBlocks+bj
+        long[] tiles = new long[numBlocks * (numBlocks+1) / 2];
+        int k = 0;
+        for (int bi=0; bi<numBlocks; bi++) {
+            for (int bj=bi; bj<numBlocks; bj++) {
+                tiles[k++] = (long)bi * numBlocks + bj;
+            }
+        }
+
+        Logger.info("Computing "+((long)n*(n-1)/2)+" distances in "+tiles.length+" tiles using "+pNumThreads+" threads");
+
+        TileTask<T> root = new TileTask<T>(pFunction, elements, numBlocks, tiles, 0, tiles.length, pTarget);
+        if (pNumThreads == 1) {
+            root.computeTiles();
+        }
+        else {
+            ForkJoinPool pool = new ForkJoinPool(pNumThreads);
+            try {
+                pool.invoke(root);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static class TileTask<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final IDistanceFunction<T> mFunction;
+        private final List<T> mElements;
+        private final int mNumBlocks;
+        private final long[] mTiles;
+        private final int mStart;
+        private final int mEnd;
+        private final Target mTarget;
+
+        TileTask(IDistanceFunction<T> pFunction, List<T> pElements, int pNumBlocks,
+                 long[] pTiles, int pStart, int pEnd, Target pTarget) {
+            mFunction = pFunction;
+            mElements = pElements;
+            mNumBlocks = pNumBlocks;
+            mTiles = pTiles;
+            mStart = pStart;
+            mEnd = pEnd;
+            mTarget = pTarget;
+        }
+
+        protected void compute() {
+            if (mEnd - mStart <= MIN_TILES_PER_TASK) {
+                computeTiles();
+            }
+            else {
+                int mid = (mStart + mEnd) >>> 1;
+                invokeAll(new TileTask<T>(mFunction, mElements, mNumBlocks, mTiles, mStart, mid, mTarget),
+                          new TileTask<T>(mFunction, mElements, mNumBlocks, mTiles, mid, mEnd, mTarget));
+            }
+        }
+
+        void computeTiles() {
+            int n = mElements.size();
+            for (int t=mStart; t<mEnd; t++) {
+                int bi = (int)(mTiles[t] / mNumBlocks);
+                int bj = (int)(mTiles[t] % mNumBlocks);
+                int iEnd = Math.min(n, (bi+1) * TILE_SIZE);
+                int jEnd = Math.min(n, (bj+1) * TILE_SIZE);
+                for (int i=bi*TILE_SIZE; i<iEnd; i++) {
+                    T e1 = mElements.get(i);
+                    int jStart = Math.max(i+1, bj*TILE_SIZE);
+                    long rowStart = (long)n*i - (long)i*(i+1)/2 - i - 1;
+                    for (int j=jStart; j<jEnd; j++) {
+                        Double d = mFunction.dist(e1, mElements.get(j));
+                        mTarget.set(i, j, rowStart + j, d != null ? d : Double.NaN);
+                    }
+                }
+            }
+        }
+    }
+}
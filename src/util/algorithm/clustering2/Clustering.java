@@ -6,6 +6,7 @@ import util.CollectionUtils;
 import util.ConversionUtils;
 import util.IllegalParamsException;
 import util.MathUtils;
+import util.MinMax;
 import util.ObjectWrapper;
 import util.Range;
 import util.SU;
@@ -702,7 +703,7 @@ public class Clustering<T> {
      * an "outlier cluster" (actually conceptually similar to the case
      * where outliers would be a set of single-node clusters... 
      */
-    private static List<List<ClusterSize>> formAllClusteringSizes(int pNumObjects,
+    static List<List<ClusterSize>> formAllClusteringSizes(int pNumObjects,
                                                                   int pMinClusterSize,
                                                                   Integer pMaxClusterSize,
                                                                   Integer pMaxNumClusters,
@@ -919,6 +920,8 @@ public class Clustering<T> {
     
     public static class CostFunctionImpl_SUM<T> extends AbstractCostFunctionImpl<T> {
                         
+        private boolean mMonotone = false;
+        
         public CostFunctionImpl_SUM(Function<Collection<T>, Double> f) {
             super(f);            
         }
@@ -927,6 +930,39 @@ public class Clustering<T> {
             return "SUM of: "+mSingleClusterFunction.getName();
         }
         
+        /**
+         * Declare that the single cluster function is non-negative and never 
+         * decreases when members are added to a cluster. This enables 
+         * {@link #bound} when minimizing. 
+         */
+        public void setMonotone(boolean pMonotone) {
+            mMonotone = pMonotone;
+        }
+        
+        /**
+         * For a monotone single cluster function and a non-negative outlier cost, 
+         * the clusters that already have at least 2 members cannot get any cheaper,
+         * and all other clusters (including those yet to be formed) cost at least 0.
+         */
+        @Override
+        public double bound(List<? extends Collection<T>> pClusters, int pNumUnassigned, MinMax pMinMax) {
+            if (!mMonotone || pMinMax != MinMax.MIN || (mOutlierCost != null && mOutlierCost < 0)) {
+                return Double.NaN;
+            }
+            
+            double bound = 0;
+            for (int i=0; i<pClusters.size(); i++) {
+                Collection<T> members = pClusters.get(i);
+                if (i == 0 && mOutlierCost != null) {
+                    bound += mOutlierCost;
+                }
+                else if (members.size() >= 2) {
+                    bound += mSingleClusterFunction.compute(members);
+                }
+            }
+            return bound;
+        }
+        
         public double compute(Clustering<T> pClustering, boolean pStoreExplanation) {
             
             if (pClustering == null) {
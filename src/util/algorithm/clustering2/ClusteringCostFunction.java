@@ -1,5 +1,9 @@
 package util.algorithm.clustering2;
 
+import java.util.Collection;
+import java.util.List;
+
+import util.MinMax;
 import util.collections.Function;
 
 public abstract class ClusteringCostFunction <T> implements Function<Clustering<T>, Double> {
@@ -13,5 +17,18 @@ public abstract class ClusteringCostFunction <T> implements Function<Clustering<
                 
     public abstract double compute(Clustering<T> pClustering, boolean pStoreExplanation);
              
+    /**
+     * Bound for pruning branch-and-bound searches (see {@link ExhaustiveClust}).
+     * pClusters contain the elements assigned so far (the first one being the 
+     * outlier cluster, if there is one), and pNumUnassigned elements are still
+     * to be added, either to these or to new clusters. 
+     * 
+     * @return a value that no completion of the partial clustering can improve on 
+     * (for MIN, a lower bound of the cost; for MAX, an upper bound of the score),
+     * or NaN if no such bound is known, which is the default. 
+     */
+    public double bound(List<? extends Collection<T>> pClusters, int pNumUnassigned, MinMax pMinMax) {
+        return Double.NaN;
+    }
 
 }
@@ -1,16 +1,46 @@
 package util.algorithm.clustering2;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import util.MinMax;
 import util.dbg.Logger;
 
+/**
+ * Finds the optimal clustering by (in principle) trying all partitions of the
+ * data points that satisfy the given constraints.
+ * 
+ * The partitions are enumerated lazily, depth-first, as restricted growth strings:
+ * element i is put into one of the clusters already opened by elements 0..i-1, or 
+ * opens the next cluster (plus the outlier cluster, if any, which is always 
+ * "open"). Each partition is thus generated exactly once, and only the current 
+ * path of the search tree is kept in memory. Subtrees are pruned when they cannot
+ * satisfy the size constraints, or when the cost function can bound the cost of
+ * any completion to be worse than the best clustering found so far 
+ * (see {@link ClusteringCostFunction#bound}). If several threads are requested
+ * (which requires a thread-safe cost function), the first levels of the search tree
+ * are split into tasks run on a ForkJoinPool.
+ * 
+ * Of several equally good clusterings, the one enumerated first is returned,
+ * irrespective of the number of threads.
+ */
 public class ExhaustiveClust {
     
+    /** Number of elements assigned before the search tree is no more split into tasks */
+    private static final int SPLIT_DEPTH = 6;
+    
     /**
      * perform clustering by exhaustively testing all options with 
-     * a predefined number and sizes of clusters.
+     * a predefined number and sizes of clusters, in a single thread.
      * 
      * @param pDataPoints
      * @param pClusterSizes
@@ -29,38 +59,71 @@ public class ExhaustiveClust {
             ClusteringCostFunction<T> pClusteringCostFunction,
             boolean pHaveOutlierCluster,
             MinMax pMinMax) {
-                        
-        List<Clustering<T>> clusterings = 
-            Clustering.formAllClusterings(pDataPoints, pMinClusterSize, pMaxClusterSize, 
-                                          pConstraint, pHaveOutlierCluster, null);  
-                                                  
-
-        double optCost = pMinMax.worstValue;
-        Clustering bestClustering = null;
+        return performClustering(pDataPoints, pMinClusterSize, pMaxClusterSize, pConstraint,
+                                 pClusteringCostFunction, pHaveOutlierCluster, pMinMax, 1);
+    }
+    
+    /**
+     * As above, but with a given number of threads. The cost function must be 
+     * thread-safe when using more than one thread.
+     *  
+     * @param pNumThreads non-positive means number of available processors
+     */
+    public static <T> Clustering<T> performClustering(
+            Collection<T> pDataPoints,
+            int pMinClusterSize,
+            Integer pMaxClusterSize,
+            Constraint pConstraint,
+            ClusteringCostFunction<T> pClusteringCostFunction,
+            boolean pHaveOutlierCluster,
+            MinMax pMinMax,
+            int pNumThreads) {
+        
+        if (pNumThreads <= 0) {
+            pNumThreads = Runtime.getRuntime().availableProcessors();
+        }
         
-//        Logger.info("Formed "+clusterings.size()+" different clusterings");
-//                     SU.toString(clusterings,"\n\n"));        
+        List<List<ClusterSize>> possibleSizes; 
+        if (pConstraint instanceof ClusterSizesConstraint) {
+            possibleSizes = Collections.singletonList(((ClusterSizesConstraint)pConstraint).sizes);
+        }
+        else if (pConstraint instanceof KConstraint) {
+            KConstraint kc = (KConstraint)pConstraint;
+            possibleSizes = Clustering.formAllClusteringSizes(pDataPoints.size(), pMinClusterSize, pMaxClusterSize, kc.k, kc.k, pHaveOutlierCluster);
+        }
+        else if (pConstraint instanceof MaxKConstraint) {
+            MaxKConstraint mkC = (MaxKConstraint)pConstraint;
+            possibleSizes = Clustering.formAllClusteringSizes(pDataPoints.size(), pMinClusterSize, pMaxClusterSize, mkC.maxk, 1, pHaveOutlierCluster);
+        }
+        else {
+            throw new RuntimeException("Unknown constraint: "+pConstraint);
+        }
         
-        for (Clustering<T> c: clusterings) {
-            double cost = pClusteringCostFunction.compute(c);
-            // Logger.info("Computed cost for clustering: "+cost);
-            c.setScore(cost);
-//            Logger.info("Computed cost for clustering: "+c+": "+cost);
-            
-            if (pMinMax == MinMax.MIN) {
-                if (cost < optCost) {
-                    optCost = cost;
-                    bestClustering = c;
-                }
+        Search<T> search = new Search<T>(new ArrayList<T>(pDataPoints), possibleSizes, 
+                                         pClusteringCostFunction, pMinMax);
+        SearchTask<T> root = new SearchTask<T>(search, new int[0]);
+        if (pNumThreads == 1) {
+            search.search(search.new State(root.mPrefix), 0);
+        }
+        else {
+            ForkJoinPool pool = new ForkJoinPool(pNumThreads);
+            try {
+                pool.invoke(root);
             }
-            else if (pMinMax == MinMax.MAX) {
-                if (cost > optCost) {
-                    optCost = cost;
-                    bestClustering = c;
-                }
+            finally {
+                pool.shutdown();
             }
         }
         
+        Logger.info("Evaluated "+search.mNumEvaluated.get()+" clusterings, pruned "+
+                    search.mNumPruned.get()+" subtrees using bounds");
+        
+        if (search.mBestAssignment == null) {
+            throw new RuntimeException("No clustering satisfies the constraints: "+possibleSizes);
+        }
+        
+        Clustering<T> bestClustering = search.toClustering(search.mBestAssignment);
+        bestClustering.setScore(pClusteringCostFunction.compute(bestClustering, false));
         pClusteringCostFunction.compute(bestClustering, true);
         
         Logger.info("Best clustering has "+pMinMax.costOrScore+": "+bestClustering.getScore());
@@ -68,6 +131,287 @@ public class ExhaustiveClust {
         return bestClustering;
         
     }
+    
+    /**
+     * State shared by all search tasks: the constraints, and the best 
+     * clustering found so far.  
+     */
+    private static class Search<T> {
+        
+        private final List<T> mElements;
+        private final ClusteringCostFunction<T> mCostFunction;
+        private final MinMax mMinMax;
+        
+        /** Is block 0 the outlier cluster (which is always "open", even if empty) */
+        private final boolean mHaveOutlierCluster;
+        /** Index of the first non-outlier block */
+        private final int mFirstBlock;
+        
+        /** 
+         * Allowed sizes, each as a list of: outlier cluster size (if there 
+         * is an outlier cluster), and non-outlier sizes in descending order 
+         */
+        private final Set<List<Integer>> mAllowedSizes = new HashSet<List<Integer>>();
+        private int mMinNumClusters = Integer.MAX_VALUE;
+        private int mMaxNumClusters = 0;
+        private int mMinClusterSize = Integer.MAX_VALUE;
+        private int mMaxClusterSize = 0;
+        private int mMaxOutlierClusterSize = 0;
+        
+        private volatile double mBestCost;
+        private int[] mBestAssignment;
+        
+        private final AtomicLong mNumEvaluated = new AtomicLong();
+        private final AtomicLong mNumPruned = new AtomicLong();
+        
+        Search(List<T> pElements, List<List<ClusterSize>> pPossibleSizes,
+               ClusteringCostFunction<T> pCostFunction, MinMax pMinMax) {
+            mElements = pElements;
+            mCostFunction = pCostFunction;
+            mMinMax = pMinMax;
+            mBestCost = pMinMax.worstValue;
+            
+            boolean haveOutlierCluster = false;
+            for (List<ClusterSize> sizes: pPossibleSizes) {
+                for (ClusterSize size: sizes) {
+                    haveOutlierCluster |= size.isOutlier;
+                }
+            }
+            mHaveOutlierCluster = haveOutlierCluster;
+            mFirstBlock = haveOutlierCluster ? 1 : 0;
+            
+            for (List<ClusterSize> sizes: pPossibleSizes) {
+                int outlierSize = 0;
+                List<Integer> clusterSizes = new ArrayList<Integer>();
+                for (ClusterSize size: sizes) {
+                    if (size.isOutlier) {
+                        outlierSize += size.size;
+                    }
+                    else if (size.size > 0) {
+                        clusterSizes.add(size.size);
+                        mMinClusterSize = Math.min(mMinClusterSize, size.size);
+                        mMaxClusterSize = Math.max(mMaxClusterSize, size.size);
+                    }
+                }
+                Collections.sort(clusterSizes, Collections.reverseOrder());
+                mMinNumClusters = Math.min(mMinNumClusters, clusterSizes.size());
+                mMaxNumClusters = Math.max(mMaxNumClusters, clusterSizes.size());
+                mMaxOutlierClusterSize = Math.max(mMaxOutlierClusterSize, outlierSize);
+                if (haveOutlierCluster) {
+                    clusterSizes.add(0, outlierSize);
+                }
+                mAllowedSizes.add(clusterSizes);
+            }
+        }
+        
+        /** Is pCost1 strictly better than pCost2 */
+        private boolean better(double pCost1, double pCost2) {
+            return mMinMax == MinMax.MIN ? pCost1 < pCost2 : pCost1 > pCost2;
+        }
+        
+        /**
+         * Depth-first search of all completions of pState, in which elements
+         * 0..pNumAssigned-1 have already been assigned.
+         */
+        void search(State pState, int pNumAssigned) {
+            if (prune(pState, pNumAssigned)) {
+                return;
+            }
+            if (pNumAssigned == mElements.size()) {
+                evaluate(pState);
+                return;
+            }
+            int numChoices = numChoices(pState);
+            for (int block=0; block<numChoices; block++) {
+                if (canAssign(pState, block)) {
+                    pState.assign(pNumAssigned, block);
+                    search(pState, pNumAssigned+1);
+                    pState.unassign(pNumAssigned);
+                }
+            }
+        }
+        
+        /** @return number of blocks to try for the next element: the open ones, and possibly a new one */
+        int numChoices(State pState) {
+            return pState.mNumBlocks - mFirstBlock < mMaxNumClusters 
+                   ? pState.mNumBlocks + 1
+                   : pState.mNumBlocks;
+        }
+        
+        boolean canAssign(State pState, int pBlock) {
+            if (pBlock < mFirstBlock) {
+                return pState.mSizes[pBlock] < mMaxOutlierClusterSize;
+            }
+            return pState.mSizes[pBlock] < mMaxClusterSize;
+        }
+        
+        /** @return true, if no completion of pState can be allowed, or better than the best one so far */
+        boolean prune(State pState, int pNumAssigned) {
+            int numLeft = mElements.size() - pNumAssigned;
+            int numClusters = pState.mNumBlocks - mFirstBlock;
+            if (numClusters + numLeft < mMinNumClusters) {
+                return true;
+            }
+            // elements needed to grow the current clusters to the min size
+            int deficit = 0;
+            for (int block=mFirstBlock; block<pState.mNumBlocks; block++) {
+                deficit += Math.max(0, mMinClusterSize - pState.mSizes[block]);
+            }
+            if (deficit > numLeft) {
+                return true;
+            }
+            if (numLeft > 0 && pNumAssigned > 0) {
+                double bound = mCostFunction.bound(pState.mMembers.subList(0, pState.mNumBlocks), numLeft, mMinMax);
+                if (!Double.isNaN(bound) && better(mBestCost, bound)) {
+                    mNumPruned.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        void evaluate(State pState) {
+            List<Integer> sizes = new ArrayList<Integer>(pState.mNumBlocks);
+            for (int block=mFirstBlock; block<pState.mNumBlocks; block++) {
+                sizes.add(pState.mSizes[block]);
+            }
+            Collections.sort(sizes, Collections.reverseOrder());
+            if (mHaveOutlierCluster) {
+                sizes.add(0, pState.mSizes[0]);
+            }
+            if (!mAllowedSizes.contains(sizes)) {
+                return;
+            }
+            
+            double cost = mCostFunction.compute(toClustering(pState.mAssignment), false);
+            mNumEvaluated.incrementAndGet();
+            offer(cost, pState.mAssignment);
+        }
+        
+        /** 
+         * Keep the clustering if it is better than the best one so far, or as 
+         * good but earlier in the order of enumeration.
+         */
+        synchronized void offer(double pCost, int[] pAssignment) {
+            if (better(pCost, mBestCost) 
+                    || (pCost == mBestCost && mBestAssignment != null 
+                        && compare(pAssignment, mBestAssignment) < 0)) {
+                mBestCost = pCost;
+                mBestAssignment = pAssignment.clone();
+            }
+        }
+        
+        private static int compare(int[] p1, int[] p2) {
+            for (int i=0; i<p1.length; i++) {
+                if (p1[i] != p2[i]) {
+                    return p1[i] < p2[i] ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+        
+        Clustering<T> toClustering(int[] pAssignment) {
+            int numBlocks = mFirstBlock;
+            for (int block: pAssignment) {
+                numBlocks = Math.max(numBlocks, block+1);
+            }
+            List<List<T>> members = new ArrayList<List<T>>(numBlocks);
+            for (int block=0; block<numBlocks; block++) {
+                members.add(new ArrayList<T>());
+            }
+            for (int i=0; i<pAssignment.length; i++) {
+                members.get(pAssignment[i]).add(mElements.get(i));
+            }
+            // as with Clustering.formAllClusterings, the outlier cluster comes first, 
+            // and the other ones in descending order of size
+            List<List<T>> clusters = members.subList(mFirstBlock, numBlocks);
+            Collections.sort(clusters, new Comparator<List<T>>() {
+                public int compare(List<T> p1, List<T> p2) {
+                    return Integer.compare(p2.size(), p1.size());
+                }
+            });
+            Clustering<T> clustering = new Clustering<T>(numBlocks, mElements.size());
+            for (int block=0; block<numBlocks; block++) {
+                clustering.add(new FCluster<T>(members.get(block), block < mFirstBlock));
+            }
+            clustering.numberElements();
+            return clustering;
+        }
+        
+        /** A path in the search tree: assignment of the first elements into blocks */
+        class State {
+            final int[] mAssignment = new int[mElements.size()];
+            final int[] mSizes = new int[mFirstBlock + mElements.size()];
+            final List<List<T>> mMembers = new ArrayList<List<T>>();
+            int mNumBlocks = mFirstBlock;
+            
+            State(int[] pPrefix) {
+                for (int block=0; block<mSizes.length; block++) {
+                    mMembers.add(new ArrayList<T>());
+                }
+                for (int i=0; i<pPrefix.length; i++) {
+                    assign(i, pPrefix[i]);
+                }
+            }
+            
+            void assign(int pElement, int pBlock) {
+                mAssignment[pElement] = pBlock;
+                mSizes[pBlock]++;
+                mMembers.get(pBlock).add(mElements.get(pElement));
+                if (pBlock == mNumBlocks) {
+                    mNumBlocks++;
+                }
+            }
+            
+            /** Undo the assignment of pElement, which must be the last assigned one */
+            void unassign(int pElement) {
+                int block = mAssignment[pElement];
+                mSizes[block]--;
+                List<T> members = mMembers.get(block);
+                members.remove(members.size()-1);
+                if (block >= mFirstBlock && mSizes[block] == 0) {
+                    mNumBlocks--;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Searches the subtree below a prefix of assignments; splits into a task per
+     * child until SPLIT_DEPTH elements have been assigned.
+     */
+    private static class SearchTask<T> extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final Search<T> mSearch;
+        private final int[] mPrefix;
+        
+        SearchTask(Search<T> pSearch, int[] pPrefix) {
+            mSearch = pSearch;
+            mPrefix = pPrefix;
+        }
+        
+        protected void compute() {
+            Search<T>.State state = mSearch.new State(mPrefix);
+            int depth = mPrefix.length;
+            if (depth >= SPLIT_DEPTH || depth == mSearch.mElements.size()) {
+                mSearch.search(state, depth);
+            }
+            else if (!mSearch.prune(state, depth)) {
+                List<SearchTask<T>> children = new ArrayList<SearchTask<T>>();
+                int numChoices = mSearch.numChoices(state);
+                for (int block=0; block<numChoices; block++) {
+                    if (mSearch.canAssign(state, block)) {
+                        int[] prefix = Arrays.copyOf(mPrefix, depth+1);
+                        prefix[depth] = block;
+                        children.add(new SearchTask<T>(mSearch, prefix));
+                    }
+                }
+                invokeAll(children);
+            }
+        }
+    }
        
 //    public static <T> Clustering<T> performClustering(
 //            Collection<T> pDataPoints,
@@ -3,6 +3,7 @@ package util.algorithm.clustering2;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -288,67 +289,19 @@ public class ProbBasedClusteringScoreFunction<T> extends ClusteringCostFunction<
                 T oi = objectsList.get(i);
                 T oj = objectsList.get(j);
                 double goodness = mPairwiseFunc.compute(new UnorderedPair(oi,oj));
-                double density;                                                  
                 
                 switch (rel) {
                     case SAME_CLUSTER:
                         numWithinClusterPairs++;
-                        
-                        if (mTruePDFByDegreeSum != null) {
-                            PiecewiseConstantPDF pdf;
-                            int degSum = mDegByElement.get(oi)+mDegByElement.get(oj);
-                            if (degSum > mTruePDFByDegreeSum.length-1) {
-                                pdf = mFallBackTruePDF;
-                            }
-                            else { 
-                                 pdf = mTruePDFByDegreeSum[degSum];
-                            } 
-                            density = pdf.f(goodness);
-                        }
-                        else {
-                            density = mTruePDF.f(goodness);
-                        }
-                        
-                        withinClusterSum += Math.log(density);
+                        withinClusterSum += logDensity(oi, oj, goodness, Distribution.POS);
                         break;
                     case DIFFERENT_CLUSTERS:
                         numBetweenClusterPairs++;
-                        
-                        if (mNullPDFByDegreeSum != null) {
-                            int degSum = mDegByElement.get(oi)+mDegByElement.get(oj);
-                            PiecewiseConstantPDF pdf;
-                            if (degSum > mNullPDFByDegreeSum.length-1) {
-                                pdf = mFallBackNullPDF;
-                            }
-                            else { 
-                                 pdf = mNullPDFByDegreeSum[degSum];
-                            }
-                             
-                            density = pdf.f(goodness);
-                        }
-                        else {
-                            density = mNullPDF.f(goodness);
-                        }
-                        
-                        betweenClustersSum += Math.log(density);
+                        betweenClustersSum += logDensity(oi, oj, goodness, Distribution.NULL);
                         break;
                     case NULL_CLUSTER:
                         numNullPairs++;
-                        if (mNullPDFByDegreeSum != null) {
-                            int degSum = mDegByElement.get(oi)+mDegByElement.get(oj);
-                            PiecewiseConstantPDF pdf;
-                            if (degSum > mNullPDFByDegreeSum.length-1) {
-                                pdf = mFallBackNullPDF;
-                            }
-                            else { 
-                                 pdf = mNullPDFByDegreeSum[degSum];
-                            } 
-                            density = pdf.f(goodness);
-                        }
-                        else {
-                            density = mNullPDF.f(goodness);
-                        }
-                        nullSum += Math.log(density);
+                        nullSum += logDensity(oi, oj, goodness, Distribution.NULL);
                         break;
                     default:
                         throw new AssertionError("Unknown Relation: " + rel);
@@ -403,6 +356,285 @@ public class ProbBasedClusteringScoreFunction<T> extends ClusteringCostFunction<
         return score;
     }
 
+    /**
+     * Log-density of the goodness of pair (oi,oj) under the true (pDistribution=POS)
+     * or null (pDistribution=NULL) distribution, using degree-binned pdfs, if set. 
+     */
+    private double logDensity(T oi, T oj, double goodness, Distribution pDistribution) {
+        PiecewiseConstantPDF[] pdfByDegreeSum;
+        PiecewiseConstantPDF fallBackPDF;
+        PiecewiseConstantPDF pdf;
+        if (pDistribution == Distribution.POS) {
+            pdfByDegreeSum = mTruePDFByDegreeSum;
+            fallBackPDF = mFallBackTruePDF;
+            pdf = mTruePDF;
+        }
+        else {
+            pdfByDegreeSum = mNullPDFByDegreeSum;
+            fallBackPDF = mFallBackNullPDF;
+            pdf = mNullPDF;
+        }
+        
+        if (pdfByDegreeSum != null) {
+            int degSum = mDegByElement.get(oi)+mDegByElement.get(oj);
+            if (degSum > pdfByDegreeSum.length-1) {
+                pdf = fallBackPDF;
+            }
+            else { 
+                pdf = pdfByDegreeSum[degSum];
+            } 
+        }
+        return Math.log(pdf.f(goodness));
+    }
+    
+    /**
+     * Start keeping track of the score of pClustering under moves, see 
+     * {@link IncrementalScore}. 
+     */
+    public IncrementalScore startIncrementalScoring(Clustering<T> pClustering) {
+        return new IncrementalScore(pClustering);
+    }
+    
+    /**
+     * Score of a clustering that is modified by moves only, for local search.
+     * 
+     * The score is a sum over pairs, each pair contributing log(true density) when 
+     * in the same non-outlier cluster, and log(null density) otherwise; the prior
+     * only depends on the size of the first cluster (if at all). So, the score is 
+     * the sum of null log-densities over all pairs, plus the sum of gains 
+     * log(true density) - log(null density) over pairs in the same non-outlier 
+     * cluster, plus the prior. 
+     * 
+     * The gains of all pairs are computed once, and for each element and 
+     * cluster, the sum of gains of the element with the members of the cluster 
+     * (the "affinity") is cached. The score change of a move is then computed in 
+     * constant time from the affinities of the moved element(s) with the source and 
+     * destination clusters, and performing a move only updates the affinities of 
+     * other elements with those 2 clusters, in time linear in the number of elements
+     * (instead of the quadratic time taken by {@link #compute}).  
+     * 
+     * All moves on the clustering should be performed via this object, and the 
+     * clustering should contain the same elements and clusters all the time. 
+     */
+    public class IncrementalScore {
+        
+        private Clustering<T> mClustering;
+        private boolean mFirstClusterIsOutlier;
+        
+        private Map<T, Integer> mIndByElement;
+        private Map<ICluster<T>, Integer> mIndByCluster;
+        
+        /** Gain of each pair, in condensed upper-triangular order */
+        private double[] mPairGain;
+        /** Affinity with each cluster (by index) of each element (by index) */
+        private double[][] mAffinity;
+        private int[] mClusterOf;
+        
+        private double mScore;
+        
+        private IncrementalScore(Clustering<T> pClustering) {
+            mClustering = pClustering;
+            mFirstClusterIsOutlier = pClustering.hasOutlierCluster();
+            
+            List<? extends ICluster<T>> clusters = pClustering.getClusters();
+            int nc = clusters.size();
+            int n = mTotalNumElements;
+            List<T> elements = new ArrayList<T>(n);
+            mIndByElement = new HashMap<T, Integer>();
+            mIndByCluster = new IdentityHashMap<ICluster<T>, Integer>();
+            mClusterOf = new int[n];
+            for (int ci=0; ci<nc; ci++) {
+                ICluster<T> c = clusters.get(ci);
+                mIndByCluster.put(c, ci);
+                for (T elem: c.members()) {
+                    if (elements.size() == n) {
+                        throw new RuntimeException("More than "+n+" elements in the clustering!");
+                    }
+                    mClusterOf[elements.size()] = ci;
+                    mIndByElement.put(elem, elements.size());
+                    elements.add(elem);
+                }
+            }
+            if (elements.size() != n) {
+                throw new RuntimeException("Only "+elements.size()+" elements in the clustering, expected "+n);
+            }
+            
+            mPairGain = new double[(int)((long)n*(n-1)/2)];
+            mAffinity = new double[nc][n];
+            double nullSum = 0;
+            double gainSum = 0;
+            int k = 0;
+            for (int i=0; i<n; i++) {
+                T oi = elements.get(i);
+                for (int j=i+1; j<n; j++) {
+                    T oj = elements.get(j);
+                    double goodness = mPairwiseFunc.compute(new UnorderedPair<T>(oi,oj));
+                    double logNull = logDensity(oi, oj, goodness, Distribution.NULL);
+                    double gain = logDensity(oi, oj, goodness, Distribution.POS) - logNull;
+                    mPairGain[k++] = gain;
+                    mAffinity[mClusterOf[j]][i] += gain;
+                    mAffinity[mClusterOf[i]][j] += gain;
+                    nullSum += logNull;
+                    if (mClusterOf[i] == mClusterOf[j] && isRealCluster(mClusterOf[i])) {
+                        gainSum += gain;
+                    }
+                }
+            }
+            
+            mScore = nullSum + gainSum + computePriorLogProb(pClustering);
+            mClustering.setScore(mScore);
+        }
+        
+        private boolean isRealCluster(int pCluster) {
+            return !(mFirstClusterIsOutlier && pCluster == 0);
+        }
+        
+        private double pairGain(int pI, int pJ) {
+            if (pI > pJ) {
+                int tmp = pI;
+                pI = pJ;
+                pJ = tmp;
+            }
+            int n = mClusterOf.length;
+            return mPairGain[(int)((long)n*pI - (long)pI*(pI+1)/2 + (pJ-pI-1))];
+        }
+        
+        /** Change of prior log-prob when the size of the first cluster changes by pDelta */
+        private double priorDelta(int pDelta) {
+            return mPrior == Prior.POS_PROB
+                   ? (mPriorNegLogProbability - mPriorPosLogProbability) * pDelta
+                   : 0;
+        }
+        
+        /** 
+         * Change of the score when moving an element from pSrc to pDst, given its 
+         * affinities with them.
+         */
+        private double moveDelta(int pSrc, int pDst, double pSrcAffinity, double pDstAffinity) {
+            if (pSrc == pDst) {
+                return 0;
+            }
+            double delta = 0;
+            if (isRealCluster(pSrc)) {
+                delta -= pSrcAffinity;
+            }
+            if (isRealCluster(pDst)) {
+                delta += pDstAffinity;
+            }
+            int firstClusterSizeDelta = (pDst == 0 ? 1 : 0) - (pSrc == 0 ? 1 : 0);
+            return delta + priorDelta(firstClusterSizeDelta);
+        }
+        
+        private int elementInd(T pElem) {
+            Integer ind = mIndByElement.get(pElem);
+            if (ind == null) {
+                throw new RuntimeException("Not an element of the clustering: "+pElem);
+            }
+            return ind;
+        }
+        
+        private void checkSource(int pElem, int pSrc) {
+            if (mClusterOf[pElem] != pSrc) {
+                throw new RuntimeException("Element "+pElem+" is not in cluster "+pSrc);
+            }
+        }
+        
+        private int clusterInd(ICluster<?> pCluster) {
+            Integer ind = mIndByCluster.get(pCluster);
+            if (ind == null) {
+                throw new RuntimeException("Not a cluster of the clustering: "+pCluster);
+            }
+            return ind;
+        }
+        
+        /** @return current score of the clustering (as would be computed by {@link #compute}) */
+        public double getScore() {
+            return mScore;
+        }
+        
+        public Clustering<T> getClustering() {
+            return mClustering;
+        }
+        
+        /** @return change of the score, if pMove was performed; the clustering is not modified */
+        public double delta(IMove<T> pMove) {
+            if (pMove instanceof Move) {
+                Move<T> m = (Move<T>)pMove;
+                int e = elementInd(m.elem);
+                int src = clusterInd(m.src);
+                int dst = clusterInd(m.dst);
+                checkSource(e, src);
+                return moveDelta(src, dst, mAffinity[src][e], mAffinity[dst][e]);
+            }
+            else if (pMove instanceof DoubleMove) {
+                DoubleMove<T> dm = (DoubleMove<T>)pMove;
+                int e1 = elementInd(dm.elem1);
+                int src1 = clusterInd(dm.src1);
+                int dst1 = clusterInd(dm.dst1);
+                int e2 = elementInd(dm.elem2);
+                int src2 = clusterInd(dm.src2);
+                int dst2 = clusterInd(dm.dst2);
+                checkSource(e1, src1);
+                checkSource(e2, src2);
+                double delta1 = moveDelta(src1, dst1, mAffinity[src1][e1], mAffinity[dst1][e1]);
+                
+                // affinities of elem2 after moving elem1
+                double srcAffinity2 = mAffinity[src2][e2];
+                double dstAffinity2 = mAffinity[dst2][e2];
+                if (src1 != dst1) {
+                    double gain = pairGain(e1, e2);
+                    srcAffinity2 += (src2 == dst1 ? gain : 0) - (src2 == src1 ? gain : 0);
+                    dstAffinity2 += (dst2 == dst1 ? gain : 0) - (dst2 == src1 ? gain : 0);
+                }
+                return delta1 + moveDelta(src2, dst2, srcAffinity2, dstAffinity2);
+            }
+            else {
+                throw new RuntimeException("Unknown IMove instance class: "+pMove.getClass().getName());
+            }
+        }
+        
+        /** 
+         * Perform pMove on the clustering (see {@link Clustering#performMove(IMove)}), and 
+         * update the score, which is also set as the score of the clustering. 
+         */
+        public void performMove(IMove<T> pMove) {
+            double delta = delta(pMove);
+            mClustering.performMove(pMove);
+            if (pMove instanceof Move) {
+                Move<T> m = (Move<T>)pMove;
+                updateAffinities(elementInd(m.elem), clusterInd(m.src), clusterInd(m.dst));
+            }
+            else {
+                DoubleMove<T> dm = (DoubleMove<T>)pMove;
+                updateAffinities(elementInd(dm.elem1), clusterInd(dm.src1), clusterInd(dm.dst1));
+                updateAffinities(elementInd(dm.elem2), clusterInd(dm.src2), clusterInd(dm.dst2));
+            }
+            mScore += delta;
+            mClustering.setScore(mScore);
+        }
+        
+        private void updateAffinities(int pElem, int pSrc, int pDst) {
+            mClusterOf[pElem] = pDst;
+            if (pSrc == pDst) {
+                return;
+            }
+            int n = mClusterOf.length;
+            // pairs (x, pElem), x < pElem, are in column pElem of the condensed matrix 
+            for (int x=0; x<pElem; x++) {
+                double gain = mPairGain[(int)((long)n*x - (long)x*(x+1)/2 + (pElem-x-1))];
+                mAffinity[pSrc][x] -= gain;
+                mAffinity[pDst][x] += gain;
+            }
+            // pairs (pElem, x), x > pElem, are consecutive
+            int k = (int)((long)n*pElem - (long)pElem*(pElem+1)/2) - pElem - 1;
+            for (int x=pElem+1; x<n; x++) {
+                double gain = mPairGain[k+x];
+                mAffinity[pSrc][x] -= gain;
+                mAffinity[pDst][x] += gain;
+            }
+        }
+    }
+
     public enum Prior {
         /**
          * Computed according to prior probability of a node belonging to a 
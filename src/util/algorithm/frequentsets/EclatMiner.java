@@ -0,0 +1,249 @@
+package util.algorithm.frequentsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.ConcurrentUtils;
+import util.dbg.Logger;
+
+/**
+ * Depth-first frequent set miner (Eclat), as an alternative to the level-wise
+ * {@link FSetMiner#run()}.
+ *
+ * Instead of scanning the transactions again on every level, a vertical index is
+ * built once: for each frequent item, the sorted list of ids of the transactions
+ * containing it (tid-list). The support of an item set is then the length of the
+ * intersection of the tid-lists of its items, and the sets are enumerated
+ * depth-first, each set extending its prefix by one item: the tid-list of the
+ * set is the intersection of the tid-lists of the prefix and of the new item.
+ * Only the tid-lists of the current path in the search tree are kept in memory,
+ * and no candidates are generated that do not have a frequent prefix.
+ *
+ * Items are ordered by ascending support, which keeps the tid-lists short.
+ * The branches starting with different first items are disjoint, and are mined in
+ * parallel; results are nevertheless reported in a deterministic order (branch by branch).
+ * Only a window of about twice the number of threads of branches is mined ahead of the
+ * branch being reported, so memory is bounded by the results of the branches in that window.
+ *
+ * A transaction is considered as a set: items occurring several times in a
+ * transaction are counted only once.
+ */
+public class EclatMiner {
+
+    private TransactionDB mDb;
+    private int mMinFreq;
+    private int mNumThreads;
+
+    /** Receives frequent sets */
+    public interface FrequentSetHandler {
+        /** @param pSet frequent set, with its frequency available as {@link ItemSet#getFreqCount()} */
+        public void handle(ItemSet pSet);
+    }
+
+    /**
+     * @param pMinFreq absolute frequency threshold
+     * @param pNumThreads non-positive means number of available processors
+     */
+    public EclatMiner(TransactionDB pDb, int pMinFreq, int pNumThreads) {
+        mDb = pDb;
+        mMinFreq = Math.max(pMinFreq, 1);
+        mNumThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /** @return all frequent sets having at least pMinSize items */
+    public List<ItemSet> mine(int pMinSize) {
+        final List<ItemSet> result = new ArrayList<ItemSet>();
+        run(pMinSize, new FrequentSetHandler() {
+            public void handle(ItemSet pSet) {
+                result.add(pSet);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Report all frequent sets having at least pMinSize items to pHandler, which is
+     * called from this thread only.
+     */
+    public void run(final int pMinSize, FrequentSetHandler pHandler) {
+        final TidList[] roots = buildVerticalIndex();
+        Logger.info("There are "+roots.length+" frequent items (out of "+mDb.getNumItems()+")");
+
+        ExecutorService executor = Executors.newFixedThreadPool(mNumThreads);
+        try {
+            // consume branches in order, keeping only a bounded window of them submitted,
+            // so that the results of finished but not yet consumed branches cannot pile up
+            int maxInFlight = 2 * mNumThreads;
+            LinkedList<Future<List<ItemSet>>> branches = new LinkedList<Future<List<ItemSet>>>();
+            int next = 0;
+            while (next < roots.length || !branches.isEmpty()) {
+                while (next < roots.length && branches.size() < maxInFlight) {
+                    final int first = next++;
+                    branches.add(executor.submit(new Callable<List<ItemSet>>() {
+                        public List<ItemSet> call() {
+                            return mineBranch(roots, first, pMinSize);
+                        }
+                    }));
+                }
+                for (ItemSet set: ConcurrentUtils.getUnchecked(branches.removeFirst())) {
+                    pHandler.handle(set);
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** @return tid-lists of the frequent items, in ascending order of support */
+    private TidList[] buildVerticalIndex() {
+        List<Transaction> transactions = mDb.getTransactions();
+        int numItems = mDb.getNumItems();
+
+        // first pass: count, so that tid-lists can be allocated exactly
+        int[] counts = new int[numItems];
+        int[] lastTid = new int[numItems];
+        Arrays.fill(lastTid, -1);
+        for (int tid=0; tid<transactions.size(); tid++) {
+            for (Item item: transactions.get(tid).itemList) {
+                if (lastTid[item.ind] != tid) {
+                    lastTid[item.ind] = tid;
+                    counts[item.ind]++;
+                }
+            }
+        }
+
+        List<TidList> frequent = new ArrayList<TidList>();
+        TidList[] byItem = new TidList[numItems];
+        for (Item item: mDb.getItems()) {
+            if (counts[item.ind] >= mMinFreq) {
+                byItem[item.ind] = new TidList(item, new int[counts[item.ind]], 0);
+                frequent.add(byItem[item.ind]);
+            }
+        }
+
+        // second pass: fill tid-lists, which come out sorted
+        for (int tid=0; tid<transactions.size(); tid++) {
+            for (Item item: transactions.get(tid).itemList) {
+                TidList tids = byItem[item.ind];
+                if (tids != null && (tids.size == 0 || tids.tids[tids.size-1] != tid)) {
+                    tids.tids[tids.size++] = tid;
+                }
+            }
+        }
+
+        Collections.sort(frequent, new Comparator<TidList>() {
+            public int compare(TidList p1, TidList p2) {
+                if (p1.size != p2.size) {
+                    return p1.size < p2.size ? -1 : 1;
+                }
+                return Integer.compare(p1.item.ind, p2.item.ind);
+            }
+        });
+        return frequent.toArray(new TidList[frequent.size()]);
+    }
+
+    /** Mine all frequent sets whose first item (in order of roots) is roots[pFirst] */
+    private List<ItemSet> mineBranch(TidList[] pRoots, int pFirst, int pMinSize) {
+        List<ItemSet> result = new ArrayList<ItemSet>();
+        Item[] prefix = new Item[pRoots.length];
+        List<TidList> siblings = Arrays.asList(pRoots).subList(pFirst, pRoots.length);
+        mine(prefix, 0, siblings.subList(0, 1), siblings, pMinSize, result);
+        return result;
+    }
+
+    /**
+     * Extend pPrefix[0..pDepth-1] by each of pExtensions, extending each resulting
+     * set further by the items of the later siblings in pClass (pExtensions
+     * being a prefix of pClass).
+     */
+    private void mine(Item[] pPrefix, int pDepth, List<TidList> pExtensions, List<TidList> pClass,
+                      int pMinSize, List<ItemSet> pResult) {
+        for (int i=0; i<pExtensions.size(); i++) {
+            TidList node = pClass.get(i);
+            pPrefix[pDepth] = node.item;
+            if (pDepth+1 >= pMinSize) {
+                ItemSet set = new ItemSet(pDepth+1);
+                for (int k=0; k<=pDepth; k++) {
+                    set.add(pPrefix[k]);
+                }
+                set.freq_count = node.size;
+                pResult.add(set);
+            }
+
+            List<TidList> nextClass = new ArrayList<TidList>();
+            for (int j=i+1; j<pClass.size(); j++) {
+                TidList next = intersect(node, pClass.get(j));
+                if (next != null) {
+                    nextClass.add(next);
+                }
+            }
+            if (!nextClass.isEmpty()) {
+                mine(pPrefix, pDepth+1, nextClass, nextClass, pMinSize, pResult);
+            }
+        }
+    }
+
+    /**
+     * @return tid-list of pPrefix extended by the item of pOther, or null if that is
+     * not frequent. Gives up as soon as there are not enough tids left for the
+     * intersection to be frequent.
+     */
+    private TidList intersect(TidList pPrefix, TidList pOther) {
+        int[] a = pPrefix.tids;
+        int[] b = pOther.tids;
+        int na = pPrefix.size;
+        int nb = pOther.size;
+        if (na < mMinFreq || nb < mMinFreq) {
+            return null;
+        }
+        int[] result = new int[Math.min(na, nb)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < na && j < nb) {
+            // n + the number of tids left in the shorter list bounds the support
+            if (n + Math.min(na - i, nb - j) < mMinFreq) {
+                return null;
+            }
+            int x = a[i];
+            int y = b[j];
+            if (x == y) {
+                result[n++] = x;
+                i++;
+                j++;
+            }
+            else if (x < y) {
+                i++;
+            }
+            else {
+                j++;
+            }
+        }
+        return n >= mMinFreq ? new TidList(pOther.item, result, n) : null;
+    }
+
+    /**
+     * Transactions containing a set (a prefix extended by item): the first
+     * size elements of tids, in ascending order.
+     */
+    private static class TidList {
+        final Item item;
+        final int[] tids;
+        int size;
+
+        TidList(Item pItem, int[] pTids, int pSize) {
+            item = pItem;
+            tids = pTids;
+            size = pSize;
+        }
+    }
+}
@@ -3,9 +3,9 @@ package util.algorithm.frequentsets;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 
+import util.CmdLineArgs;
 import util.StringUtils;
 import util.collections.HashWeightedSet;
 import util.collections.UnorderedPair;
@@ -18,6 +18,8 @@ public class FSetMiner {
     private TransactionDB mDb;
     private int mFreqTr_abs;
     private Integer mNormalizationFactor;
+    /** non-positive means number of available processors */
+    private int mNumThreads = 0;
     
     public FSetMiner(TransactionDB pDb,
                      double pFreqTr,
@@ -38,7 +40,13 @@ public class FSetMiner {
         
     }
         
-    public static void main(String[] args) throws Exception {        
+    /**
+     * Args: file freqtr [normalizationfactor]
+     * Options: -eclat to use {@link EclatMiner}, with -threads=<n> threads (default: all processors)
+     */
+    public static void main(String[] args) throws Exception {
+        CmdLineArgs argParser = new CmdLineArgs(args);
+        args = argParser.getNonOptArgs();
         TransactionDB db = new TransactionDB(args[0]);
         double freqTr = Double.parseDouble(args[1]);        
         Integer normalizationFactor = null;
@@ -46,11 +54,22 @@ public class FSetMiner {
             normalizationFactor = Integer.parseInt(args[2]);
         }
         FSetMiner miner = new FSetMiner(db, freqTr, normalizationFactor);
-        miner.run();                
+        miner.setNumThreads(argParser.getIntOpt("threads", 0));
+        if (argParser.isDefined("eclat")) {
+            miner.runEclat(argParser.getIntOpt("threads", 0));
+        }
+        else {
+            miner.run();
+        }
         
         // System.out.println(db.toString());
     }
     
+    /** Threads used for counting pairs; non-positive means number of available processors */
+    public void setNumThreads(int pNumThreads) {
+        mNumThreads = pNumThreads;
+    }
+
     public WeightedSet<Item> computeSingleItemFrequencies() {
         WeightedSet<Item> result = new HashWeightedSet();
         for (Transaction t: mDb.getTransactions()) {
@@ -73,20 +92,36 @@ public class FSetMiner {
         
     }
     
+    /**
+     * Output the same sets as {@link #run()}, that is, frequent sets of size at least 2,
+     * but mining depth-first using {@link EclatMiner}.
+     * @param pNumThreads non-positive means number of available processors
+     */
+    public void runEclat(int pNumThreads) {
+        EclatMiner miner = new EclatMiner(mDb, mFreqTr_abs, pNumThreads);
+        miner.run(2, new EclatMiner.FrequentSetHandler() {
+            public void handle(ItemSet pSet) {
+                System.out.println(freqString(pSet.getFreqCount())+" "+StringUtils.collectionToString(pSet," "));
+            }
+        });
+    }
+
     private void run() {
-        WeightedSet<UnorderedPair<Item>> pairFreqs = computePairFrequencies();
+        // only frequent pairs are needed, so only pairs of frequent items are counted;
+        // repeated items of a transaction are counted once (see computePairFrequencies)
+        final WeightedSet<UnorderedPair<Item>> pairFreqs = new HashWeightedSet();
+        new PairCounts(mDb, mFreqTr_abs, mNumThreads).forEachPair(mFreqTr_abs, new PairCounts.PairCountHandler() {
+            public void handle(Item pItem1, Item pItem2, int pCount) {
+                pairFreqs.add(new UnorderedPair<Item>(pItem1, pItem2), pCount);
+            }
+        });
         List<UnorderedPair<Item>> pairs = new ArrayList(pairFreqs);
-        HashSet<UnorderedPair<Item>> frequentPairs = new HashSet();
         Collections.sort(pairs, new ByStringComparator());
         for (UnorderedPair<Item> pair: pairs) {
             int freq = (int)pairFreqs.getWeight(pair);
-            if (freq >= mFreqTr_abs) {
-//                System.out.println("Frequent pair: "+pair+" "+pairFreqs.getWeight(pair));
-                frequentPairs.add(pair);
-                System.out.println(freqString(freq)+" "+StringUtils.collectionToString(pair," "));
-            }
-        }        
-                 
+            System.out.println(freqString(freq)+" "+StringUtils.collectionToString(pair," "));
+        }
+
         List<ItemSet> fSets_prev = new ArrayList<ItemSet>();
         for (UnorderedPair<Item> pair: pairs) {
             fSets_prev.add(new ItemSet(pair));
@@ -187,20 +222,23 @@ public class FSetMiner {
         }
     }
     
+    /**
+     * Number of transactions containing each pair of items that co-occur at all.
+     * Counting is done by {@link PairCounts}, so only one pair object is created per
+     * distinct pair.
+     * 
+     * Note that transactions are considered as sets: an item occurring several times
+     * in a transaction is counted once, and no pairs of an item with itself are reported.
+     * (Earlier versions counted every pair of positions in a transaction, so that e.g.
+     * "a a b" contributed 2 to pair (a,b) and 1 to pair (a,a)).
+     */
     public WeightedSet<UnorderedPair<Item>> computePairFrequencies() {
-        WeightedSet<UnorderedPair<Item>> result = new HashWeightedSet();
-        for (Transaction t: mDb.getTransactions()) {
-            int n = t.itemList.size();
-            for (int i=0; i<n; i++) {
-                for (int j=i+1; j<n; j++) {
-                    UnorderedPair<Item> pair = 
-                        new UnorderedPair<Item>(t.itemList.get(i),
-                                                t.itemList.get(j));
-                    result.add(pair);
-                }
+        final WeightedSet<UnorderedPair<Item>> result = new HashWeightedSet();
+        new PairCounts(mDb, 1, mNumThreads).forEachPair(1, new PairCounts.PairCountHandler() {
+            public void handle(Item pItem1, Item pItem2, int pCount) {
+                result.add(new UnorderedPair<Item>(pItem1, pItem2), pCount);
             }
-                        
-        }
+        });
         return result;
     }
     
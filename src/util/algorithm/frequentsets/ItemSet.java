@@ -19,4 +19,8 @@ public class ItemSet extends HashSet<Item> {
         super(pItems.size());
         addAll(pItems);
     }
+
+    public int getFreqCount() {
+        return freq_count;
+    }
 }
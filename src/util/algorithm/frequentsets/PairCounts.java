@@ -0,0 +1,343 @@
+package util.algorithm.frequentsets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.ConcurrentUtils;
+import util.dbg.Logger;
+
+/**
+ * Co-occurrence counts of item pairs in a {@link TransactionDB}, counted
+ * without creating any objects per occurrence.
+ *
+ * Only pairs of frequent items (frequency at least minItemFreq) are counted,
+ * as no other pair can be frequent either. The frequent items are given
+ * compact ids (in order of Item.ind), and the counts are stored either in a
+ * dense triangular int[] indexed by the pair (when that fits into the memory
+ * budget), or in an open-addressing hash map from pair (as a long) to count.
+ *
+ * The transactions are split into contiguous chunks, one per thread, each of
+ * which is counted into a private table; the tables are summed at the end.
+ *
+ * A transaction is considered as a set: items occurring several times in a
+ * transaction are counted only once.
+ */
+public class PairCounts {
+
+    /** Fraction of max memory that may be used for the dense tables (one per thread) */
+    private static final double DENSE_MEMORY_FRACTION = 0.25;
+
+    /** Receives pair counts */
+    public interface PairCountHandler {
+        public void handle(Item pItem1, Item pItem2, int pCount);
+    }
+
+    private final TransactionDB mDb;
+    private final int mMinItemFreq;
+
+    /** Compact id of each item by Item.ind; -1 for infrequent items */
+    private final int[] mIdByInd;
+    /** Items by compact id */
+    private final Item[] mItems;
+    private final int[] mItemFreqs;
+
+    /** Dense counts by condensed pair index, or null if counts are sparse */
+    private int[] mDense;
+    private LongIntMap mSparse;
+
+    /**
+     * @param pMinItemFreq only pairs of items having at least this frequency are counted.
+     * @param pNumThreads non-positive means number of available processors
+     */
+    public PairCounts(TransactionDB pDb, int pMinItemFreq, int pNumThreads) {
+        mDb = pDb;
+        mMinItemFreq = pMinItemFreq;
+        int numThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+
+        // single item frequencies (each item once per transaction)
+        int numItems = pDb.getNumItems();
+        int[] freqByInd = new int[numItems];
+        int[] lastTid = new int[numItems];
+        Arrays.fill(lastTid, -1);
+        List<Transaction> transactions = pDb.getTransactions();
+        for (int tid=0; tid<transactions.size(); tid++) {
+            for (Item item: transactions.get(tid).itemList) {
+                if (lastTid[item.ind] != tid) {
+                    lastTid[item.ind] = tid;
+                    freqByInd[item.ind]++;
+                }
+            }
+        }
+
+        mIdByInd = new int[numItems];
+        int n = 0;
+        for (int ind=0; ind<numItems; ind++) {
+            mIdByInd[ind] = freqByInd[ind] >= pMinItemFreq ? n++ : -1;
+        }
+        mItems = new Item[n];
+        mItemFreqs = new int[n];
+        for (Item item: pDb.getItems()) {
+            int id = mIdByInd[item.ind];
+            if (id != -1) {
+                mItems[id] = item;
+                mItemFreqs[id] = freqByInd[item.ind];
+            }
+        }
+
+        long numPairs = (long)n * (n-1) / 2;
+        long denseBytes = 4L * numPairs * numThreads;
+        boolean dense = numPairs <= Integer.MAX_VALUE - 8
+                     && denseBytes <= Runtime.getRuntime().maxMemory() * DENSE_MEMORY_FRACTION;
+        Logger.info("Counting pairs of "+n+" frequent items (out of "+numItems+") using "+
+                    (dense ? "dense" : "sparse")+" tables and "+numThreads+" threads");
+        count(dense, numThreads);
+    }
+
+    private void count(final boolean pDense, int pNumThreads) {
+        final List<Transaction> transactions = mDb.getTransactions();
+        ExecutorService executor = Executors.newFixedThreadPool(pNumThreads);
+        try {
+            Future<?>[] futures = new Future<?>[pNumThreads];
+            final int[][] denseTables = new int[pNumThreads][];
+            final LongIntMap[] sparseTables = new LongIntMap[pNumThreads];
+            for (int t=0; t<pNumThreads; t++) {
+                final int thread = t;
+                final int start = (int)((long)transactions.size() * t / pNumThreads);
+                final int end = (int)((long)transactions.size() * (t+1) / pNumThreads);
+                futures[t] = executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        if (pDense) {
+                            denseTables[thread] = countDense(transactions, start, end);
+                        }
+                        else {
+                            sparseTables[thread] = countSparse(transactions, start, end);
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future: futures) {
+                ConcurrentUtils.getUnchecked(future);
+            }
+
+            // reduce
+            if (pDense) {
+                mDense = denseTables[0];
+                for (int t=1; t<pNumThreads; t++) {
+                    int[] table = denseTables[t];
+                    for (int k=0; k<table.length; k++) {
+                        mDense[k] += table[k];
+                    }
+                    denseTables[t] = null;
+                }
+            }
+            else {
+                mSparse = sparseTables[0];
+                for (int t=1; t<pNumThreads; t++) {
+                    LongIntMap table = sparseTables[t];
+                    for (int k=0; k<table.keys.length; k++) {
+                        if (table.keys[k] != LongIntMap.EMPTY) {
+                            mSparse.add(table.keys[k], table.values[k]);
+                        }
+                    }
+                    sparseTables[t] = null;
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private int[] countDense(List<Transaction> pTransactions, int pStart, int pEnd) {
+        int n = mItems.length;
+        int[] counts = new int[(int)((long)n * (n-1) / 2)];
+        int[] ids = new int[16];
+        for (int tid=pStart; tid<pEnd; tid++) {
+            ids = frequentIds(pTransactions.get(tid), ids);
+            int m = ids[0];
+            for (int a=1; a<=m; a++) {
+                int i = ids[a];
+                // index of pair (i,i+1); pairs (i,j) are consecutive
+                int base = pairIndex(n, i, i+1) - (i+1);
+                for (int b=a+1; b<=m; b++) {
+                    counts[base + ids[b]]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private LongIntMap countSparse(List<Transaction> pTransactions, int pStart, int pEnd) {
+        LongIntMap counts = new LongIntMap(1024);
+        int[] ids = new int[16];
+        for (int tid=pStart; tid<pEnd; tid++) {
+            ids = frequentIds(pTransactions.get(tid), ids);
+            int m = ids[0];
+            for (int a=1; a<=m; a++) {
+                long hi = ((long)ids[a]) << 32;
+                for (int b=a+1; b<=m; b++) {
+                    counts.add(hi | ids[b], 1);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Sorted, distinct compact ids of the frequent items of pTransaction, at
+     * positions 1..result[0] of pBuf, or of a larger array if pBuf is too small.
+     */
+    private int[] frequentIds(Transaction pTransaction, int[] pBuf) {
+        List<Item> items = pTransaction.itemList;
+        int[] buf = pBuf.length > items.size() ? pBuf : new int[items.size()*2+1];
+        int m = 0;
+        for (Item item: items) {
+            int id = mIdByInd[item.ind];
+            if (id != -1) {
+                buf[++m] = id;
+            }
+        }
+        Arrays.sort(buf, 1, m+1);
+        int k = 0;
+        for (int a=1; a<=m; a++) {
+            if (k == 0 || buf[k] != buf[a]) {
+                buf[++k] = buf[a];
+            }
+        }
+        buf[0] = k;
+        return buf;
+    }
+
+    /** Condensed index of pair (pI,pJ) of n items, pI < pJ */
+    private static int pairIndex(int n, int pI, int pJ) {
+        return (int)((long)n*pI - (long)pI*(pI+1)/2 + (pJ-pI-1));
+    }
+
+    /** @return number of transactions containing both items; 0 if either is not frequent */
+    public int getCount(Item pItem1, Item pItem2) {
+        int i = mIdByInd[pItem1.ind];
+        int j = mIdByInd[pItem2.ind];
+        if (i == -1 || j == -1 || i == j) {
+            return 0;
+        }
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return mDense != null ? mDense[pairIndex(mItems.length, i, j)] : mSparse.get(((long)i << 32) | j);
+    }
+
+    /** @return number of transactions containing pItem, if it is frequent; 0 otherwise */
+    public int getItemFreq(Item pItem) {
+        int id = mIdByInd[pItem.ind];
+        return id != -1 ? mItemFreqs[id] : 0;
+    }
+
+    /** @return frequency threshold for single items, as given to the constructor */
+    public int getMinItemFreq() {
+        return mMinItemFreq;
+    }
+
+    /**
+     * Report all pairs co-occurring in at least pMinCount (>0) transactions,
+     * the first item of the pair being the one with the smaller Item.ind.
+     */
+    public void forEachPair(int pMinCount, PairCountHandler pHandler) {
+        int minCount = Math.max(pMinCount, 1);
+        if (mDense != null) {
+            int n = mItems.length;
+            int k = 0;
+            for (int i=0; i<n; i++) {
+                for (int j=i+1; j<n; j++) {
+                    int count = mDense[k++];
+                    if (count >= minCount) {
+                        pHandler.handle(mItems[i], mItems[j], count);
+                    }
+                }
+            }
+        }
+        else {
+            for (int k=0; k<mSparse.keys.length; k++) {
+                long key = mSparse.keys[k];
+                if (key != LongIntMap.EMPTY && mSparse.values[k] >= minCount) {
+                    pHandler.handle(mItems[(int)(key >>> 32)], mItems[(int)key], mSparse.values[k]);
+                }
+            }
+        }
+    }
+
+    /** Open-addressing (linear probing) hash map from non-negative long keys to int counts */
+    private static class LongIntMap {
+        static final long EMPTY = -1;
+
+        long[] keys;
+        int[] values;
+        int size;
+
+        LongIntMap(int pCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(pCapacity, 4) - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        int get(long pKey) {
+            int mask = keys.length - 1;
+            for (int k=slot(pKey, mask); ; k=(k+1) & mask) {
+                if (keys[k] == pKey) {
+                    return values[k];
+                }
+                else if (keys[k] == EMPTY) {
+                    return 0;
+                }
+            }
+        }
+
+        void add(long pKey, int pDelta) {
+            int mask = keys.length - 1;
+            int k = slot(pKey, mask);
+            while (keys[k] != EMPTY && keys[k] != pKey) {
+                k = (k+1) & mask;
+            }
+            if (keys[k] == pKey) {
+                values[k] += pDelta;
+                return;
+            }
+            keys[k] = pKey;
+            values[k] = pDelta;
+            if (++size > keys.length / 2) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            int mask = keys.length - 1;
+            for (int i=0; i<oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int k = slot(oldKeys[i], mask);
+                    while (keys[k] != EMPTY) {
+                        k = (k+1) & mask;
+                    }
+                    keys[k] = oldKeys[i];
+                    values[k] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slot(long pKey, int pMask) {
+            long h = pKey * 0x9E3779B97F4A7C15L;
+            return (int)(h >>> 32) & pMask;
+        }
+    }
+}
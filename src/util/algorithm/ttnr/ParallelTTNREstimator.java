@@ -0,0 +1,510 @@
+package util.algorithm.ttnr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.ConcurrentUtils;
+import util.Timer;
+import util.algorithm.ttnr.TTNRUtils.ESPDResult;
+import util.collections.Distribution;
+import util.collections.HashWeightedSet;
+import util.collections.IntDoubleIndexedHeap;
+import util.collections.WeightedSet;
+import util.collections.graph.defaultimpl.Dijkstra;
+import util.dbg.Logger;
+
+/**
+ * Multi-threaded versions of the Monte Carlo estimators in {@link TTNRUtils}.
+ *
+ * The iterations are split evenly among the worker threads. Unlike in
+ * TTNRUtils, the workers do not touch the graph objects at all: a
+ * {@link TTNRCSRGraph} snapshot of the graph is taken when the estimator is
+ * created, and the preprocessing of each query (Dijkstra from the target and
+ * sorting the edges, as in TTNRUtils) is done on the snapshot. Each worker keeps
+ * its own visited marks (an epoch array, so that there is no need to clear
+ * anything between iterations) and its own random number generator, split
+ * from a single SplittableRandom initialized with the seed. Thus, results are
+ * reproducible for a given seed and number of threads (but naturally differ
+ * from those of TTNRUtils, and between different numbers of threads).
+ *
+ * Changes made to the graph after creating the estimator are not seen by it;
+ * the graph itself is only modified by computeTTNR_singlesource, which stores
+ * the results to the nodes.
+ */
+public class ParallelTTNREstimator<T> {
+
+    /** Snapshot of the graph, taken at construction */
+    private final TTNRCSRGraph<T> mBaseGraph;
+    private final int mNumThreads;
+    private final long mSeed;
+
+    /** Graph used by the workers: mBaseGraph, with edges sorted for the current query */
+    private TTNRCSRGraph<T> mGraph;
+    /** Arrays of mGraph, for brevity */
+    private int[] mOffsets;
+    private int[] mTargets;
+    private int[] mProbInt;
+    private double[] mLen2;
+
+    /** @param pNumThreads non-positive means number of available processors */
+    public ParallelTTNREstimator(TTNRGraph<T> pGraph, int pNumThreads, long pSeed) {
+        Timer.startTiming("CSR snapshot");
+        mBaseGraph = new TTNRCSRGraph<T>(pGraph);
+        Timer.endTiming("CSR snapshot");
+        mNumThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+        mSeed = pSeed;
+    }
+
+    /** @see TTNRUtils#computeTTNR_pairwise(TTNRGraph, Object, Object, int) */
+    public double computeTTNR_pairwise(T pSrc, T pTgt, int pNumIters) {
+        final int sId = mBaseGraph.getExistingId(pSrc);
+        final int tId = mBaseGraph.getExistingId(pTgt);
+
+        double[] dist = preprocess(tId);
+
+        if (sId == tId) {
+            // a path from node to itself is always assumed to exist
+            return 1.0;
+        }
+        else if (dist[sId] == Double.MAX_VALUE) {
+            // not reachable (as found out by dijkstra)
+            return 0.0;
+        }
+
+        Timer.startTiming("MC estimation");
+        List<Worker> workers = run(pNumIters, new WorkerFactory() {
+            Worker makeWorker(SplittableRandom pRand, int pNumIters) {
+                return new PairwiseWorker(pRand, pNumIters, sId, tId);
+            }
+        });
+        Timer.endTiming("MC estimation");
+
+        long successCount = 0;
+        for (Worker w: workers) {
+            successCount += ((PairwiseWorker)w).mSuccessCount;
+        }
+        logEdgeCounts(workers);
+
+        return ((double)successCount) / pNumIters;
+    }
+
+    /**
+     * Compute ttnr from pSrc to all other nodes of the network; store
+     * results to attribute "reliability" of the nodes.
+     * @see TTNRUtils#computeTTNR_singlesource(TTNRGraph, Object, int)
+     */
+    public void computeTTNR_singlesource(T pSrc, int pNumIters) {
+        final int sId = mBaseGraph.getExistingId(pSrc);
+
+        // no preprocessing here, as all reachable edges are tested anyway
+        setGraph(mBaseGraph);
+
+        Timer.startTiming("MC estimation");
+        List<Worker> workers = run(pNumIters, new WorkerFactory() {
+            Worker makeWorker(SplittableRandom pRand, int pNumIters) {
+                return new SingleSourceWorker(pRand, pNumIters, sId);
+            }
+        });
+        Timer.endTiming("MC estimation");
+
+        long[] reachedCounts = new long[mGraph.numNodes()];
+        for (Worker w: workers) {
+            int[] counts = ((SingleSourceWorker)w).mReachedCounts;
+            for (int v=0; v<counts.length; v++) {
+                reachedCounts[v] += counts[v];
+            }
+        }
+        reachedCounts[sId] = pNumIters; // s is always reached
+
+        double[] reliabilities = new double[reachedCounts.length];
+        for (int v=0; v<reachedCounts.length; v++) {
+            reliabilities[v] = ((double)reachedCounts[v]) / pNumIters;
+        }
+        mGraph.setReliabilities(reliabilities);
+        logEdgeCounts(workers);
+    }
+
+    /** @see TTNRUtils#expectedShortestPathDistance_numedges(TTNRGraph, Object, Object, int) */
+    public ESPDResult expectedShortestPathDistance_numedges(T pSrc, T pTgt, int pNumIters) {
+        final int sId = mBaseGraph.getExistingId(pSrc);
+        final int tId = mBaseGraph.getExistingId(pTgt);
+
+        double[] dist = preprocess(tId);
+
+        WeightedSet<Integer> distances = new HashWeightedSet<Integer>();
+        long successCount = 0;
+
+        if (sId == tId) {
+            successCount = pNumIters;
+            distances.add(0, pNumIters);
+        }
+        else if (dist[sId] != Double.MAX_VALUE) {
+            Timer.startTiming("MC estimation");
+            List<Worker> workers = run(pNumIters, new WorkerFactory() {
+                Worker makeWorker(SplittableRandom pRand, int pNumIters) {
+                    return new NumEdgesWorker(pRand, pNumIters, sId, tId);
+                }
+            });
+            Timer.endTiming("MC estimation");
+
+            // merge histograms of path lengths
+            long[] hist = new long[mGraph.numNodes()];
+            for (Worker w: workers) {
+                int[] workerHist = ((NumEdgesWorker)w).mHistogram;
+                for (int d=0; d<workerHist.length; d++) {
+                    hist[d] += workerHist[d];
+                }
+            }
+            for (int d=0; d<hist.length; d++) {
+                if (hist[d] > 0) {
+                    distances.add(d, hist[d]);
+                    successCount += hist[d];
+                }
+            }
+            logEdgeCounts(workers);
+        }
+
+        Distribution<Integer> distr = new Distribution<Integer>(distances);
+        ESPDResult result = new ESPDResult(((double)successCount) / pNumIters, distr.expectation(), null);
+        Logger.info("Got result: "+result);
+        return result;
+    }
+
+    /** @see TTNRUtils#expectedShortestPathDistance_weighted(TTNRGraph, Object, Object, int) */
+    public ESPDResult expectedShortestPathDistance_weighted(T pSrc, T pTgt, int pNumIters) {
+        final int sId = mBaseGraph.getExistingId(pSrc);
+        final int tId = mBaseGraph.getExistingId(pTgt);
+
+        if (sId == tId) {
+            throw new RuntimeException("Cannot handle case where s==t");
+        }
+
+        double[] dist = preprocess(tId);
+
+        WeightedSet<Double> distances = new HashWeightedSet<Double>();
+        long successCount = 0;
+
+        if (dist[sId] != Double.MAX_VALUE) {
+            Timer.startTiming("MC estimation");
+            List<Worker> workers = run(pNumIters, new WorkerFactory() {
+                Worker makeWorker(SplittableRandom pRand, int pNumIters) {
+                    return new WeightedWorker(pRand, pNumIters, sId, tId);
+                }
+            });
+            Timer.endTiming("MC estimation");
+
+            // merge in worker order, to keep things reproducible
+            for (Worker w: workers) {
+                WeightedSet<Double> workerDistances = ((WeightedWorker)w).mDistances;
+                for (Double d: workerDistances) {
+                    distances.add(d, workerDistances.getWeight(d));
+                }
+                successCount += ((WeightedWorker)w).mSuccessCount;
+            }
+            logEdgeCounts(workers);
+        }
+
+        Distribution<Double> distr = new Distribution<Double>(distances);
+        ESPDResult result = new ESPDResult(((double)successCount) / pNumIters, distr.expectation(), distr);
+        Logger.info("Got result: "+result);
+        return result;
+    }
+
+    /**
+     * As in TTNRUtils: compute distances to the target and sort edges by
+     * "best t-path first"; the workers then use the sorted graph.
+     * @return distances to the target
+     */
+    private double[] preprocess(int pTgt) {
+        Timer.startTiming("Dijkstra preprocessing");
+        double[] dist = Dijkstra.computeDistances(mBaseGraph, pTgt);
+        Timer.endTiming("Dijkstra preprocessing");
+
+        Timer.startTiming("Sorting edges");
+        setGraph(mBaseGraph.sortEdgesAccordingToTargetDistance(dist, false));
+        Timer.endTiming("Sorting edges");
+
+        return dist;
+    }
+
+    private void setGraph(TTNRCSRGraph<T> pGraph) {
+        mGraph = pGraph;
+        mOffsets = pGraph.offsets;
+        mTargets = pGraph.targets;
+        mProbInt = pGraph.probInt;
+        mLen2 = pGraph.len2;
+    }
+
+    /**
+     * Split iterations among workers, giving each its own generator split from
+     * a generator initialized with mSeed, and run them.
+     * @return the finished workers, in a fixed order.
+     */
+    private List<Worker> run(int pNumIters, WorkerFactory pFactory) {
+        SplittableRandom root = new SplittableRandom(mSeed);
+        List<Worker> workers = new ArrayList<Worker>(mNumThreads);
+        for (int i=0; i<mNumThreads; i++) {
+            int start = (int)((long)pNumIters * i / mNumThreads);
+            int end = (int)((long)pNumIters * (i+1) / mNumThreads);
+            workers.add(pFactory.makeWorker(root.split(), end - start));
+        }
+
+        Logger.info("Actual MC estimation: "+pNumIters+" iterations using "+mNumThreads+" threads");
+
+        if (mNumThreads == 1) {
+            workers.get(0).run();
+            return workers;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mNumThreads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Worker w: workers) {
+                futures.add(executor.submit(w));
+            }
+            for (Future<?> f: futures) {
+                ConcurrentUtils.getUnchecked(f);
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        return workers;
+    }
+
+    private void logEdgeCounts(List<Worker> pWorkers) {
+        long nTested = 0;
+        long nFailed = 0;
+        for (Worker w: pWorkers) {
+            nTested += w.mNumTestedEdges;
+            nFailed += w.mNumFailedEdges;
+        }
+        Logger.info("Number of tested edges:  "+nTested);
+        Logger.info("Number of failed edges:  "+nFailed);
+        Logger.info("Number of working edges: "+(nTested - nFailed));
+    }
+
+    private abstract class WorkerFactory {
+        abstract Worker makeWorker(SplittableRandom pRand, int pNumIters);
+    }
+
+    /** A worker runs its share of iterations; results are read after it has finished */
+    private abstract class Worker implements Runnable {
+        final SplittableRandom mRand;
+        final int mNumIters;
+
+        /** Node v is visited in the current iteration iff mMark[v] == mEpoch */
+        final int[] mMark;
+        int mEpoch = 0;
+
+        long mNumTestedEdges = 0;
+        long mNumFailedEdges = 0;
+
+        Worker(SplittableRandom pRand, int pNumIters) {
+            mRand = pRand;
+            mNumIters = pNumIters;
+            mMark = new int[mGraph.numNodes()];
+        }
+
+        /** Start a new iteration; all nodes become unvisited */
+        final void nextEpoch() {
+            if (mEpoch == Integer.MAX_VALUE) {
+                Arrays.fill(mMark, 0);
+                mEpoch = 0;
+            }
+            mEpoch++;
+        }
+
+        /** Realize edge e, that is, test whether it exists in this iteration */
+        final boolean edgeExists(int e) {
+            mNumTestedEdges++;
+            if ((mRand.nextInt() >>> 1) < mProbInt[e]) {
+                return true;
+            }
+            else {
+                mNumFailedEdges++;
+                return false;
+            }
+        }
+
+        public void run() {
+            for (int i=0; i<mNumIters; i++) {
+                nextEpoch();
+                iterate();
+            }
+        }
+
+        abstract void iterate();
+    }
+
+    /** DFS until t is found */
+    private class PairwiseWorker extends Worker {
+        final int mSrc;
+        final int mTgt;
+        final int[] mStack;
+        long mSuccessCount = 0;
+
+        PairwiseWorker(SplittableRandom pRand, int pNumIters, int pSrc, int pTgt) {
+            super(pRand, pNumIters);
+            mSrc = pSrc;
+            mTgt = pTgt;
+            mStack = new int[mGraph.numNodes()];
+        }
+
+        void iterate() {
+            int stackSize = 0;
+            mMark[mSrc] = mEpoch;
+            mStack[stackSize++] = mSrc;
+            while (stackSize > 0) {
+                int u = mStack[--stackSize];
+                int end = mOffsets[u+1];
+                for (int e=mOffsets[u]; e<end; e++) {
+                    int v = mTargets[e];
+                    if (mMark[v] != mEpoch && edgeExists(e)) {
+                        if (v == mTgt) {
+                            mSuccessCount++;
+                            return;
+                        }
+                        mMark[v] = mEpoch;
+                        mStack[stackSize++] = v;
+                    }
+                }
+            }
+        }
+    }
+
+    /** DFS over the whole reachable component */
+    private class SingleSourceWorker extends Worker {
+        final int mSrc;
+        final int[] mStack;
+        final int[] mReachedCounts;
+
+        SingleSourceWorker(SplittableRandom pRand, int pNumIters, int pSrc) {
+            super(pRand, pNumIters);
+            mSrc = pSrc;
+            mStack = new int[mGraph.numNodes()];
+            mReachedCounts = new int[mGraph.numNodes()];
+        }
+
+        void iterate() {
+            int stackSize = 0;
+            mMark[mSrc] = mEpoch;
+            mStack[stackSize++] = mSrc;
+            while (stackSize > 0) {
+                int u = mStack[--stackSize];
+                int end = mOffsets[u+1];
+                for (int e=mOffsets[u]; e<end; e++) {
+                    int v = mTargets[e];
+                    if (mMark[v] != mEpoch && edgeExists(e)) {
+                        mMark[v] = mEpoch;
+                        mReachedCounts[v]++;
+                        mStack[stackSize++] = v;
+                    }
+                }
+            }
+        }
+    }
+
+    /** BFS until t is found; record number of edges on the path */
+    private class NumEdgesWorker extends Worker {
+        final int mSrc;
+        final int mTgt;
+        final int[] mQueue;
+        final int[] mDepth;
+        /** Number of iterations by number of edges on the shortest path found */
+        final int[] mHistogram;
+
+        NumEdgesWorker(SplittableRandom pRand, int pNumIters, int pSrc, int pTgt) {
+            super(pRand, pNumIters);
+            mSrc = pSrc;
+            mTgt = pTgt;
+            mQueue = new int[mGraph.numNodes()];
+            mDepth = new int[mGraph.numNodes()];
+            mHistogram = new int[mGraph.numNodes()];
+        }
+
+        void iterate() {
+            int head = 0;
+            int tail = 0;
+            mMark[mSrc] = mEpoch;
+            mDepth[mSrc] = 0;
+            mQueue[tail++] = mSrc;
+            while (head < tail) {
+                int u = mQueue[head++];
+                int end = mOffsets[u+1];
+                for (int e=mOffsets[u]; e<end; e++) {
+                    int v = mTargets[e];
+                    if (mMark[v] != mEpoch && edgeExists(e)) {
+                        if (v == mTgt) {
+                            mHistogram[mDepth[u]+1]++;
+                            return;
+                        }
+                        mMark[v] = mEpoch;
+                        mDepth[v] = mDepth[u]+1;
+                        mQueue[tail++] = v;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Dijkstra (according to len2) with edges realized on demand, using an
+     * {@link IntDoubleIndexedHeap} which is only cleared (in time proportional
+     * to its size) between iterations.
+     */
+    private class WeightedWorker extends Worker {
+        final int mSrc;
+        final int mTgt;
+        /** Valid only for nodes with mMark[v] == mEpoch */
+        final double[] mDist;
+        final IntDoubleIndexedHeap mHeap;
+        long mSuccessCount = 0;
+        final WeightedSet<Double> mDistances = new HashWeightedSet<Double>();
+
+        WeightedWorker(SplittableRandom pRand, int pNumIters, int pSrc, int pTgt) {
+            super(pRand, pNumIters);
+            mSrc = pSrc;
+            mTgt = pTgt;
+            mDist = new double[mGraph.numNodes()];
+            mHeap = new IntDoubleIndexedHeap(mGraph.numNodes());
+        }
+
+        void iterate() {
+            double ub = Double.MAX_VALUE;
+            mHeap.clear();
+            mMark[mSrc] = mEpoch;
+            mDist[mSrc] = 0;
+            mHeap.add(mSrc, 0);
+
+            while (!mHeap.isEmpty() && mHeap.topKey() < ub) {
+                int u = mHeap.pop();
+                double d = mDist[u];
+                int end = mOffsets[u+1];
+                for (int e=mOffsets[u]; e<end; e++) {
+                    int v = mTargets[e];
+                    double d2 = d + mLen2[e];
+                    boolean better = mMark[v] != mEpoch || d2 < mDist[v];
+                    if (better && edgeExists(e)) {
+                        mMark[v] = mEpoch;
+                        mDist[v] = d2;
+                        mHeap.updateKey(v, d2);
+                        if (v == mTgt) {
+                            ub = d2;
+                        }
+                    }
+                }
+            }
+
+            if (ub != Double.MAX_VALUE) {
+                mSuccessCount++;
+                mDistances.add(ub);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package util.algorithm.ttnr;
+
+import java.util.List;
+
+import util.collections.graph.defaultimpl.CSRGraph;
+
+/**
+ * CSR snapshot of a {@link TTNRGraph}, with the edge attributes needed by the
+ * Monte Carlo estimators (prob_int and len2) stored in primitive arrays
+ * parallel to {@link #targets}. Edge len is -log(prob), as in {@link TTNREdge#getLen()}.
+ *
+ * Memory usage is 4 bytes per node and 28 bytes per (directed) edge, that is,
+ * about 280MB for 10M edges.
+ */
+public class TTNRCSRGraph<T> extends CSRGraph<T, TTNRNode<T>> {
+
+    /** See {@link TTNREdgeAttributes#prob_int} */
+    public final int[] probInt;
+
+    /** See {@link TTNREdgeAttributes#len2} */
+    public final double[] len2;
+
+    public TTNRCSRGraph(TTNRGraph<T> pGraph) {
+        super(pGraph);
+        probInt = new int[numEdges()];
+        len2 = new double[numEdges()];
+        for (int i=0; i<numNodes(); i++) {
+            int k = offsets[i];
+            for (TTNREdge<T> e: pGraph.getEdges(getNode(i))) {
+                probInt[k] = e.attributes.prob_int;
+                len2[k] = e.attributes.len2;
+                k++;
+            }
+        }
+    }
+
+    private TTNRCSRGraph(TTNRCSRGraph<T> pOther, int[] pTargets, double[] pLen, int[] pProbInt, double[] pLen2) {
+        super(pOther, pOther.offsets, pTargets, pLen);
+        probInt = pProbInt;
+        len2 = pLen2;
+    }
+
+    /**
+     * Counterpart of {@link TTNRNode#sortEdgesAccordingToTargetDistance(boolean)}
+     * for all nodes: return a copy of this graph where the edges of each node are
+     * (stably) sorted by pDist of the target node. This graph is not modified.
+     *
+     * @param pDist distances by node id, typically as computed by
+     *  {@link util.collections.graph.defaultimpl.Dijkstra#computeDistances(CSRGraph, int)}.
+     */
+    public TTNRCSRGraph<T> sortEdgesAccordingToTargetDistance(double[] pDist, boolean pSmallestFirst) {
+        int m = numEdges();
+        int[] newTargets = new int[m];
+        double[] newLen = new double[m];
+        int[] newProbInt = new int[m];
+        double[] newLen2 = new double[m];
+
+        // edges are sorted by their positions; keys are negated to get the
+        // largest first, if so desired
+        int[] order = new int[m];
+        int[] tmp = new int[m];
+        double[] keys = new double[m];
+        for (int e=0; e<m; e++) {
+            order[e] = e;
+            keys[e] = pSmallestFirst ? pDist[targets[e]] : -pDist[targets[e]];
+        }
+
+        for (int u=0; u<numNodes(); u++) {
+            mergeSort(order, tmp, keys, offsets[u], offsets[u+1]);
+        }
+
+        for (int k=0; k<m; k++) {
+            int e = order[k];
+            newTargets[k] = targets[e];
+            newLen[k] = len[e];
+            newProbInt[k] = probInt[e];
+            newLen2[k] = len2[e];
+        }
+
+        return new TTNRCSRGraph<T>(this, newTargets, newLen, newProbInt, newLen2);
+    }
+
+    /** Stable sort of pOrder[pStart..pEnd-1] according to pKeys */
+    private static void mergeSort(int[] pOrder, int[] pTmp, double[] pKeys, int pStart, int pEnd) {
+        if (pEnd - pStart <= 16) {
+            // insertion sort
+            for (int i=pStart+1; i<pEnd; i++) {
+                int x = pOrder[i];
+                double key = pKeys[x];
+                int j = i-1;
+                while (j >= pStart && pKeys[pOrder[j]] > key) {
+                    pOrder[j+1] = pOrder[j];
+                    j--;
+                }
+                pOrder[j+1] = x;
+            }
+            return;
+        }
+        int mid = (pStart + pEnd) >>> 1;
+        mergeSort(pOrder, pTmp, pKeys, pStart, mid);
+        mergeSort(pOrder, pTmp, pKeys, mid, pEnd);
+        System.arraycopy(pOrder, pStart, pTmp, pStart, pEnd - pStart);
+        int i = pStart;
+        int j = mid;
+        int k = pStart;
+        while (i < mid && j < pEnd) {
+            if (pKeys[pTmp[j]] < pKeys[pTmp[i]]) {
+                pOrder[k++] = pTmp[j++];
+            }
+            else {
+                pOrder[k++] = pTmp[i++];
+            }
+        }
+        while (i < mid) {
+            pOrder[k++] = pTmp[i++];
+        }
+        while (j < pEnd) {
+            pOrder[k++] = pTmp[j++];
+        }
+    }
+
+    /** @return id of the node with key pKey; RuntimeException if there is no such node */
+    public int getExistingId(T pKey) {
+        int id = getIdByKey(pKey);
+        if (id == -1) {
+            throw new RuntimeException("No such node: "+pKey);
+        }
+        return id;
+    }
+
+    /** Store pValues to attribute reliability of the corresponding nodes */
+    public void setReliabilities(double[] pValues) {
+        List<TTNRNode<T>> nodes = getNodes();
+        for (int v=0; v<pValues.length; v++) {
+            nodes.get(v).reliability = pValues[v];
+        }
+    }
+}
@@ -324,6 +324,175 @@ public class TTNRUtils {
               
     }
     
+    /**
+     * As {@link #computeTTNR_pairwise(TTNRGraph, Object, Object, int)}, but take
+     * a {@link TTNRCSRGraph} snapshot of the graph and do both the preprocessing
+     * and the dfs on the snapshot. The graph itself is not modified at all.
+     * 
+     * For repeated queries on the same graph, it is better to take the
+     * snapshot once and call {@link #computeTTNR_pairwise(TTNRCSRGraph, int, int, int)}
+     * directly.
+     */
+    public static final <T> double computeTTNR_pairwise_csr(TTNRGraph<T> pGraph,
+                                                            T pSrc,
+                                                            T pTgt,
+                                                            int pNumIters) {
+        Timer.startTiming("CSR snapshot");
+        TTNRCSRGraph<T> g = new TTNRCSRGraph<T>(pGraph);
+        Timer.endTiming("CSR snapshot");
+        
+        int s = g.getExistingId(pSrc);
+        int t = g.getExistingId(pTgt);
+        
+        return computeTTNR_pairwise(preprocess(g, t), s, t, pNumIters);
+    }
+    
+    /**
+     * The preprocessing of computeTTNR_pairwise on a snapshot: compute 
+     * distances to pTgt and sort edges by "best t-path first".
+     * 
+     * @return a sorted copy of pGraph. 
+     */
+    public static <T> TTNRCSRGraph<T> preprocess(TTNRCSRGraph<T> pGraph, int pTgt) {
+        Timer.startTiming("Dijkstra preprocessing");
+        double[] dist = Dijkstra.computeDistances(pGraph, pTgt);
+        Timer.endTiming("Dijkstra preprocessing");
+        
+        Timer.startTiming("Sorting edges");
+        TTNRCSRGraph<T> result = pGraph.sortEdgesAccordingToTargetDistance(dist, false);
+        Timer.endTiming("Sorting edges");
+        
+        return result;
+    }
+    
+    /**
+     * The dfs of {@link #computeTTNR_pairwise(TTNRGraph, Object, Object, int)},
+     * run directly on the arrays of a snapshot; visited nodes are marked with 
+     * the number of the iteration, so nothing needs to be cleared between
+     * iterations. Edges are tested in the order they are in pGraph, so pGraph
+     * should typically be {@link #preprocess}ed first.
+     */
+    public static final <T> double computeTTNR_pairwise(TTNRCSRGraph<T> pGraph,
+                                                        int pSrc,
+                                                        int pTgt,
+                                                        int pNumIters) {
+        if (pSrc == pTgt) {
+            // a path from node to itself is always assumed to exist
+            return 1.0;
+        }
+        
+        Timer.startTiming("MC estimation");
+        Logger.info("Actual MC estimation");
+        
+        int[] offsets = pGraph.offsets;
+        int[] targets = pGraph.targets;
+        int[] probInt = pGraph.probInt;
+        int n = pGraph.numNodes();
+        
+        int[] mark = new int[n];
+        int[] stack = new int[n];
+        
+        int successCount = 0;
+        long nTestedEdges = 0;
+        long nFailedEdges = 0;
+        
+        for (int i=1; i<=pNumIters; i++) {
+            int stackSize = 0;
+            mark[pSrc] = i;
+            stack[stackSize++] = pSrc;
+            search:
+            while (stackSize > 0) {
+                int u = stack[--stackSize];
+                int end = offsets[u+1];
+                for (int e=offsets[u]; e<end; e++) {
+                    int v = targets[e];
+                    if (mark[v] != i) {
+                        nTestedEdges++;
+                        if (myrand() >= probInt[e]) {
+                            // edge failure
+                            nFailedEdges++;
+                        }
+                        else {
+                            if (v == pTgt) {
+                                // Found t!
+                                successCount++;
+                                break search;
+                            }
+                            mark[v] = i;
+                            stack[stackSize++] = v;
+                        }
+                    }
+                }
+            }
+        }
+        
+        Logger.info("Number of tested edges:  "+nTestedEdges);
+        Logger.info("Number of failed edges:  "+nFailedEdges);
+        Logger.info("Number of working edges: "+(nTestedEdges-nFailedEdges));
+        
+        Timer.endTiming("MC estimation");
+        
+        return ((double)successCount) / pNumIters;
+    }
+    
+    /**
+     * The dfs of {@link #computeTTNR_singlesource(TTNRGraph, Object, int)},
+     * run directly on the arrays of a snapshot.
+     * 
+     * @return reliability from pSrc to each node, indexed by node id
+     *  (see {@link TTNRCSRGraph#setReliabilities(double[])}).
+     */
+    public static final <T> double[] computeTTNR_singlesource(TTNRCSRGraph<T> pGraph,
+                                                              int pSrc,
+                                                              int pNumIters) {
+        Timer.startTiming("computeTTNR_singlesource");
+        
+        int[] offsets = pGraph.offsets;
+        int[] targets = pGraph.targets;
+        int[] probInt = pGraph.probInt;
+        int n = pGraph.numNodes();
+        
+        int[] mark = new int[n];
+        int[] stack = new int[n];
+        int[] reachedCounts = new int[n];
+        
+        long nTestedEdges = 0;
+        
+        for (int i=1; i<=pNumIters; i++) {
+            int stackSize = 0;
+            mark[pSrc] = i;
+            stack[stackSize++] = pSrc;
+            while (stackSize > 0) {
+                int u = stack[--stackSize];
+                int end = offsets[u+1];
+                for (int e=offsets[u]; e<end; e++) {
+                    int v = targets[e];
+                    if (mark[v] != i) {
+                        // only have to test existence of e if v was not yet reached:
+                        nTestedEdges++;
+                        if (myrand() < probInt[e]) {
+                            mark[v] = i;
+                            reachedCounts[v]++;
+                            stack[stackSize++] = v;
+                        }
+                    }
+                }
+            }
+        }
+        reachedCounts[pSrc] = pNumIters; // s is always reached
+        
+        double[] result = new double[n];
+        for (int v=0; v<n; v++) {
+            result[v] = ((double)reachedCounts[v]) / pNumIters;
+        }
+        
+        Logger.info("Number of tested edges: "+nTestedEdges);
+        
+        Timer.endTiming("computeTTNR_singlesource");
+        
+        return result;
+    }
+    
     /**
      * Compute expected shortest path distance for a random graph.
      * Disregard iterations where there is no path at all.
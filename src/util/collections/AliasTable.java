@@ -0,0 +1,116 @@
+package util.collections;
+
+import java.util.Random;
+
+/**
+ * Samples indices 0..n-1 with probabilities proportional to fixed weights, in
+ * constant time per draw, using the alias method (in the numerically stable
+ * formulation of Vose).
+ *
+ * The table consists of n columns of equal height; column i holds index i
+ * with probability mProb[i], and index mAlias[i] otherwise. A draw thus takes
+ * a single random double: its integer part (when scaled by n) selects the
+ * column, and its fractional part decides between the column's two indices.
+ *
+ * Building the table takes linear time. The table is immutable, so it can be
+ * shared by any number of threads, each using its own Random.
+ */
+public class AliasTable {
+
+    private final double[] mProb;
+    private final int[] mAlias;
+
+    /** @param pWeights non-negative weights, not all zero; need not sum to 1 */
+    public AliasTable(double[] pWeights) {
+        int n = pWeights.length;
+        double sum = 0;
+        for (double w: pWeights) {
+            if (w < 0 || Double.isNaN(w) || Double.isInfinite(w)) {
+                throw new RuntimeException("Invalid weight: "+w);
+            }
+            sum += w;
+        }
+        if (n == 0 || sum == 0) {
+            throw new RuntimeException("Cannot sample from an empty distribution");
+        }
+
+        mProb = new double[n];
+        mAlias = new int[n];
+
+        // scaled weights (average 1), and stacks of the columns below and above average
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int numSmall = 0;
+        int numLarge = 0;
+        for (int i=0; i<n; i++) {
+            scaled[i] = pWeights[i] * n / sum;
+            if (scaled[i] < 1) {
+                small[numSmall++] = i;
+            }
+            else {
+                large[numLarge++] = i;
+            }
+        }
+
+        // fill each small column up with a large one
+        while (numSmall > 0 && numLarge > 0) {
+            int s = small[--numSmall];
+            int l = large[--numLarge];
+            mProb[s] = scaled[s];
+            mAlias[s] = l;
+            scaled[l] = (scaled[l] + scaled[s]) - 1;
+            if (scaled[l] < 1) {
+                small[numSmall++] = l;
+            }
+            else {
+                large[numLarge++] = l;
+            }
+        }
+
+        // the remaining columns are full (up to rounding errors)
+        while (numLarge > 0) {
+            int l = large[--numLarge];
+            mProb[l] = 1;
+            mAlias[l] = l;
+        }
+        while (numSmall > 0) {
+            int s = small[--numSmall];
+            mProb[s] = 1;
+            mAlias[s] = s;
+        }
+    }
+
+    public int size() {
+        return mProb.length;
+    }
+
+    /** @return an index, sampled using pRandom */
+    public int sample(Random pRandom) {
+        int n = mProb.length;
+        double u = pRandom.nextDouble() * n;
+        int i = (int)u;
+        if (i >= n) {
+            // rounding of nextDouble()*n, for a very large n
+            i = n-1;
+        }
+        return u - i < mProb[i] ? i : mAlias[i];
+    }
+
+    /** Store pNum sampled indices to pOut[0..pNum-1] */
+    public void sample(int pNum, int[] pOut, Random pRandom) {
+        for (int k=0; k<pNum; k++) {
+            pOut[k] = sample(pRandom);
+        }
+    }
+
+    /**
+     * Draw pNum samples, only counting how many times each index is drawn:
+     * pCounts[i] is incremented by the number of draws of index i.
+     */
+    public void sampleCounts(long pNum, long[] pCounts, Random pRandom) {
+        for (long k=0; k<pNum; k++) {
+            pCounts[sample(pRandom)]++;
+        }
+    }
+}
@@ -47,9 +47,18 @@ public class Distribution<T> extends HashWeightedSet<T> implements WeightedSet<T
     private T mMode;
     private double mModeWeight;        
 
-    // for sampling...                        
-    private double[] mAccumulatedSums;
-    private List<T> mAsList;                        
+    // for sampling...
+    /** Objects by their index in the sampler */
+    private List<T> mAsList;
+    /** Sampler for a fixed distribution; null if not yet initialized (or if sampling dynamically) */
+    private volatile AliasTable mAliasTable;
+    /** 
+     * Once the distribution is modified after sampling has begun, sampling continues
+     * from this instead, which is updated on each modification  
+     */
+    private FenwickTree mDynamicSampler;
+    /** Only maintained when sampling dynamically */
+    private Map<T, Integer> mIndexByObject;
         
     /** @todo ensure that code in package genetiikka is changed accordingly, as this constructor has changed! */
     public Distribution () {
@@ -94,8 +103,6 @@ public class Distribution<T> extends HashWeightedSet<T> implements WeightedSet<T
     }
     
     public void add(T pObj, double pFreq) {
-        mAccumulatedSums = null; // thus sampling must be initiated again...
-                
         if (pFreq < 0) {
             throw new RuntimeException("Trying to add object with <0 weight to distribution; soh, soh!");
         }
@@ -113,6 +120,7 @@ public class Distribution<T> extends HashWeightedSet<T> implements WeightedSet<T
             // in the opposite case we don't bother ourselves further; just forget the weightless bastard!
             // OK, assertions tell us that everything seems to be OK        
             super.add(pObj, pFreq);    
+            updateSampler(pObj);
            
             // maintain the total weight count                    
             mWeightSum += pFreq;
@@ -129,35 +137,112 @@ public class Distribution<T> extends HashWeightedSet<T> implements WeightedSet<T
         }                                                    
     }
     
-    private void initSampling() {
-        mAsList = new ArrayList(this);
-        int numObjects = size();
-        mAccumulatedSums = new double[numObjects];        
-        double accumumatedSum = 0.d;                
-        for (int i=0; i<numObjects; i++) {            
-            Object obj = mAsList.get(i);
-            double weight = getWeight(obj);
-            accumumatedSum += weight;
-            mAccumulatedSums[i] = accumumatedSum;                        
-        }                         
+    /**
+     * Keep the sampler up to date after the weight of pObj has changed: if sampling 
+     * has begun, switch to (or continue) sampling dynamically.
+     */
+    private void updateSampler(T pObj) {
+        if (mDynamicSampler == null && mAliasTable != null) {
+            // modified after sampling has begun; assume that it will be modified again
+            mDynamicSampler = new FenwickTree(mAsList.size());
+            mIndexByObject = new HashMap<T, Integer>();
+            for (T obj: mAsList) {
+                mIndexByObject.put(obj, mDynamicSampler.append(super.getWeight(obj)));
+            }
+            mAliasTable = null;
+        }
+        if (mDynamicSampler != null) {
+            // removed objects keep their index, with weight 0
+            Integer ind = mIndexByObject.get(pObj);
+            if (ind == null) {
+                ind = mDynamicSampler.append(0);
+                mIndexByObject.put(pObj, ind);
+                mAsList.add(pObj);
+            }
+            mDynamicSampler.setWeight(ind, super.getWeight(pObj));
+        }
     }
-        
+    
+    /** Build the alias table on first use (thread-safely) */
+    private AliasTable aliasTable() {
+        AliasTable table = mAliasTable;
+        if (table == null) {
+            synchronized (this) {
+                table = mAliasTable;
+                if (table == null) {
+                    List<T> asList = new ArrayList<T>(this);
+                    double[] weights = new double[asList.size()];
+                    for (int i=0; i<weights.length; i++) {
+                        weights[i] = super.getWeight(asList.get(i));
+                    }
+                    table = new AliasTable(weights);
+                    mAsList = asList;
+                    mAliasTable = table;
+                }
+            }
+        }
+        return table;
+    }
+    
+    /** Sample using the shared generator of {@link RandUtils} */
     public T sample() {
-        if (mAccumulatedSums == null) {
-            initSampling();
+        return sample(RandUtils.getRandomNumberGenerator());
+    }
+    
+    /**
+     * Sample in constant time (by the alias method), or in logarithmic time if the 
+     * distribution has been modified after sampling has begun.
+     *   
+     * Several threads may sample concurrently, each using its own pRandom 
+     * (e.g. ThreadLocalRandom.current()), as long as the distribution is not modified.
+     */
+    public T sample(Random pRandom) {
+        if (mDynamicSampler != null) {
+            return mAsList.get(mDynamicSampler.sample(pRandom));
+        }
+        int ind = aliasTable().sample(pRandom);
+        return mAsList.get(ind);
+    }
+    
+    /**
+     * Bulk sampling: store the indices of pNum sampled objects in pOut[0..pNum-1];
+     * the objects themselves are available from {@link #getSampleSpace()}.
+     */
+    public void sample(int pNum, int[] pOut, Random pRandom) {
+        if (mDynamicSampler != null) {
+            mDynamicSampler.sample(pNum, pOut, pRandom);
+        }
+        else {
+            aliasTable().sample(pNum, pOut, pRandom);
+        }
+    }
+    
+    /**
+     * Bulk sampling, when only the number of times each object is drawn matters: 
+     * pCounts[i] is incremented by the number of draws of object i of 
+     * {@link #getSampleSpace()}.  
+     */
+    public void sampleCounts(long pNum, long[] pCounts, Random pRandom) {
+        if (mDynamicSampler != null) {
+            for (long k=0; k<pNum; k++) {
+                pCounts[mDynamicSampler.sample(pRandom)]++;
+            }
         }
-        double r = RandUtils.getRandomNumberGenerator().nextDouble();
-        int index = Arrays.binarySearch(mAccumulatedSums, r);
-        if (index < 0.d ) {
-            // OK, now index = (-(insertion point) - 1)
-            index = -index -1;
-        }       
         else {
-            // exact match (what an unusual occurence!)                        
-            index = index + 1;         
+            aliasTable().sampleCounts(pNum, pCounts, pRandom);
+        }
+    }
+    
+    /**
+     * Objects by the indices returned by the bulk sampling methods. Objects removed 
+     * after sampling has begun may remain here (but are never sampled). 
+     */
+    public List<T> getSampleSpace() {
+        if (mDynamicSampler == null) {
+            aliasTable();
         }
-        return mAsList.get(index);                      
-    }            
+        return Collections.unmodifiableList(mAsList);
+    }
         
     public Object sample_old() {
         double r = RandUtils.getRandomNumberGenerator().nextDouble();
@@ -180,13 +265,14 @@ public class Distribution<T> extends HashWeightedSet<T> implements WeightedSet<T
     }    
 
     public boolean remove(Object pObj) {
-        mAccumulatedSums = null; // thus sampling must be initiated again...
         double weight = super.getWeight(pObj);
         if (weight == 0) {
             return false;
         }
         mWeightSum -= weight;
-        return super.remove(pObj);                                     
+        boolean removed = super.remove(pObj);
+        updateSampler((T)pObj);
+        return removed;
     }
     
     /** pObjs must contains objects implementing ObjectWithWeight */
@@ -0,0 +1,141 @@
+package util.collections;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Non-negative weights of indices 0..size-1, stored in a Fenwick (binary indexed)
+ * tree, so that both changing a weight and sampling an index with probability
+ * proportional to its weight take logarithmic time. This is for weights that
+ * change between draws; for fixed weights, {@link AliasTable} is faster.
+ *
+ * New indices may be appended; the tree is grown as needed.
+ *
+ * Not thread-safe for modifications, but any number of threads may sample
+ * concurrently (each using its own Random), as long as there are no modifications.
+ */
+public class FenwickTree {
+
+    /** mTree[i] (1-based) is the sum of the weights of indices i-lowbit(i)..i-1 */
+    private double[] mTree;
+    private double[] mWeights;
+    private int mSize;
+
+    public FenwickTree(int pInitialCapacity) {
+        int capacity = Math.max(pInitialCapacity, 1);
+        mTree = new double[capacity+1];
+        mWeights = new double[capacity];
+        mSize = 0;
+    }
+
+    /** Tree containing indices 0..pWeights.length-1, with the given weights */
+    public FenwickTree(double[] pWeights) {
+        this(pWeights.length);
+        for (double w: pWeights) {
+            checkWeight(w);
+        }
+        System.arraycopy(pWeights, 0, mWeights, 0, pWeights.length);
+        mSize = pWeights.length;
+        build();
+    }
+
+    private static void checkWeight(double pWeight) {
+        if (pWeight < 0 || Double.isNaN(pWeight) || Double.isInfinite(pWeight)) {
+            throw new RuntimeException("Invalid weight: "+pWeight);
+        }
+    }
+
+    /** Compute the tree from mWeights in linear time */
+    private void build() {
+        Arrays.fill(mTree, 0);
+        for (int i=1; i<=mSize; i++) {
+            mTree[i] += mWeights[i-1];
+            int parent = i + (i & -i);
+            if (parent < mTree.length) {
+                mTree[parent] += mTree[i];
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** Append a new index with weight pWeight; @return the new index */
+    public int append(double pWeight) {
+        checkWeight(pWeight);
+        if (mSize == mWeights.length) {
+            mWeights = Arrays.copyOf(mWeights, mWeights.length * 2);
+            mTree = new double[mWeights.length+1];
+            build();
+        }
+        mSize++;
+        setWeight(mSize-1, pWeight);
+        return mSize-1;
+    }
+
+    public double getWeight(int pInd) {
+        return mWeights[pInd];
+    }
+
+    public void setWeight(int pInd, double pWeight) {
+        checkWeight(pWeight);
+        if (pInd < 0 || pInd >= mSize) {
+            throw new IndexOutOfBoundsException("Index: "+pInd+", size: "+mSize);
+        }
+        double delta = pWeight - mWeights[pInd];
+        mWeights[pInd] = pWeight;
+        for (int i=pInd+1; i<mTree.length; i+=i & -i) {
+            mTree[i] += delta;
+        }
+    }
+
+    public void addWeight(int pInd, double pDelta) {
+        setWeight(pInd, mWeights[pInd] + pDelta);
+    }
+
+    /** @return sum of the weights of indices 0..pInd-1 */
+    public double prefixSum(int pInd) {
+        double sum = 0;
+        for (int i=pInd; i>0; i-=i & -i) {
+            sum += mTree[i];
+        }
+        return sum;
+    }
+
+    public double getTotalWeight() {
+        return prefixSum(mSize);
+    }
+
+    /** @return an index sampled with probability proportional to its weight */
+    public int sample(Random pRandom) {
+        double total = getTotalWeight();
+        if (total <= 0) {
+            throw new RuntimeException("Cannot sample from an empty distribution");
+        }
+        int highBit = Integer.highestOneBit(mTree.length-1);
+        while (true) {
+            // descend to the last index whose prefix sum is <= target
+            double target = pRandom.nextDouble() * total;
+            int pos = 0;
+            for (int step=highBit; step>0; step>>=1) {
+                int next = pos + step;
+                if (next < mTree.length && mTree[next] <= target) {
+                    pos = next;
+                    target -= mTree[next];
+                }
+            }
+            // rounding errors may lead to an index of zero weight (or beyond the end)
+            if (pos < mSize && mWeights[pos] > 0) {
+                return pos;
+            }
+        }
+    }
+
+    /** Store pNum sampled indices to pOut[0..pNum-1] */
+    public void sample(int pNum, int[] pOut, Random pRandom) {
+        for (int k=0; k<pNum; k++) {
+            pOut[k] = sample(pRandom);
+        }
+    }
+}
@@ -5,7 +5,6 @@ import java.util.*;
 
 import util.Utils;
 import util.collections.IPair;
-import util.collections.MultiMap;
 import util.dbg.Logger;
 
 /**
@@ -25,282 +24,317 @@ import util.dbg.Logger;
  *  
  * Parametrized by the class used to represent the nodes.
  *
+ * Nodes and edges are numbered internally, and the depth-first search
+ * (Hopcroft-Tarjan) is iterative, using explicit int stacks of nodes and edges
+ * instead of recursion, so that there is no risk of a stack overflow even on
+ * graphs with very long paths (e.g. road networks). All connected components of
+ * the graph are searched. Memory usage is a few ints per node and per edge.
+ *
  * Original author: Hyung-Joon Kim. 
  * Customized by Lauri.
  */
 public class BiconnectedComponents<T>  {
-   
-   private Map<T, NodeWrapper> mVertices;   
+
+   private IUndirectedGraph <T> mInputGraph;
+
+   /** Id of each node; ids are indices to mNodes */
+   private Map<T, Integer> mIdByNode;
+   private ArrayList<T> mNodes;
+
    private int numEdges;  // total number of edges in a graph
    private int numBCC;  // number of biconnected components in a graph
-   private int dfsCounter = 1;  // will be used to assign dfsNum to each node
-   
-   private IUndirectedGraph <T> mInputGraph;
-   
-   /** Store the articulation points here. */
-   private ArrayList<NodeWrapper> mArticPointList;
-   
-   /** Store the biconnected components here */
-   private ArrayList<BCC> mBccList;   
-   
-   private LinkedList<Edge> stackVisited;  // a stack in which all visited edges are stored during DFS
-         
+
+   /** Edge i is {mEdgeU[i], mEdgeV[i]} (node ids) */
+   private int[] mEdgeU;
+   private int[] mEdgeV;
+
+   /** Results of run(): */
+   private boolean[] mIsArticPoint;
+   private int mNumArticPoints;
+   /** Edges of BCC c are mBCCEdges[mBCCOffsets[c]..mBCCOffsets[c+1]-1] */
+   private int[] mBCCOffsets;
+   private int[] mBCCEdges;
+
    /**
     * @param pData a NON-directed graph (somewhat confusingly represented
     * by IDirectedGraph...); todo: refactor away such oddities...
-    */   
+    */
     public BiconnectedComponents(IUndirectedGraph<T> pData) {
-        mVertices = new HashMap();       
-        mArticPointList = new ArrayList();
-        mBccList = new ArrayList();
-        stackVisited = new LinkedList();
+        mIdByNode = new HashMap();
+        mNodes = new ArrayList();
+        mEdgeU = new int[16];
+        mEdgeV = new int[16];
         mInputGraph = pData;
         Set<IPair<T,T>> edges = mInputGraph.edges();
         for (IPair<T,T> edge: edges) {
             addEdge(edge.getObj1(), edge.getObj2());
-        }   
+        }
     }
-   
-   private NodeWrapper getOrCreateNodeWrapper(T pNode) {
-       NodeWrapper v = mVertices.get(pNode);
-       if (v == null) {
-           v = new NodeWrapper(pNode);
-           // Logger.info("Created vertex: "+v);
-           mVertices.put(pNode, v);
-       }      
-       return v;
-   }
-   
+
+    private int getOrCreateId(T pNode) {
+        Integer id = mIdByNode.get(pNode);
+        if (id == null) {
+            id = mNodes.size();
+            mIdByNode.put(pNode, id);
+            mNodes.add(pNode);
+        }
+        return id;
+    }
+
     /**
-     * Add an edge to the adjacent edge list of vertices while reading pairs
-     * from the input. 
-     * 
+     * Add an edge to the graph; to have any effect, this has to be called
+     * before run().
+     *
      * @param pU one node incident to the edge
      * @param pV the other vertex incident to the edge
      */
-    public void addEdge(T pU, T pV) {               
-    	NodeWrapper u = getOrCreateNodeWrapper(pU);
-    	NodeWrapper v = getOrCreateNodeWrapper(pV);      
-    	// Add the edge to the adjacent edge list of both vertices
-    	u.neighborList.add(pV);
-    	v.neighborList.add(pU);
-    	numEdges++;       
+    public void addEdge(T pU, T pV) {
+        int u = getOrCreateId(pU);
+        int v = getOrCreateId(pV);
+        if (numEdges == mEdgeU.length) {
+            mEdgeU = Arrays.copyOf(mEdgeU, numEdges*2);
+            mEdgeV = Arrays.copyOf(mEdgeV, numEdges*2);
+        }
+        mEdgeU[numEdges] = u;
+        mEdgeV[numEdges] = v;
+        numEdges++;
     }
-   
+
     /**
-     * Using recursive DFS, find articulation points and biconnected components
-     * in a graph. While doing DFS, all information needed to find artic. point
-     * and BCC. will be stored and updated. And also, as soon as an artic. point
-     * is found, it will build a list of all edges in each BCC rooted at the
-     * artic. point by using a stack of global scope.
-     * @param v the vertex at which DFS will be performed.
+     * Find articulation points and biconnected components (as sets of edges)
+     * of the whole graph, by an iterative depth-first search.
      */
-    public void doArticPointDFS(NodeWrapper v) {
-      
-        // Set DFS info of node 'v'      
-        v.dfsnum = dfsCounter++;
-        v.low = v.dfsnum;
-      
-    	///////////////////////////////////////////////////////////////////////
-    	// The followings are only for eye-debugging purpose
-    	//
-    	// Create a sorted set of neighbors 'x' of vertex 'v' so that DFS can
-    	// visit edge (v,x) in order. 
-    	//SortedSet neighbors = new TreeSet();
-    	//Iterator eIter = v.eList.iterator();
-    	//while(eIter.hasNext()) {
-    	//   neighbors.add(eIter.next());  // guaranteed log(n) time by Java Lib. 
-    	//}
-    	//Iterator xIter = neighbors.iterator();      
-    	///////////////////////////////////////////////////////////////////////
-          
-        for (T neighbor: v.neighborList) {            
-            NodeWrapper x = mVertices.get(neighbor);         
-            if (x.dfsnum == -1) {  // x is undiscovered
-                x.dfslevel = v.dfslevel + 1;
-                v.numChildren = v.numChildren + 1;            
-                stackVisited.push(new Edge(v, x));  // add this edge to the stack        
-                
-                doArticPointDFS(x);  // recursively perform DFS at children nodes
-                
-                v.low = Math.min(v.low, x.low);
-                
-                if (v.dfsnum == 1) {
-                    // Special Case for root
-                    // Root is an artic. point iff there are two or more children   
-                    if (v.numChildren >=2) {
-                        if (!mArticPointList.contains(v)) {
-                            mArticPointList.add(v);                      
-                        }                                   
+    public void run() {
+        int n = mNodes.size();
+        int m = numEdges;
+
+        // adjacency arrays: half-edges of node u are at adjOffsets[u]..adjOffsets[u+1]-1
+        int[] adjOffsets = new int[n+1];
+        for (int e=0; e<m; e++) {
+            adjOffsets[mEdgeU[e]+1]++;
+            adjOffsets[mEdgeV[e]+1]++;
+        }
+        for (int u=0; u<n; u++) {
+            adjOffsets[u+1] += adjOffsets[u];
+        }
+        int[] adjNode = new int[2*m];
+        int[] adjEdge = new int[2*m];
+        int[] fill = Arrays.copyOf(adjOffsets, n);
+        for (int e=0; e<m; e++) {
+            int u = mEdgeU[e];
+            int v = mEdgeV[e];
+            adjNode[fill[u]] = v;
+            adjEdge[fill[u]++] = e;
+            adjNode[fill[v]] = u;
+            adjEdge[fill[v]++] = e;
+        }
+        fill = null;
+
+        int[] dfsnum = new int[n];      // 0 = undiscovered
+        int[] low = new int[n];         // lowest dfsnum reachable from the subtree of the node
+        int[] parentEdge = new int[n];  // tree edge by which the node was discovered
+        int[] next = new int[n];        // next half-edge to explore, for each node on the stack
+        int[] nodeStack = new int[n];
+        int[] edgeStack = new int[m];
+        int[] bccOfEdge = new int[m];
+        Arrays.fill(bccOfEdge, -1);
+        mIsArticPoint = new boolean[n];
+        mNumArticPoints = 0;
+        numBCC = 0;
+        int dfsCounter = 0;
+
+        for (int root=0; root<n; root++) {
+            if (dfsnum[root] != 0) {
+                continue;
+            }
+            int numRootChildren = 0;
+            int nodeTop = 0;
+            int edgeTop = 0;
+            nodeStack[nodeTop++] = root;
+            dfsnum[root] = low[root] = ++dfsCounter;
+            parentEdge[root] = -1;
+            next[root] = adjOffsets[root];
+
+            while (nodeTop > 0) {
+                int v = nodeStack[nodeTop-1];
+                if (next[v] < adjOffsets[v+1]) {
+                    int h = next[v]++;
+                    int x = adjNode[h];
+                    int e = adjEdge[h];
+                    if (e == parentEdge[v]) {
+                        continue;
+                    }
+                    if (dfsnum[x] == 0) {
+                        // tree edge: descend to x
+                        edgeStack[edgeTop++] = e;
+                        parentEdge[x] = e;
+                        dfsnum[x] = low[x] = ++dfsCounter;
+                        next[x] = adjOffsets[x];
+                        nodeStack[nodeTop++] = x;
+                        if (v == root) {
+                            numRootChildren++;
+                        }
                     }
-                    retrieveBCCEdges(v, x);
+                    else if (dfsnum[x] < dfsnum[v]) {
+                        // back edge to an ancestor
+                        edgeStack[edgeTop++] = e;
+                        low[v] = Math.min(low[v], dfsnum[x]);
+                    }
+                    // else: x is a descendant, and the edge was already seen from x
                 }
-                else{
-                    if (x.low >= v.dfsnum) {
-                        // v is artic. point seperating x. That is, children of v
-                        // cannot climb higher than v without passing through v.
-                        if (!mArticPointList.contains(v)) {
-                            mArticPointList.add(v);                      
-                        } 
-                        retrieveBCCEdges(v, x);
+                else {
+                    // v is finished; return to its parent
+                    nodeTop--;
+                    if (nodeTop == 0) {
+                        break;
+                    }
+                    int p = nodeStack[nodeTop-1];
+                    low[p] = Math.min(low[p], low[v]);
+                    if (low[v] >= dfsnum[p]) {
+                        // p separates the subtree of v: edges above the tree
+                        // edge (p,v) on the stack form a biconnected component.
+                        // The root is an artic. point iff it has two or more children.
+                        if ((p != root || numRootChildren >= 2) && !mIsArticPoint[p]) {
+                            mIsArticPoint[p] = true;
+                            mNumArticPoints++;
+                        }
+                        int e;
+                        do {
+                            e = edgeStack[--edgeTop];
+                            bccOfEdge[e] = numBCC;
+                        } while (e != parentEdge[v]);
+                        numBCC++;
                     }
                 }
             }
-            else if (x.dfslevel < v.dfslevel - 1) {   
-                // x is at a lower level than the level of v's parent.
-                // equiv. (v,x) is a back edge
-                v.low = Math.min(v.low, x.dfsnum);           
-                stackVisited.push(new Edge(v, x)); // add the back edge to the stack        
-            }         
-        }     
+        }
+
+        // group edges by BCC (self-loops belong to no BCC)
+        mBCCOffsets = new int[numBCC+1];
+        for (int e=0; e<m; e++) {
+            if (bccOfEdge[e] != -1) {
+                mBCCOffsets[bccOfEdge[e]+1]++;
+            }
+        }
+        for (int c=0; c<numBCC; c++) {
+            mBCCOffsets[c+1] += mBCCOffsets[c];
+        }
+        mBCCEdges = new int[mBCCOffsets[numBCC]];
+        fill = Arrays.copyOf(mBCCOffsets, numBCC);
+        for (int e=0; e<m; e++) {
+            if (bccOfEdge[e] != -1) {
+                mBCCEdges[fill[bccOfEdge[e]]++] = e;
+            }
+        }
     }
-   
-    /**
-     * Retrieve all edges in a biconnected component. Since DFS is a recursive
-     * algorithm, using a global stack, all edges in a bicconected component
-     * can be traced back whenever each articulation point is found. If v is
-     * an artic. point, all edges of the subtree rooted at v can be retrieved
-     * from the top of the stack down to (v,x) where (v,x) is the last edge
-     * incident to the artic. point.
-     * @param v articulation point
-     * @param x child node of the articulation point
-     */
-    public void retrieveBCCEdges(NodeWrapper v, NodeWrapper x) {      
-        // Whenever this method is called, a new biconected component must be
-        // found. So, number of BCC. increment by 1 and create a new instance of
-        // BCC.
-        numBCC++;
-        BCC bcc = new BCC(numBCC);     
-      
-    	Edge top = (Edge)stackVisited.peek();      
-    	// Until the top of the stack is (v,x), trace back and build a list of
-    	// all edges in each BCC. 
-    	while (!top.equal(v, x)) {
-    	    Edge e = (Edge)stackVisited.pop();
-    	    bcc.edgeList.add(e);
-    	    top = (Edge)stackVisited.peek();         
-    	}      
-    	Edge e = (Edge)stackVisited.pop();      
-    	bcc.edgeList.add(e);      
-    	mBccList.add(bcc);  // add the BCC to a list
-    }      
-    
+
+    /** @return articulation points found by run() */
+    public List<T> getArticulationPoints() {
+        List<T> result = new ArrayList<T>(mNumArticPoints);
+        for (int v=0; v<mIsArticPoint.length; v++) {
+            if (mIsArticPoint[v]) {
+                result.add(mNodes.get(v));
+            }
+        }
+        return result;
+    }
+
+    /** @return number of biconnected components found by run() */
+    public int getNumBCCs() {
+        return numBCC;
+    }
+
     /**
      * Show all the results of DFS.
      */
     public void showResult() {
-    	System.out.println("       Total number of vertices : "+mVertices.size());
-    	System.out.println("          Total number of edges : "+numEdges);      
-    	System.out.println("  Number of articulation points : "+mArticPointList.size());
-    	System.out.print("    List of articulation points : ");  
-    	if (mArticPointList.isEmpty()) {
+    	System.out.println("       Total number of vertices : "+mNodes.size());
+    	System.out.println("          Total number of edges : "+numEdges);
+    	System.out.println("  Number of articulation points : "+mNumArticPoints);
+    	System.out.print("    List of articulation points : ");
+    	if (mNumArticPoints == 0) {
     	    System.out.print("No articulation point in the graph.");
     	}
     	else {
-    	    Iterator iter1 = mArticPointList.iterator();
-    	    while (iter1.hasNext()) {
-    		NodeWrapper v = (NodeWrapper)iter1.next();
-    		System.out.print(v.wrappedNode + " ");
+    	    for (T v: getArticulationPoints()) {
+    	        System.out.print(v + " ");
     	    }
-    	}           
+    	}
     	System.out.println("\nNumber of biconnected component : "+numBCC);
     	System.out.print("Edges in each biconnected component : ");
-    	if (mArticPointList.isEmpty()) {
-    	    System.out.print("The graph is biconnected since no articulation point exists.");                  
+    	if (mNumArticPoints == 0) {
+    	    System.out.print("The graph is biconnected since no articulation point exists.");
     	}
-    	
-	    for (int i=0; i<mBccList.size(); i++) {
-    		BCC bcc = (BCC)mBccList.get(i);
-    		System.out.print("\n  Component "+bcc.id+" : ");
-    		Iterator eIter = bcc.edgeList.iterator();
-    		while (eIter.hasNext()) {
-    		    Edge e = (Edge) eIter.next();
-    		    System.out.print(e.getEdgeString()+" ");
+
+	    for (int c=0; c<numBCC; c++) {
+    		System.out.print("\n  Component "+(c+1)+" : ");
+    		for (int k=mBCCOffsets[c]; k<mBCCOffsets[c+1]; k++) {
+    		    int e = mBCCEdges[k];
+    		    System.out.print("("+mNodes.get(mEdgeU[e])+","+mNodes.get(mEdgeV[e])+") ");
     		}
         }
-        
+
     	System.out.println();
     	// logStatistics()
     }
-      
-    //////////////////////////////////////////////////////////////////////////
-    // Inner classes - Vertex, Edge, BCC - are data structures for a graph. 
-    //////////////////////////////////////////////////////////////////////////   
-    class NodeWrapper {     
-    	T wrappedNode;
-    	int low;  // lowest tree level reachable from this vertex
-    	int dfsnum;
-    	int dfslevel;   // tree level of this vertex in DFS
-    	int numChildren;
-    	LinkedList<T> neighborList;  // list of edges incident to this vertex
-        Set<BCC> mBCCSet;
-        
-    	// Create a vertex with given ID number
-    	NodeWrapper(T pNode) {         
-    	    wrappedNode = pNode;
-    	    dfsnum = -1;  // initially undiscovered
-    	    neighborList = new LinkedList();  // create empty list for adjacency edges
-            mBCCSet = new HashSet(2);
-    	}     
-      
-    	public String toString() {
-    	    return ""+wrappedNode;
-    	}
-    }         
-    
+
     /**
-     * Given some s-t-path, compute the set of nodes that are on at least 
+     * Given some s-t-path, compute the set of nodes that are on at least
      * one acyclic s-t-path (of course not necessarily the same as the
-     * initially found path.
+     * initially found path. Requires that run() has been called.
      */
     public Set<T> getNodesOnAcyclicSTPaths(T pSrc, T pTgt) {
-        Set<T> result = new HashSet();        
-    
+        Set<T> result = new HashSet();
+
         List<T> path = GraphUtils.findPath_bfs(mInputGraph, pSrc, pTgt);
-        // Logger.info("Path: "+path);       
-        
+        // Logger.info("Path: "+path);
+
         if (path == null) {
             // No paths at all
             return Collections.EMPTY_SET;
         }
-        
-        // a clumsy implementation indeed follows:
-        Set<T> pathNodeSet = new HashSet(path);
-        MultiMap<BCC, T> visitedNodesByBCC = MultiMap.makeHashMapBasedMultiMap();
-        
-        // Logger.info("*********************************************************");
-        // Logger.info("There are "+mBccList.size()+" biconnected components.");
-        
-        for (BCC bcc: mBccList) {
-            for (Edge edge: bcc.edgeList) {                
-                T u = edge.u.wrappedNode;
-                T v = edge.v.wrappedNode;
-                if (pathNodeSet.contains(u)) {
-                    visitedNodesByBCC.put(bcc, u);
-                }
-                if (pathNodeSet.contains(v)) {
-                    visitedNodesByBCC.put(bcc, v);
-                }                                
+
+        int n = mNodes.size();
+        boolean[] onPath = new boolean[n];
+        for (T node: path) {
+            Integer id = mIdByNode.get(node);
+            if (id != null) {
+                onPath[id] = true;
             }
         }
-        
-        for (BCC bcc: visitedNodesByBCC.keySet()) {
-            if (visitedNodesByBCC.get(bcc).size() >= 2) {
-                // at least 2 nodes visited in this bcc, whole BCC will 
+
+        // stamp[v] == c+1 iff node v has already been seen in BCC c
+        int[] stamp = new int[n];
+        for (int c=0; c<numBCC; c++) {
+            int numPathNodes = 0;
+            for (int k=mBCCOffsets[c]; k<mBCCOffsets[c+1] && numPathNodes < 2; k++) {
+                int e = mBCCEdges[k];
+                int u = mEdgeU[e];
+                int v = mEdgeV[e];
+                if (stamp[u] != c+1) {
+                    stamp[u] = c+1;
+                    numPathNodes += onPath[u] ? 1 : 0;
+                }
+                if (stamp[v] != c+1) {
+                    stamp[v] = c+1;
+                    numPathNodes += onPath[v] ? 1 : 0;
+                }
+            }
+            if (numPathNodes >= 2) {
+                // at least 2 nodes visited in this bcc, whole BCC will
                 // be part or the result
-                for (Edge edge: bcc.edgeList) {                
-                    T u = edge.u.wrappedNode;
-                    T v = edge.v.wrappedNode;
-                    result.add(u);
-                    result.add(v);
+                for (int k=mBCCOffsets[c]; k<mBCCOffsets[c+1]; k++) {
+                    int e = mBCCEdges[k];
+                    result.add(mNodes.get(mEdgeU[e]));
+                    result.add(mNodes.get(mEdgeV[e]));
                 }
             }
         }
-        
+
         Logger.dbg("There are "+result.size()+" nodes on acyclic paths");
         return result;
     }
-    
+
     @SuppressWarnings("unused")
     private static class SimpleNode  {
        
@@ -324,46 +358,6 @@ public class BiconnectedComponents<T>  {
        
     }
    
-    class Edge {      
-    	NodeWrapper u, v;   // two vertices incident to this edge       
-          
-    	// Create an edge with given vertices
-    	Edge(NodeWrapper a, NodeWrapper b) {
-    	    u = a;  v = b;
-    	}
-          
-        // BCC mBCC;
-        
-    	String getEdgeString() {
-    	    return "("+u.wrappedNode+","+v.wrappedNode+")";
-    	}
-          
-    	// Check if two edges are the same by comparing two vertices in edges
-    	boolean equal(NodeWrapper a, NodeWrapper b) {
-    	    return ((u.wrappedNode == a.wrappedNode) && (v.wrappedNode == b.wrappedNode));
-    	}   
-          
-    	public String toString() {
-    	    return "("+u+","+v+")";
-    	}
-      
-    }
-   
-    class BCC {      
-    	int id;
-    	LinkedList<Edge> edgeList;  // list of edges in a biconnected component
-        
-    	// Create a bicconected component with given ID number
-    	BCC(int n) {
-    	    id = n;
-    	    edgeList = new LinkedList();
-    	}
-    }
-    //////////////////////////////////////////////////////////////////////////
-    //                      End of Inner class definitions                  
-    //////////////////////////////////////////////////////////////////////////
- 
-
     /**
      * Top-level function which creates an instance of 'ArtcPointDFS' class and
      * invokes its methods to find articulation points and biconnected component
@@ -441,29 +435,4 @@ public class BiconnectedComponents<T>  {
             System.out.println(node);
         }
     }
-
-    public void run() throws Exception {        
-                         
-        // Determine the starting vertex for search
-        if (mVertices.size() == 0) {
-            // no vertices.
-            return;
-        }
-        
-        NodeWrapper startVertex = mVertices.values().iterator().next();  
-        
-        // Stamp the starting time of the algorithm.
-        // long time1 = System.currentTimeMillis();
-        
-        doArticPointDFS(startVertex); // Perform aritc. point search 
-        
-        // Stamp the ending time of the algorithm.
-        // long time2 = System.currentTimeMillis();
-
-        // Determine running time of DFS
-        // long elapse = time2 - time1;
-        
-        // Logger.info("\n  Running Time of the algorithm : "+(long)elapse+" ms.");
-            
-    }
-}   
\ No newline at end of file
+}
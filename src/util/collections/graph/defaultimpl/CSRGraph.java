@@ -0,0 +1,114 @@
+package util.collections.graph.defaultimpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable "compressed sparse row" snapshot of a {@link DefaultGraph}.
+ *
+ * Nodes are identified by ints 0..numNodes()-1; the edges starting from node
+ * u are at positions offsets[u]..offsets[u+1]-1 of the edge arrays, in the
+ * same order as in {@link DefaultGraph#getEdges(DefaultNode)} at the time the
+ * snapshot was taken. Edge attributes are stored in parallel primitive arrays
+ * (here only len, subclasses may add their own), so that traversing the graph
+ * does not involve any object dereferencing. For a graph of 10M (directed) edges,
+ * offsets, targets and len take 120MB in total.
+ *
+ * The arrays are public for efficient access by the algorithms, but must not be
+ * modified. Note that the snapshot is not updated when the graph changes.
+ */
+public class CSRGraph<T, N extends DefaultNode<T>> {
+
+    /** Length n+1; edges of node u are at offsets[u]..offsets[u+1]-1 */
+    public final int[] offsets;
+
+    /** Target node of each edge */
+    public final int[] targets;
+
+    /** Length of each edge, as given by {@link IDijkstraEdge#getLen()} */
+    public final double[] len;
+
+    private final List<N> mNodes;
+    private final Map<T, Integer> mIdByKey;
+
+    public <E extends AbstractEdge<T,N> & IDijkstraEdge> CSRGraph(DefaultGraph<T,N,E> pGraph) {
+        mNodes = new ArrayList<N>(pGraph.getNodes());
+        int n = mNodes.size();
+        mIdByKey = new HashMap<T, Integer>(n * 2);
+        for (int i=0; i<n; i++) {
+            mIdByKey.put(mNodes.get(i).getKey(), i);
+        }
+
+        offsets = new int[n+1];
+        for (int i=0; i<n; i++) {
+            long end = (long)offsets[i] + pGraph.getEdges(mNodes.get(i)).size();
+            if (end > Integer.MAX_VALUE) {
+                throw new RuntimeException("Too many edges for a CSR graph");
+            }
+            offsets[i+1] = (int)end;
+        }
+
+        int m = offsets[n];
+        targets = new int[m];
+        len = new double[m];
+        for (int i=0; i<n; i++) {
+            int k = offsets[i];
+            for (E e: pGraph.getEdges(mNodes.get(i))) {
+                targets[k] = mIdByKey.get(e.tgt.getKey());
+                len[k] = e.getLen();
+                k++;
+            }
+        }
+    }
+
+    /**
+     * Share the nodes of pOther, but use the given arrays; for subclasses
+     * producing modified copies (e.g. with edges reordered).
+     */
+    protected CSRGraph(CSRGraph<T,N> pOther, int[] pOffsets, int[] pTargets, double[] pLen) {
+        mNodes = pOther.mNodes;
+        mIdByKey = pOther.mIdByKey;
+        offsets = pOffsets;
+        targets = pTargets;
+        len = pLen;
+    }
+
+    public int numNodes() {
+        return mNodes.size();
+    }
+
+    public int numEdges() {
+        return targets.length;
+    }
+
+    public int degree(int pNode) {
+        return offsets[pNode+1] - offsets[pNode];
+    }
+
+    public N getNode(int pId) {
+        return mNodes.get(pId);
+    }
+
+    /** @return nodes in the order of their ids */
+    public List<N> getNodes() {
+        return Collections.unmodifiableList(mNodes);
+    }
+
+    /** @return id of the node, or -1 if the node was not in the graph when the snapshot was taken */
+    public int getId(N pNode) {
+        return getIdByKey(pNode.getKey());
+    }
+
+    /** @return id of the node with key pKey, or -1 if there is no such node in the snapshot */
+    public int getIdByKey(T pKey) {
+        Integer id = mIdByKey.get(pKey);
+        return id != null ? id : -1;
+    }
+
+    public String toString() {
+        return "CSRGraph: "+numNodes()+" nodes, "+numEdges()+" edges";
+    }
+}
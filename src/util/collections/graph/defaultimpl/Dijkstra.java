@@ -1,14 +1,18 @@
 package util.collections.graph.defaultimpl;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
 import util.collections.BinaryHeap;
+import util.collections.IntDoubleIndexedHeap;
 import util.collections.Pair;
 import util.dbg.Logger;
 import util.factory.Factory;
@@ -396,6 +400,9 @@ public class Dijkstra {
      * 
      * If a node is not reached, it's dist shall be set to Double.MAX_VALUE.
      * 
+     * The nodes are numbered in the order of pGraph.getNodes() and kept in an
+     * {@link IntDoubleIndexedHeap}; only reached nodes are ever put to the heap.
+     * 
      * Apologies for the horrible type parameter lists.
      * 
      * NOTE: this is currently the "best" method of writing signatures
@@ -410,35 +417,75 @@ public class Dijkstra {
         void computeDistances(DefaultGraph<T,N, E> pGraph, N pSrc) {
                                                                                                                                        
         Logger.dbg("Starting dijkstra search from "+pSrc);
-         
-        BinaryHeap<N,Double> heap = new BinaryHeap(BinaryHeap.Mode.MIN);
-
-        for (N n: pGraph.getNodes()) {
-            // todo: how to avoid duplicate maintenance of distance (both in heap
-            // and in the node itself...)
+        
+        List<N> nodes = new ArrayList<N>(pGraph.getNodes());
+        Map<N, Integer> idByNode = new HashMap<N, Integer>(nodes.size() * 2);
+        for (int i=0; i<nodes.size(); i++) {
+            N n = nodes.get(i);
             n.setDist(Double.MAX_VALUE);
-            heap.add(n, Double.MAX_VALUE);
+            idByNode.put(n, i);
         }
-                       
+        
+        IntDoubleIndexedHeap heap = new IntDoubleIndexedHeap(nodes.size());
         pSrc.setDist(0.d);
-        heap.updateKey(pSrc, 0.d);
+        heap.add(idByNode.get(pSrc), 0.d);
         
-        while (!heap.isEmpty()) {            
-            N u = heap.pop();
+        while (!heap.isEmpty()) {
+            N u = nodes.get(heap.pop());
             double d = u.getDist();
             for (E e: pGraph.getEdges(u)) {
-                N v = e.tgt;                
+                N v = e.tgt;
                 double d2 = d+e.getLen();
                 if (d2 < v.getDist()) {
                     // found a new best path to v
-                    v.setDist(d2);                    
-                    heap.updateKey(v, d2);                                        
-                }                                     
+                    v.setDist(d2);
+                    heap.updateKey(idByNode.get(v), d2);
+                }
             }
         }
     }
-                            
     
+    /**
+     * As {@link #computeDistances(DefaultGraph, DefaultNode)}, but operate
+     * directly on the arrays of a CSR snapshot, and return the distances instead
+     * of storing them to the nodes. Uses an {@link IntDoubleIndexedHeap} indexed by
+     * node id instead of a BinaryHeap; only reached nodes are ever put to the heap.
+     *
+     * @return distance from pSrc to each node, indexed by node id; 
+     *         Double.MAX_VALUE for nodes that are not reached.
+     */
+    public static double[] computeDistances(CSRGraph<?,?> pGraph, int pSrc) {
+
+        int[] offsets = pGraph.offsets;
+        int[] targets = pGraph.targets;
+        double[] len = pGraph.len;
+
+        double[] dist = new double[pGraph.numNodes()];
+        Arrays.fill(dist, Double.MAX_VALUE);
+
+        IntDoubleIndexedHeap heap = new IntDoubleIndexedHeap(dist.length);
+        dist[pSrc] = 0.d;
+        heap.add(pSrc, 0.d);
+
+        while (!heap.isEmpty()) {
+            int u = heap.pop();
+            double d = dist[u];
+            int end = offsets[u+1];
+            for (int e=offsets[u]; e<end; e++) {
+                int v = targets[e];
+                double d2 = d+len[e];
+                if (d2 < dist[v]) {
+                    // found a new best path to v (v cannot have been popped yet, 
+                    // as edge lengths are non-negative)
+                    dist[v] = d2;
+                    heap.updateKey(v, d2);
+                }
+            }
+        }
+
+        return dist;
+    }
+
     /** args: <file> <srcnode> <tgtnode> */
     public static void main(String[] args) throws Exception {
         
@@ -0,0 +1,229 @@
+package util.dbg;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer for {@link Logger}'s asynchronous mode.
+ *
+ * Callers enqueue pre-formatted records (message and target streams) into a
+ * bounded lock-free ring buffer (a multi-producer array queue, where each slot has
+ * a sequence number telling whether it is free for the producer of a given position
+ * or filled for the consumer). A single daemon thread drains the buffer in batches
+ * of at most the buffer capacity, concatenating the messages of a batch per stream, so that each stream is
+ * written (and locked) once per batch instead of once per message.
+ *
+ * Warnings and errors are never dropped: for them, a full buffer always blocks.
+ */
+final class AsyncLogWriter implements Runnable {
+
+    /** Longest time the writer thread sleeps before checking the buffer again */
+    private static final long MAX_SLEEP_NANOS = 10000000L;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final String CR_SUFFIX = "               \r";
+
+    static final class Record {
+        final String msg;
+        final PrintStream[] streams;
+        final boolean cr;
+        final int logLevel;
+
+        Record(String pMsg, PrintStream[] pStreams, boolean pCR, int pLogLevel) {
+            msg = pMsg;
+            streams = pStreams;
+            cr = pCR;
+            logLevel = pLogLevel;
+        }
+    }
+
+    private final Record[] mBuffer;
+    /** Sequence number of each slot: position+1 when filled, position+capacity when free again */
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+    private final Logger.OverflowPolicy mPolicy;
+    private final int mSampleRate;
+
+    /** Next position for producers to claim */
+    private final AtomicLong mTail = new AtomicLong();
+    /** Next position for the writer to consume; written only by the writer */
+    private volatile long mHead;
+    /** Records before this position have been written and flushed */
+    private volatile long mWritten;
+
+    private final AtomicLong mNumDropped = new AtomicLong();
+    private final AtomicLong mNumOverflowing = new AtomicLong();
+
+    private final Thread mThread;
+    private volatile boolean mSleeping;
+    private volatile boolean mStopped;
+
+    /**
+     * @param pCapacity rounded up to a power of two
+     * @param pSampleRate for OverflowPolicy.SAMPLE: when the buffer is more than half full,
+     *   keep one in pSampleRate messages
+     */
+    AsyncLogWriter(int pCapacity, Logger.OverflowPolicy pPolicy, int pSampleRate) {
+        int capacity = Integer.highestOneBit(Math.max(pCapacity, 2) - 1) << 1;
+        mBuffer = new Record[capacity];
+        mSequences = new AtomicLongArray(capacity);
+        for (int i=0; i<capacity; i++) {
+            mSequences.set(i, i);
+        }
+        mMask = capacity - 1;
+        mPolicy = pPolicy;
+        mSampleRate = Math.max(pSampleRate, 1);
+        mThread = new Thread(this, "AsyncLogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /** Enqueue a record, blocking or dropping it if the buffer is full, as by the overflow policy */
+    void write(Record pRecord) {
+        boolean mayDrop = pRecord.logLevel < Logger.LOGLEVEL_WARNING && mPolicy != Logger.OverflowPolicy.BLOCK;
+        if (mayDrop && mPolicy == Logger.OverflowPolicy.SAMPLE
+                && mTail.get() - mHead > mBuffer.length / 2
+                && mNumOverflowing.getAndIncrement() % mSampleRate != 0) {
+            mNumDropped.incrementAndGet();
+            return;
+        }
+        while (!offer(pRecord)) {
+            if (mayDrop || mStopped) {
+                mNumDropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(mThread);
+            LockSupport.parkNanos(50000L);
+        }
+        if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private boolean offer(Record pRecord) {
+        long pos = mTail.get();
+        while (true) {
+            int index = (int)pos & mMask;
+            long diff = mSequences.get(index) - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos+1)) {
+                    mBuffer[index] = pRecord;
+                    // publishes the record to the writer
+                    mSequences.set(index, pos+1);
+                    return true;
+                }
+                pos = mTail.get();
+            }
+            else if (diff < 0) {
+                // slot not yet consumed: full
+                return false;
+            }
+            else {
+                // another producer claimed pos
+                pos = mTail.get();
+            }
+        }
+    }
+
+    /** @return next record, or null if there is none (yet) */
+    private Record poll() {
+        long head = mHead;
+        int index = (int)head & mMask;
+        if (mSequences.get(index) != head+1) {
+            return null;
+        }
+        Record record = mBuffer[index];
+        mBuffer[index] = null;
+        mSequences.set(index, head + mBuffer.length);
+        mHead = head+1;
+        return record;
+    }
+
+    /** Wait until all records enqueued before this call have been written */
+    void flush() {
+        long target = mTail.get();
+        while (mWritten < target && mThread.isAlive()) {
+            LockSupport.unpark(mThread);
+            LockSupport.parkNanos(100000L);
+        }
+    }
+
+    /** Write all pending records and stop the writer thread */
+    void close() {
+        flush();
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return number of records dropped due to a full buffer */
+    long getNumDropped() {
+        return mNumDropped.get();
+    }
+
+    public void run() {
+        Map<PrintStream, StringBuilder> batches = new IdentityHashMap<PrintStream, StringBuilder>();
+        List<PrintStream> touched = new ArrayList<PrintStream>();
+        while (true) {
+            Record record = poll();
+            if (record == null) {
+                if (mStopped) {
+                    return;
+                }
+                mSleeping = true;
+                // recheck, as a producer may not have seen us sleeping
+                record = poll();
+                if (record == null) {
+                    LockSupport.parkNanos(MAX_SLEEP_NANOS);
+                    mSleeping = false;
+                    continue;
+                }
+                mSleeping = false;
+            }
+
+            // batch the records available now, but at most one buffer's worth, so that
+            // producers refilling the buffer cannot keep the batch from ever being written
+            int numBatched = 0;
+            while (record != null) {
+                for (PrintStream ps: record.streams) {
+                    StringBuilder batch = batches.get(ps);
+                    if (batch == null) {
+                        batch = new StringBuilder();
+                        batches.put(ps, batch);
+                    }
+                    if (batch.length() == 0) {
+                        touched.add(ps);
+                    }
+                    batch.append(record.msg);
+                    batch.append(record.cr ? CR_SUFFIX : LINE_SEPARATOR);
+                }
+                numBatched++;
+                record = numBatched < mBuffer.length ? poll() : null;
+            }
+            for (PrintStream ps: touched) {
+                StringBuilder batch = batches.get(ps);
+                ps.print(batch);
+                ps.flush();
+                if (batch.capacity() > 1 << 16) {
+                    batches.remove(ps);
+                }
+                else {
+                    batch.setLength(0);
+                }
+            }
+            touched.clear();
+            mWritten = mHead;
+        }
+    }
+}
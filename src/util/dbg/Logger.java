@@ -2,8 +2,6 @@ package util.dbg;
 
 import util.*;
 import util.collections.*;
-import util.collections.iterator.ConditionalIterator;
-import util.condition.*;
 
 import java.util.*;
 import java.io.*;
@@ -31,6 +29,15 @@ public final class Logger {
     private MultiMap mStreamsByLogLevel; // streams for each log level...
     private Map mLogLevelByStream;        
     
+    /** 
+     * Streams for each message log level (index), cached from the above, 
+     * to avoid resolving stream log levels for each message.
+     */
+    private volatile PrintStream[][] mStreamsByMsgLevel;
+    
+    /** Non-null when in asynchronous mode */
+    private volatile AsyncLogWriter mAsyncWriter;
+    
     private ArrayList<OutputStream> mStreamsCreatedByUs;
     private ArrayList<File> mFilesCreatedByUs;
     
@@ -49,6 +56,16 @@ public final class Logger {
     
     public static final int DEFAULT_LOG_LEVEL = LOGLEVEL_INFO;
     
+    /** What to do with a message when the buffer of the asynchronous mode is full */
+    public enum OverflowPolicy {
+        /** Wait for the writer to make room */
+        BLOCK,
+        /** Drop the message */
+        DROP,
+        /** Already when the buffer is more than half full, keep only every n'th message; drop when full */
+        SAMPLE;
+    }
+    
     public static final String DBG_PREFIX = "DBG:";
     // public static final String INFO_PREFIX = "INFO:";
     public static final String WARNING_PREFIX = "WARNING:";
@@ -117,13 +134,35 @@ public final class Logger {
         }
     }                
     
-    private Iterator getStreamsForLogLevel(int pMsgLevel) {
-        Condition c = new StreamForLogLevelCondition(pMsgLevel);
-        return new ConditionalIterator(mStreamsByLogLevel.values().iterator(), c);             
+    /** Recompute mStreamsByMsgLevel; to be called whenever streams or log levels change */
+    private synchronized void updateStreamsByMsgLevel() {
+        PrintStream[][] result = new PrintStream[LOGLEVEL_ERROR+1][];
+        for (int msgLevel=0; msgLevel<result.length; msgLevel++) {
+            List<PrintStream> streams = new ArrayList<PrintStream>();
+            Iterator allStreams = mStreamsByLogLevel.values().iterator();
+            while (allStreams.hasNext()) {
+                PrintStream ps = (PrintStream)allStreams.next();
+                int streamLogLevel = ((Integer)mLogLevelByStream.get(ps)).intValue();
+                if (streamLogLevel == LOGLEVEL_SHARED) {
+                    streamLogLevel = mSharedLogLevel;
+                }
+                if (streamLogLevel <= msgLevel) {
+                    streams.add(ps);
+                }
+            }
+            result[msgLevel] = streams.toArray(new PrintStream[streams.size()]);
+        }
+        mStreamsByMsgLevel = result;
+    }
+    
+    private PrintStream[] getStreamsForLogLevel(int pMsgLevel) {
+        PrintStream[][] streamsByMsgLevel = mStreamsByMsgLevel;
+        return streamsByMsgLevel[Math.max(0, Math.min(pMsgLevel, streamsByMsgLevel.length-1))];
     }
     
     /** Print to all streams??? */
     private void internalPrintStackTrace(Exception e) {
+        internalFlush();
         Iterator allStreams = mStreamsByLogLevel.values().iterator();
         while(allStreams.hasNext()) {
             PrintStream ps = (PrintStream)allStreams.next();
@@ -133,6 +172,7 @@ public final class Logger {
     
     public static void setLogLevel(int pLevel) {        
         getInstance().mSharedLogLevel=pLevel;
+        getInstance().updateStreamsByMsgLevel();
         // System.err.println("Log level set to: "+pLevel);
     }
     
@@ -157,6 +197,8 @@ public final class Logger {
             internalEndSection(1, LOGLEVEL_IMPORTANT_INFO);
         }
         
+        internalSetSynchronous();
+        
         for (OutputStream os: mStreamsCreatedByUs) {
         	try {
         		os.close();
@@ -182,6 +224,32 @@ public final class Logger {
     private void internalAddStream(PrintStream pStream, int pLogLevel) {        
         mStreamsByLogLevel.put(new Integer(pLogLevel), pStream);                    
         mLogLevelByStream.put(pStream, new Integer(pLogLevel));
+        updateStreamsByMsgLevel();
+    }
+    
+    private synchronized void internalSetAsynchronous(int pCapacity, OverflowPolicy pPolicy, int pSampleRate) {
+        internalSetSynchronous();
+        mAsyncWriter = new AsyncLogWriter(pCapacity, pPolicy, pSampleRate);
+    }
+    
+    /** Write out pending messages and stop the asynchronous writer, if any */
+    private synchronized void internalSetSynchronous() {
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            mAsyncWriter = null;
+            writer.close();
+            if (writer.getNumDropped() > 0) {
+                internalPrintMsg(WARNING_PREFIX+"Dropped "+writer.getNumDropped()+
+                                 " log messages due to a full buffer", LOGLEVEL_WARNING);
+            }
+        }
+    }
+    
+    private void internalFlush() {
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            writer.flush();
+        }
     }
     
     private void internalAddStream(String pFileName, int pLogLevel) throws IOException {        
@@ -283,20 +351,33 @@ public final class Logger {
     }            
         
     private void internalPrintMsg(String pMsg, int pLogLevel) {
-        // TODO: should have a log level for each stream...
-        Iterator streams = getStreamsForLogLevel(pLogLevel);
-        while(streams.hasNext()) {
-            PrintStream ps = (PrintStream)streams.next();
+        PrintStream[] streams = getStreamsForLogLevel(pLogLevel);
+        if (streams.length == 0) {
+            return;
+        }
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            writer.write(new AsyncLogWriter.Record(pMsg, streams, false, pLogLevel));
+            return;
+        }
+        for (PrintStream ps: streams) {
             ps.println(pMsg);
-         }                
+        }                
     }
 
     private void internalPrintMsg_cr(String pMsg, int pLogLevel) {        
-        Iterator streams = getStreamsForLogLevel(pLogLevel);
-        while(streams.hasNext()) {
-            PrintStream ps = (PrintStream)streams.next();
+        PrintStream[] streams = getStreamsForLogLevel(pLogLevel);
+        if (streams.length == 0) {
+            return;
+        }
+        AsyncLogWriter writer = mAsyncWriter;
+        if (writer != null) {
+            writer.write(new AsyncLogWriter.Record(pMsg, streams, true, pLogLevel));
+            return;
+        }
+        for (PrintStream ps: streams) {
             ps.print(pMsg+"               \r");            
-         }         
+        }         
     }                
     //////////////////////////////////////////
     // private internal implementation ends
@@ -331,6 +412,54 @@ public final class Logger {
     public static void addStream(String pFileName, int pLogLevel) throws IOException {        
         getInstance().internalAddStream(pFileName, pLogLevel);        
     }
+    
+    /**
+     * Switch to asynchronous mode: messages are formatted by the calling thread,
+     * enqueued into a lock-free ring buffer of (about) pCapacity messages, and written
+     * to the streams in batches by a background thread. The messages are written
+     * out when {@link #endLog()} or {@link #flush()} is called, or on JVM shutdown.
+     * 
+     * Warnings and errors are never dropped, whatever the overflow policy.
+     * 
+     * @param pSampleRate only used with OverflowPolicy.SAMPLE: keep one in pSampleRate
+     *   messages when the buffer is more than half full
+     */
+    public static void setAsynchronous(int pCapacity, OverflowPolicy pPolicy, int pSampleRate) {
+        getInstance().internalSetAsynchronous(pCapacity, pPolicy, pSampleRate);
+        installShutdownHook();
+    }
+    
+    /** Asynchronous mode with a buffer of 8192 messages, blocking when it is full */ 
+    public static void setAsynchronous() {
+        setAsynchronous(8192, OverflowPolicy.BLOCK, 1);
+    }
+    
+    /** Back to writing messages directly from the calling thread (the default) */
+    public static void setSynchronous() {
+        getInstance().internalSetSynchronous();
+    }
+    
+    public static boolean isAsynchronous() {
+        return getInstance().mAsyncWriter != null;
+    }
+    
+    /** In asynchronous mode, wait until all messages logged so far have been written */
+    public static void flush() {
+        getInstance().internalFlush();
+    }
+    
+    private static boolean sShutdownHookInstalled = false;
+    
+    private static synchronized void installShutdownHook() {
+        if (!sShutdownHookInstalled) {
+            sShutdownHookInstalled = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("Logger shutdown") {
+                public void run() {
+                    getInstance().internalFlush();
+                }
+            });
+        }
+    }
                 
     public static void startSection(int pLevel) {
         if (loggingEnabled) {            
@@ -603,23 +732,6 @@ public final class Logger {
         }
     }
 
-    private class StreamForLogLevelCondition implements Condition {
-        private int mMsgLogLevel;
-        
-        StreamForLogLevelCondition(int pMsgLogLevel) {
-            mMsgLogLevel = pMsgLogLevel;
-        }
-        
-        public boolean fulfills(Object p) {
-            PrintStream ps = (PrintStream)p;
-            int streamLogLevel = ((Integer)mLogLevelByStream.get(ps)).intValue();
-            if (streamLogLevel == LOGLEVEL_SHARED) {
-                streamLogLevel = mSharedLogLevel;
-            }
-            return streamLogLevel <= mMsgLogLevel; 
-        }
-    }    
-
     /** 
      * Wraps this trad. leronen Logger to clients using the more lightweight, 
      * if less fancy, ILogger interface.
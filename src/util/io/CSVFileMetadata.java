@@ -63,6 +63,31 @@ public class CSVFileMetadata {
         }
     }
 
+    /**
+     * Resolve names of columns of interest into column indices, in the order given.
+     * Null pColumnNames means all columns, in the order of the file.
+     */
+    public int[] getColumnIndices(List<String> pColumnNames) throws NoSuchColumnException {
+        if (pColumnNames == null) {
+            int[] result = new int[numCols];
+            for (int i=0; i<numCols; i++) {
+                result[i] = i;
+            }
+            return result;
+        }
+
+        int[] result = new int[pColumnNames.size()];
+        for (int i=0; i<result.length; i++) {
+            String colName = pColumnNames.get(i);
+            int col = getColumnInd(colName);
+            if (col == -1) {
+                throw new NoSuchColumnException("No such column: "+colName+" in file: "+fileName);
+            }
+            result[i] = col;
+        }
+        return result;
+    }
+
     public String getColumnName(int index) {
         return columnMap.asList().get(index);
     }
@@ -81,39 +81,12 @@ public class CSVFileReader {
         // System.err.println("Creating curColumns and nextColumns with "+meta.getNumCols()+" columns");
         curColumns = new StringBuffer[meta.getNumCols()];
         nextColumns = new StringBuffer[meta.getNumCols()];
-        if (pColumnsOfInterest != null) {
-            // only read columns of interest
-            List<Integer> columnsOfInterestList = new ArrayList<Integer>();
-            for (String colName: pColumnsOfInterest) {
-                // dbg("Handling coltype: "+colType);
-                int col = meta.getColumnInd(colName);
-                if (col == -1) {
-                    throw new NoSuchColumnException("No such column: "+colName+" in file: "+pFileName);
-                }
-
-                // reserve buffers for parsing the column of interest
-                curColumns[col] = new StringBuffer();
-                nextColumns[col] = new StringBuffer();
-                columnsOfInterestList.add(col);
-            }
-            columnsOfInterest = new int[columnsOfInterestList.size()];
-            for (int i=0; i<columnsOfInterestList.size(); i++) {
-                columnsOfInterest[i] = columnsOfInterestList.get(i);
-            }
-        }
-        else {
-            // read all columns
-            columnsOfInterest = new int[meta.getNumCols()];
-            for (int i=0; i<columnsOfInterest.length; i++) {
-                columnsOfInterest[i]=i;
-            }
-
-            // reserve buffers for parsing the columns
-            for (int i=0; i<curColumns.length; i++) {
-                curColumns[i] = new StringBuffer();
-                nextColumns[i] = new StringBuffer();
-            }
-
+        // only read columns of interest (all columns, if not specified)
+        columnsOfInterest = meta.getColumnIndices(pColumnsOfInterest);
+        for (int col: columnsOfInterest) {
+            // reserve buffers for parsing the column of interest
+            curColumns[col] = new StringBuffer();
+            nextColumns[col] = new StringBuffer();
         }
 
         lineIter = new LineIterator(pFileName, charset);
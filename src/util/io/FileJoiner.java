@@ -0,0 +1,662 @@
+package util.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import util.IOUtils;
+import util.IOUtils.LineIterator;
+import util.dbg.Logger;
+
+/**
+ * Joins the lines of two files by a key extracted from each line, streaming the
+ * inputs instead of reading them into collections. The result is reported to a
+ * {@link JoinHandler}: each pair of lines with the same key, and each line having no
+ * counterpart in the other file. Thus, the same engine does inner and outer joins,
+ * semijoins and set operations (intersection, difference) on lines.
+ *
+ * There are two strategies:
+ *   - {@link #hashJoin}: a hash table is built on the smaller file, and the larger one
+ *     is streamed against it. If the smaller file does not fit into the memory budget,
+ *     both files are first partitioned by hash of the key into temporary files,
+ *     and the partitions are joined one by one (a "grace" hash join).
+ *   - {@link #sortMergeJoin}: both files must be sorted by key (as by String.compareTo,
+ *     e.g. by LC_ALL=C sort); they are streamed side by side, keeping in memory only
+ *     the lines of the current key.
+ *
+ * Lines are reported with multiplicities, as in a relational join (each pair of
+ * lines having the same key is reported), unless the corresponding side is set
+ * to be distinct, in which case each distinct line of that file is considered only once.
+ * With {@link #setLastMatchOnly}, each line of the first file is instead matched only
+ * with the last line of the second file having its key, as with a map from keys to lines.
+ *
+ * The order in which the lines are reported is unspecified for hashJoin, unless
+ * {@link #setPreserveFirstOrder} is set, and follows the order of keys for sortMergeJoin.
+ *
+ * File name "-" means standard input, which is streamed rather than hashed (unless
+ * it is the second file and the first file is to be streamed, as by {@link #setPreserveFirstOrder}).
+ */
+public class FileJoiner {
+
+    /** Estimated bytes of memory needed per byte of input to store it in a hash table */
+    private static final int MEMORY_PER_BYTE = 4;
+
+    /** Upper limit for the number of partitions (each needs an open file while partitioning) */
+    private static final int MAX_PARTITIONS = 512;
+
+    private static final int PARTITION_BUFFER_SIZE = 64 << 10;
+
+    private static final Charset TMP_CHARSET = Charset.forName("UTF-8");
+
+    private static final String STDIN = "-";
+
+    /** Extracts join keys from lines */
+    public interface KeyExtractor {
+        public String getKey(String pLine);
+    }
+
+    /** Receives the results of a join; by default, does nothing */
+    public static abstract class JoinHandler {
+        /** Lines with the same key in both files */
+        public void match(String pLine1, String pLine2) throws IOException {
+            // no-op
+        }
+
+        /** A line of the first file whose key does not occur in the second file */
+        public void onlyInFirst(String pLine1) throws IOException {
+            // no-op
+        }
+
+        /** A line of the second file whose key does not occur in the first file */
+        public void onlyInSecond(String pLine2) throws IOException {
+            // no-op
+        }
+    }
+
+    /** The whole line is the key */
+    public static final KeyExtractor WHOLE_LINE = new KeyExtractor() {
+        public String getKey(String pLine) {
+            return pLine;
+        }
+    };
+
+    /** Key is the part of the line before the first white space character (as regex \s) */
+    public static final KeyExtractor FIRST_TOKEN = new KeyExtractor() {
+        public String getKey(String pLine) {
+            for (int i=0; i<pLine.length(); i++) {
+                char c = pLine.charAt(i);
+                if (c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r') {
+                    return pLine.substring(0, i);
+                }
+            }
+            return pLine;
+        }
+    };
+
+    /** Key is column pCol of the line, columns being separated by pSeparator */
+    public static KeyExtractor columnKey(final char pSeparator, final int pCol) {
+        return new KeyExtractor() {
+            public String getKey(String pLine) {
+                int start = 0;
+                for (int i=0; i<pCol; i++) {
+                    start = pLine.indexOf(pSeparator, start) + 1;
+                    if (start == 0) {
+                        throw new RuntimeException("Not enough columns (cannot get column "+pCol+"): "+pLine);
+                    }
+                }
+                int end = pLine.indexOf(pSeparator, start);
+                return end == -1 ? pLine.substring(start) : pLine.substring(start, end);
+            }
+        };
+    }
+
+    private final KeyExtractor mKey1;
+    private final KeyExtractor mKey2;
+    private boolean mDistinct1 = false;
+    private boolean mDistinct2 = false;
+    private boolean mPreserveFirstOrder = false;
+    private boolean mLastMatchOnly = false;
+    private long mMemoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    /** null for default temporary-file directory */
+    private File mTmpDir = null;
+
+    public FileJoiner(KeyExtractor pKey) {
+        this(pKey, pKey);
+    }
+
+    /** Use different key extractors for the first and second file */
+    public FileJoiner(KeyExtractor pKey1, KeyExtractor pKey2) {
+        mKey1 = pKey1;
+        mKey2 = pKey2;
+    }
+
+    /** Consider each distinct line of the first and/or second file only once */
+    public void setDistinct(boolean pDistinct1, boolean pDistinct2) {
+        mDistinct1 = pDistinct1;
+        mDistinct2 = pDistinct2;
+    }
+
+    /**
+     * Make hashJoin report the lines of the first file in their original order (lines
+     * of the second file without a match coming last), by always hashing the second file
+     * and streaming the first one. When partitioning is needed, this costs an additional
+     * pass over the (temporary) results, to merge them back into the order of the first file.
+     */
+    public void setPreserveFirstOrder(boolean pPreserveFirstOrder) {
+        mPreserveFirstOrder = pPreserveFirstOrder;
+    }
+
+    /**
+     * Match each line of the first file only with the last line of the second file
+     * having the same key (and report only that line of the second file, if it has no match).
+     * For hashJoin, this implies hashing the second file.
+     */
+    public void setLastMatchOnly(boolean pLastMatchOnly) {
+        mLastMatchOnly = pLastMatchOnly;
+    }
+
+    /** Approximate number of bytes that hashJoin may use for hash tables */
+    public void setMemoryBudget(long pBytes) {
+        mMemoryBudget = pBytes;
+    }
+
+    public void setTmpDir(File pTmpDir) {
+        mTmpDir = pTmpDir;
+    }
+
+    /**
+     * Join files by hashing the smaller one (or the second one, if preserving the order of the
+     * first file or matching only the last line of the second file), partitioning both files
+     * to disk if needed
+     */
+    public void hashJoin(String pFile1, String pFile2, JoinHandler pHandler) throws IOException {
+        if (pFile1.equals(STDIN) && pFile2.equals(STDIN)) {
+            throw new RuntimeException("Cannot join standard input with itself");
+        }
+        long size1 = estimateSize(pFile1);
+        long size2 = estimateSize(pFile2);
+        boolean buildOnFirst = !mPreserveFirstOrder && !mLastMatchOnly && size1 <= size2;
+        Side build = buildOnFirst ? new Side(pFile1, mKey1, mDistinct1, true) : new Side(pFile2, mKey2, mDistinct2, false);
+        Side probe = buildOnFirst ? new Side(pFile2, mKey2, mDistinct2, false) : new Side(pFile1, mKey1, mDistinct1, true);
+        if (probe.distinct && probe.fileName.equals(STDIN)) {
+            throw new RuntimeException("Cannot consider distinct lines of standard input");
+        }
+
+        // the probe side also needs memory if its lines must be deduplicated
+        long buildSize = buildOnFirst ? size1 : size2;
+        long probeSize = buildOnFirst ? size2 : size1;
+        long needed = MEMORY_PER_BYTE * Math.max(buildSize, probe.distinct ? probeSize : 0);
+        int numPartitions = (int)Math.min(MAX_PARTITIONS, needed / Math.max(mMemoryBudget, 1) + 1);
+
+        if (numPartitions <= 1) {
+            joinInMemory(build, lineIterator(build), probe, lineIterator(probe), pHandler);
+            return;
+        }
+
+        Logger.info("Partitioning "+pFile1+" and "+pFile2+" into "+numPartitions+" partitions for hash join");
+        File[] buildParts = partition(build, numPartitions, false);
+        File[] probeParts = null;
+        File[] resultParts = null;
+        try {
+            probeParts = partition(probe, numPartitions, mPreserveFirstOrder);
+            if (mPreserveFirstOrder) {
+                resultParts = new File[numPartitions];
+            }
+            for (int i=0; i<numPartitions; i++) {
+                Iterator<String> buildLines = new LineIterator(buildParts[i].getPath(), TMP_CHARSET);
+                Iterator<String> probeLines = new LineIterator(probeParts[i].getPath(), TMP_CHARSET);
+                if (mPreserveFirstOrder) {
+                    // store the results with the line numbers of the first file, to be merged below
+                    resultParts[i] = createTempFile();
+                    NumberedLineIterator numbered = new NumberedLineIterator(probeLines);
+                    ResultWriter writer = new ResultWriter(resultParts[i], numbered);
+                    try {
+                        joinInMemory(build, buildLines, probe, numbered, writer);
+                    }
+                    finally {
+                        writer.close();
+                    }
+                }
+                else {
+                    joinInMemory(build, buildLines, probe, probeLines, pHandler);
+                }
+                buildParts[i].delete();
+                probeParts[i].delete();
+            }
+            if (mPreserveFirstOrder) {
+                mergeResults(resultParts, pHandler);
+            }
+        }
+        finally {
+            deleteAll(buildParts);
+            deleteAll(probeParts);
+            deleteAll(resultParts);
+        }
+    }
+
+    /**
+     * Join files that are sorted by key (as by String.compareTo); only the lines
+     * having the current key are kept in memory. RuntimeException if the files
+     * are not sorted.
+     */
+    public void sortMergeJoin(String pFile1, String pFile2, JoinHandler pHandler) throws IOException {
+        SortedGroupReader reader1 = new SortedGroupReader(pFile1, mKey1, mDistinct1);
+        SortedGroupReader reader2 = new SortedGroupReader(pFile2, mKey2, mDistinct2);
+        reader1.advance();
+        reader2.advance();
+        while (reader1.key != null || reader2.key != null) {
+            int cmp = reader1.key == null ? 1
+                    : reader2.key == null ? -1
+                    : reader1.key.compareTo(reader2.key);
+            if (cmp < 0) {
+                for (String line1: reader1.lines) {
+                    pHandler.onlyInFirst(line1);
+                }
+                reader1.advance();
+            }
+            else if (cmp > 0) {
+                for (String line2: matchable(reader2.lines)) {
+                    pHandler.onlyInSecond(line2);
+                }
+                reader2.advance();
+            }
+            else {
+                for (String line1: reader1.lines) {
+                    for (String line2: matchable(reader2.lines)) {
+                        pHandler.match(line1, line2);
+                    }
+                }
+                reader1.advance();
+                reader2.advance();
+            }
+        }
+    }
+
+    /** @return lines of the second file with the same key that may be matched (all, or the last one) */
+    private List<String> matchable(List<String> pLines2) {
+        return mLastMatchOnly ? pLines2.subList(pLines2.size()-1, pLines2.size()) : pLines2;
+    }
+
+    /** Build a hash table of pBuildLines and stream pProbeLines against it */
+    private void joinInMemory(Side pBuild, Iterator<String> pBuildLines, Side pProbe, Iterator<String> pProbeLines,
+                              JoinHandler pHandler) throws IOException {
+        Map<String, BuildEntry> table = new LinkedHashMap<String, BuildEntry>();
+        while (pBuildLines.hasNext()) {
+            String line = pBuildLines.next();
+            String key = pBuild.key.getKey(line);
+            BuildEntry entry = table.get(key);
+            if (entry == null) {
+                entry = new BuildEntry();
+                table.put(key, entry);
+            }
+            if (!(pBuild.distinct && entry.lines.contains(line))) {
+                entry.lines.add(line);
+            }
+        }
+
+        Set<String> seenProbeLines = pProbe.distinct ? new HashSet<String>() : null;
+        while (pProbeLines.hasNext()) {
+            String line = pProbeLines.next();
+            if (seenProbeLines != null && !seenProbeLines.add(line)) {
+                continue;
+            }
+            BuildEntry entry = table.get(pProbe.key.getKey(line));
+            if (entry != null) {
+                entry.matched = true;
+                // if last match only, the build side is the second file
+                for (String buildLine: pBuild.first ? entry.lines : matchable(entry.lines)) {
+                    if (pBuild.first) {
+                        pHandler.match(buildLine, line);
+                    }
+                    else {
+                        pHandler.match(line, buildLine);
+                    }
+                }
+            }
+            else {
+                report(pProbe, line, pHandler);
+            }
+        }
+
+        for (BuildEntry entry: table.values()) {
+            if (!entry.matched) {
+                for (String buildLine: pBuild.first ? entry.lines : matchable(entry.lines)) {
+                    report(pBuild, buildLine, pHandler);
+                }
+            }
+        }
+    }
+
+    private static void report(Side pSide, String pUnmatchedLine, JoinHandler pHandler) throws IOException {
+        if (pSide.first) {
+            pHandler.onlyInFirst(pUnmatchedLine);
+        }
+        else {
+            pHandler.onlyInSecond(pUnmatchedLine);
+        }
+    }
+
+    /**
+     * Split lines of pSide into temporary files by hash of key.
+     * @param pNumbered prefix each line by its line number and a tab, as read by {@link NumberedLineIterator}
+     */
+    private File[] partition(Side pSide, int pNumPartitions, boolean pNumbered) throws IOException {
+        File[] files = new File[pNumPartitions];
+        BufferedWriter[] writers = new BufferedWriter[pNumPartitions];
+        try {
+            for (int i=0; i<pNumPartitions; i++) {
+                files[i] = createTempFile();
+                writers[i] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(files[i]), TMP_CHARSET),
+                                                PARTITION_BUFFER_SIZE);
+            }
+            LineIterator lines = lineIterator(pSide);
+            long lineNum = 0;
+            while (lines.hasNext()) {
+                String line = lines.next();
+                BufferedWriter writer = writers[partitionOf(pSide.key.getKey(line), pNumPartitions)];
+                if (pNumbered) {
+                    writer.write(Long.toString(lineNum));
+                    writer.write('\t');
+                }
+                writer.write(line);
+                writer.write('\n');
+                lineNum++;
+            }
+        }
+        finally {
+            for (BufferedWriter writer: writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Merge the results of the partitions, as written by ResultWriters, in order of the line
+     * numbers of the first file. Results of each partition are already in that order.
+     */
+    private void mergeResults(File[] pResultParts, JoinHandler pHandler) throws IOException {
+        PriorityQueue<ResultReader> queue = new PriorityQueue<ResultReader>(pResultParts.length, new Comparator<ResultReader>() {
+            public int compare(ResultReader pReader1, ResultReader pReader2) {
+                return Long.compare(pReader1.lineNum, pReader2.lineNum);
+            }
+        });
+        try {
+            for (File part: pResultParts) {
+                ResultReader reader = new ResultReader(part);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+                else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                ResultReader reader = queue.poll();
+                switch (reader.type) {
+                    case ResultWriter.MATCH:
+                        pHandler.match(reader.line1, reader.line2);
+                        break;
+                    case ResultWriter.ONLY_IN_FIRST:
+                        pHandler.onlyInFirst(reader.line1);
+                        break;
+                    default:
+                        pHandler.onlyInSecond(reader.line2);
+                }
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+                else {
+                    reader.close();
+                }
+            }
+        }
+        finally {
+            for (ResultReader reader: queue) {
+                reader.close();
+            }
+        }
+    }
+
+    private File createTempFile() throws IOException {
+        File file = File.createTempFile("filejoiner", ".part", mTmpDir);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /** Spread the hash codes, which are not necessarily random in the lowest bits */
+    private static int partitionOf(String pKey, int pNumPartitions) {
+        int h = pKey.hashCode() * 0x9E3779B9;
+        return (int)(((h >>> 1) * (long)pNumPartitions) >>> 31);
+    }
+
+    private static LineIterator lineIterator(Side pSide) throws IOException {
+        return pSide.fileName.equals(STDIN) ? IOUtils.lineIterator() : new LineIterator(pSide.fileName);
+    }
+
+    /** Size of the file, or Long.MAX_VALUE for standard input, which thus never gets hashed */
+    private static long estimateSize(String pFileName) {
+        if (pFileName.equals(STDIN)) {
+            return Long.MAX_VALUE / MEMORY_PER_BYTE;
+        }
+        File file = new File(pFileName);
+        if (!file.exists()) {
+            throw new RuntimeException("No such file: "+pFileName);
+        }
+        return file.length();
+    }
+
+    private static void deleteAll(File[] pFiles) {
+        if (pFiles != null) {
+            for (File f: pFiles) {
+                if (f != null) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private static class Side {
+        final String fileName;
+        final KeyExtractor key;
+        final boolean distinct;
+        /** Is this the first file of the join */
+        final boolean first;
+
+        Side(String pFileName, KeyExtractor pKey, boolean pDistinct, boolean pFirst) {
+            fileName = pFileName;
+            key = pKey;
+            distinct = pDistinct;
+            first = pFirst;
+        }
+    }
+
+    private static class BuildEntry {
+        List<String> lines = new ArrayList<String>(1);
+        boolean matched = false;
+    }
+
+    /** Iterates over lines prefixed by line numbers, as written by partition(), stripping the numbers */
+    private static class NumberedLineIterator implements Iterator<String> {
+        private final Iterator<String> mLines;
+        /** Line number of the line last returned by next() */
+        long lineNum = -1;
+
+        NumberedLineIterator(Iterator<String> pLines) {
+            mLines = pLines;
+        }
+
+        public boolean hasNext() {
+            return mLines.hasNext();
+        }
+
+        public String next() {
+            String line = mLines.next();
+            int tab = line.indexOf('\t');
+            lineNum = Long.parseLong(line.substring(0, tab));
+            return line.substring(tab+1);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Writes the results of joining one partition to a temporary file, with the line
+     * number of the first file (as given by pLines); lines of the second file without
+     * a match come after all others, as they are reported last by joinInMemory.
+     */
+    private static class ResultWriter extends JoinHandler {
+        static final byte MATCH = 0;
+        static final byte ONLY_IN_FIRST = 1;
+        static final byte ONLY_IN_SECOND = 2;
+
+        private final DataOutputStream mOut;
+        private final NumberedLineIterator mLines;
+
+        ResultWriter(File pFile, NumberedLineIterator pLines) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pFile), PARTITION_BUFFER_SIZE));
+            mLines = pLines;
+        }
+
+        public void match(String pLine1, String pLine2) throws IOException {
+            write(mLines.lineNum, MATCH, pLine1, pLine2);
+        }
+
+        public void onlyInFirst(String pLine1) throws IOException {
+            write(mLines.lineNum, ONLY_IN_FIRST, pLine1, null);
+        }
+
+        public void onlyInSecond(String pLine2) throws IOException {
+            write(Long.MAX_VALUE, ONLY_IN_SECOND, null, pLine2);
+        }
+
+        private void write(long pLineNum, byte pType, String pLine1, String pLine2) throws IOException {
+            mOut.writeLong(pLineNum);
+            mOut.writeByte(pType);
+            if (pLine1 != null) {
+                writeString(pLine1);
+            }
+            if (pLine2 != null) {
+                writeString(pLine2);
+            }
+        }
+
+        /** Not DataOutputStream.writeUTF, which is limited to 64k bytes */
+        private void writeString(String pString) throws IOException {
+            byte[] bytes = pString.getBytes(TMP_CHARSET);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+        }
+
+        void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /** Reads results written by a ResultWriter, one at a time */
+    private static class ResultReader {
+        private final DataInputStream mIn;
+        long lineNum;
+        byte type;
+        String line1;
+        String line2;
+
+        ResultReader(File pFile) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(pFile), PARTITION_BUFFER_SIZE));
+        }
+
+        /** @return false at end of file */
+        boolean advance() throws IOException {
+            try {
+                lineNum = mIn.readLong();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            type = mIn.readByte();
+            line1 = type != ResultWriter.ONLY_IN_SECOND ? readString() : null;
+            line2 = type != ResultWriter.ONLY_IN_FIRST ? readString() : null;
+            return true;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[mIn.readInt()];
+            mIn.readFully(bytes);
+            return new String(bytes, TMP_CHARSET);
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /** Reads a sorted file one key at a time */
+    private static class SortedGroupReader {
+        private final String mFileName;
+        private final LineIterator mIter;
+        private final KeyExtractor mKeyExtractor;
+        private final boolean mDistinct;
+        /** First line of the next group, or null */
+        private String mNextLine;
+
+        /** Current key, null at end of file */
+        String key;
+        /** Lines of the current key */
+        List<String> lines = new ArrayList<String>();
+
+        SortedGroupReader(String pFileName, KeyExtractor pKeyExtractor, boolean pDistinct) throws IOException {
+            mFileName = pFileName;
+            mIter = pFileName.equals(STDIN) ? IOUtils.lineIterator() : new LineIterator(pFileName);
+            mKeyExtractor = pKeyExtractor;
+            mDistinct = pDistinct;
+            mNextLine = mIter.hasNext() ? mIter.next() : null;
+        }
+
+        void advance() {
+            String prevKey = key;
+            lines.clear();
+            if (mNextLine == null) {
+                key = null;
+                return;
+            }
+            key = mKeyExtractor.getKey(mNextLine);
+            if (prevKey != null && prevKey.compareTo(key) > 0) {
+                throw new RuntimeException("File "+mFileName+" is not sorted by key: "+key+" comes after "+prevKey);
+            }
+            lines.add(mNextLine);
+            mNextLine = null;
+            while (mIter.hasNext()) {
+                String line = mIter.next();
+                if (!mKeyExtractor.getKey(line).equals(key)) {
+                    mNextLine = line;
+                    break;
+                }
+                if (!(mDistinct && lines.contains(line))) {
+                    lines.add(line);
+                }
+            }
+        }
+    }
+}
@@ -4,103 +4,424 @@ import util.*;
 import util.dbg.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
+import java.nio.charset.Charset;
 
-/** 
- * Class that does sorting without reading the whole file into memory at once
- * Only does numeric sorting at the moment.
- * Only sorts according to first col at the moment.
+/**
+ * Class that does sorting without reading the whole file into memory at once.
+ * Sorts according to any number of columns (separated by white space), each of
+ * which may be compared numerically or lexicographically, in either order.
  *
- * Motivation: I cannot make the unix "sort" utility to sort by first col only; it insists on 
+ * Motivation: I cannot make the unix "sort" utility to sort by first col only; it insists on
  * taking next columns into account as well. Petteri agrees on this problem!
- * 
- * Todo: menee perseelleen, kun filessä on headeri; file positionit menee sekasin, nääs. Ei jaksa säätää.
+ *
+ * Implementation is a standard external merge sort: lines are read into runs
+ * of at most pMemoryBudget/(numThreads+1) bytes (as estimated), which are
+ * sorted in parallel and written to temporary files, which are then merged.
+ * If the whole file fits in one run, nothing is written to disk. The sort is
+ * stable: lines with equal keys are output in their original order.
  */
 public class FileSorter {
-    
-    /** 
+
+    /** Default memory budget for sortFile(String, PrintStream, boolean, int, boolean) */
+    private static final double DEFAULT_MEMORY_FRACTION = 0.25;
+
+    /** Maximum number of runs merged at once (each needs an open file and a read buffer) */
+    private static final int MAX_MERGE_FAN_IN = 128;
+
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    /** Charset of the temporary files; can represent any string read from the input */
+    private static final Charset TMP_CHARSET = Charset.forName("UTF-8");
+
+    /** A column to sort by */
+    public static class SortKey {
+        /** 0-based index of column */
+        public final int col;
+        public final boolean numeric;
+        public final boolean reverse;
+
+        public SortKey(int col, boolean numeric, boolean reverse) {
+            this.col = col;
+            this.numeric = numeric;
+            this.reverse = reverse;
+        }
+
+        /**
+         * Parse key from a string of form <col>[n][r], e.g. "2nr" means sorting by column 2
+         * numerically, largest values first; "0" means sorting lexicographically by column 0.
+         */
+        public static SortKey parse(String pString) {
+            int i = 0;
+            while (i < pString.length() && Character.isDigit(pString.charAt(i))) {
+                i++;
+            }
+            if (i == 0) {
+                throw new RuntimeException("Invalid sort key (should be of form <col>[n][r]): "+pString);
+            }
+            int col = Integer.parseInt(pString.substring(0, i));
+            String flags = pString.substring(i);
+            if (!flags.matches("n?r?")) {
+                throw new RuntimeException("Invalid sort key (should be of form <col>[n][r]): "+pString);
+            }
+            return new SortKey(col, flags.contains("n"), flags.contains("r"));
+        }
+
+        public String toString() {
+            return col + (numeric ? "n" : "") + (reverse ? "r" : "");
+        }
+    }
+
+    /**
      * Sorts file according to first column(columns separated by white space).
-     * Only does numeric sorting at the moment.
+     * Only does numeric sorting.
      * @param pReverse if true, rows having largest values come first instead of rows with smallest values.
      */
     public static void sortFile(String fileName, PrintStream pOstream, boolean pReverse, int pCol, boolean pIncludesHeader) throws IOException {
-        ArrayList lineLengthsList = new ArrayList();    
-        ArrayList ordering = new ArrayList();
-        BufferedReader reader = new BufferedReader(new FileReader(fileName));         
-        if (pIncludesHeader) {
-            String header = reader.readLine();
-            pOstream.println(header);            
-        }                                       
-        String line = reader.readLine();
-        int lineNum = 0;
-        while (line!=null) {
-            // dbgMsg("read line: "+line);
-            lineLengthsList.add(new Integer(line.length()));
-            String[] cols = StringUtils.split(line);                                                                                        
-            double d = Double.parseDouble(cols[pCol]);
-            IntDoublePair orderingObject = new IntDoublePair(lineNum, d);
-            ordering.add(orderingObject);
-            
-            // proceed to next line
-            line = reader.readLine();
-            lineNum++;
-        }
-        reader.close();
-        Collections.sort(ordering);
-        if (pReverse) {
-            Collections.reverse(ordering);
-        }                
-        
-        int[] lineLengths = ConversionUtils.integerCollectionToIntArray(lineLengthsList);
-        int[] linePositions = new int[lineLengths.length];
-        int numLines = lineLengths.length;
-        linePositions[0]=0;
-        for(int i=1; i<numLines; i++) {             
-            linePositions[i]=linePositions[i-1]+lineLengths[i-1]+1;
-        }
-        // pOstream.println("line lengths: "+StringUtils.arrayToString(lineLengths, " "));
-        // pOstream.println("line positions: "+StringUtils.arrayToString(linePositions, " "));
-        try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {        
-	        for (int i=0; i<numLines; i++) {
-	            IntDoublePair orderingObject = (IntDoublePair)ordering.get(i);
-	            lineNum = orderingObject.mInt;
-	            file.seek(linePositions[lineNum]);  
-	            byte[] buf = new byte[lineLengths[lineNum]];
-	            file.read(buf, 0, lineLengths[lineNum]);            
-	            // String s = new String(buf);
-	            pOstream.write(buf, 0, buf.length);
-	            pOstream.println();
-	        }
+        long memoryBudget = (long)(Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_FRACTION);
+        sortFile(fileName, pOstream, Collections.singletonList(new SortKey(pCol, true, pReverse)), pIncludesHeader,
+                 memoryBudget, Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Sorts file according to pKeys; lines that are equal according to the first key are
+     * compared according to the second, and so on.
+     *
+     * @param pMemoryBudget approximate maximum number of bytes of lines to keep in memory at once.
+     * @param pNumThreads number of threads used for sorting runs; non-positive means number of available processors
+     * @param pTmpDir directory for temporary files; null for the default temporary-file directory
+     */
+    public static void sortFile(String pFileName, OutputStream pOstream, List<SortKey> pKeys, boolean pIncludesHeader,
+                                long pMemoryBudget, int pNumThreads, File pTmpDir) throws IOException {
+        final LineComparator comparator = new LineComparator(pKeys);
+        int numThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+        long runBudget = Math.max(pMemoryBudget / (numThreads+1), 1);
+
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(pOstream), IO_BUFFER_SIZE);
+        BufferedReader reader = new BufferedReader(new FileReader(pFileName), IO_BUFFER_SIZE);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<File> runs = new ArrayList<File>();
+        try {
+            if (pIncludesHeader) {
+                String header = reader.readLine();
+                if (header != null) {
+                    writer.write(header);
+                    writer.write('\n');
+                }
+            }
+
+            // runs being sorted, in order
+            LinkedList<Future<File>> pending = new LinkedList<Future<File>>();
+            ArrayList<Line> run = new ArrayList<Line>();
+            long runSize = 0;
+            String text = reader.readLine();
+            while (text != null) {
+                Line line = comparator.makeLine(text);
+                run.add(line);
+                runSize += line.estimateSize();
+                text = reader.readLine();
+                if (runSize >= runBudget && text != null) {
+                    if (pending.size() >= numThreads) {
+                        runs.add(ConcurrentUtils.getIO(pending.removeFirst()));
+                    }
+                    pending.add(executor.submit(new RunSorter(run, comparator, pTmpDir)));
+                    run = new ArrayList<Line>();
+                    runSize = 0;
+                }
+            }
+            reader.close();
+
+            if (runs.isEmpty() && pending.isEmpty()) {
+                // everything fits in memory
+                Collections.sort(run, comparator);
+                for (Line line: run) {
+                    writer.write(line.text);
+                    writer.write('\n');
+                }
+            }
+            else {
+                if (!run.isEmpty()) {
+                    pending.add(executor.submit(new RunSorter(run, comparator, pTmpDir)));
+                }
+                run = null;
+                while (!pending.isEmpty()) {
+                    runs.add(ConcurrentUtils.getIO(pending.removeFirst()));
+                }
+                Logger.info("Merging "+runs.size()+" sorted runs of file "+pFileName);
+
+                // merge passes until few enough runs for the final merge
+                while (runs.size() > MAX_MERGE_FAN_IN) {
+                    List<File> merged = new ArrayList<File>();
+                    for (int i=0; i<runs.size(); i+=MAX_MERGE_FAN_IN) {
+                        List<File> group = runs.subList(i, Math.min(i+MAX_MERGE_FAN_IN, runs.size()));
+                        File file = createTmpFile(pTmpDir);
+                        merged.add(file);
+                        BufferedWriter runWriter = openRunWriter(file);
+                        try {
+                            merge(group, comparator, runWriter);
+                        }
+                        finally {
+                            runWriter.close();
+                        }
+                        for (File f: group) {
+                            f.delete();
+                        }
+                    }
+                    runs = merged;
+                }
+                merge(runs, comparator, writer);
+            }
+            writer.flush();
+        }
+        finally {
+            executor.shutdownNow();
+            reader.close();
+            for (File f: runs) {
+                f.delete();
+            }
+        }
+    }
+
+    /** Merge sorted run files to pWriter; runs are given in input order, to keep the sort stable */
+    private static void merge(List<File> pRuns, final LineComparator pComparator, Writer pWriter) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(pRuns.size(), 1), new Comparator<RunReader>() {
+            public int compare(RunReader p1, RunReader p2) {
+                int result = pComparator.compare(p1.cur, p2.cur);
+                return result != 0 ? result : Integer.compare(p1.index, p2.index);
+            }
+        });
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            for (int i=0; i<pRuns.size(); i++) {
+                RunReader runReader = new RunReader(pRuns.get(i), i, pComparator);
+                readers.add(runReader);
+                if (runReader.advance()) {
+                    queue.add(runReader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader runReader = queue.poll();
+                pWriter.write(runReader.cur.text);
+                pWriter.write('\n');
+                if (runReader.advance()) {
+                    queue.add(runReader);
+                }
+            }
+        }
+        finally {
+            for (RunReader runReader: readers) {
+                runReader.reader.close();
+            }
+        }
+    }
+
+    private static File createTmpFile(File pTmpDir) throws IOException {
+        File file = File.createTempFile("filesorter", ".run", pTmpDir);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static BufferedWriter openRunWriter(File pFile) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pFile), TMP_CHARSET), IO_BUFFER_SIZE);
+    }
+
+    /** Sort a run and write it into a temporary file */
+    private static class RunSorter implements Callable<File> {
+        private List<Line> mRun;
+        private LineComparator mComparator;
+        private File mTmpDir;
+
+        RunSorter(List<Line> pRun, LineComparator pComparator, File pTmpDir) {
+            mRun = pRun;
+            mComparator = pComparator;
+            mTmpDir = pTmpDir;
         }
+
+        public File call() throws IOException {
+            Collections.sort(mRun, mComparator);
+            File file = createTmpFile(mTmpDir);
+            BufferedWriter writer = openRunWriter(file);
+            try {
+                for (Line line: mRun) {
+                    writer.write(line.text);
+                    writer.write('\n');
+                }
+            }
+            finally {
+                writer.close();
+            }
+            mRun = null;
+            return file;
+        }
+    }
+
+    /** Reads lines of a run file during merge */
+    private static class RunReader {
+        final BufferedReader reader;
+        final int index;
+        final LineComparator comparator;
+        Line cur;
+
+        RunReader(File pFile, int pIndex, LineComparator pComparator) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(pFile), TMP_CHARSET), IO_BUFFER_SIZE);
+            index = pIndex;
+            comparator = pComparator;
+        }
+
+        /** @return false if there are no more lines */
+        boolean advance() throws IOException {
+            String text = reader.readLine();
+            cur = text != null ? comparator.makeLine(text) : null;
+            return cur != null;
+        }
+    }
+
+    /** A line with its keys parsed only once */
+    private static class Line {
+        final String text;
+        /** Values of numeric keys; unused for other keys */
+        final double[] num;
+        /** Values of lexicographic keys; null for other keys */
+        final String[] str;
+
+        Line(String pText, double[] pNum, String[] pStr) {
+            text = pText;
+            num = pNum;
+            str = pStr;
+        }
+
+        /** Rough number of bytes used by this object */
+        long estimateSize() {
+            long size = 64 + 2L*text.length() + 8*num.length + 8*str.length;
+            for (String s: str) {
+                if (s != null) {
+                    size += 48 + 2L*s.length();
+                }
+            }
+            return size;
+        }
+    }
+
+    private static class LineComparator implements Comparator<Line> {
+        private final SortKey[] mKeys;
+        private final int mMaxCol;
+
+        LineComparator(List<SortKey> pKeys) {
+            if (pKeys.isEmpty()) {
+                throw new RuntimeException("No sort keys");
+            }
+            mKeys = pKeys.toArray(new SortKey[pKeys.size()]);
+            int maxCol = 0;
+            for (SortKey key: mKeys) {
+                maxCol = Math.max(maxCol, key.col);
+            }
+            mMaxCol = maxCol;
+        }
+
+        Line makeLine(String pText) {
+            String[] cols = splitColumns(pText, mMaxCol);
+            double[] num = new double[mKeys.length];
+            String[] str = new String[mKeys.length];
+            for (int i=0; i<mKeys.length; i++) {
+                String val = cols[mKeys[i].col];
+                if (mKeys[i].numeric) {
+                    try {
+                        num[i] = Double.parseDouble(val);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new RuntimeException("Not a numeric value in column "+mKeys[i].col+": "+pText);
+                    }
+                }
+                else {
+                    // copy, so as not to keep the substring's char array alive in Java 6
+                    str[i] = new String(val);
+                }
+            }
+            return new Line(pText, num, str);
+        }
+
+        public int compare(Line p1, Line p2) {
+            for (int i=0; i<mKeys.length; i++) {
+                int result = mKeys[i].numeric ? Double.compare(p1.num[i], p2.num[i]) : p1.str[i].compareTo(p2.str[i]);
+                if (result != 0) {
+                    return mKeys[i].reverse ? -result : result;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Columns 0..pMaxCol of pLine, split as by {@link StringUtils#split(String)} (white space,
+     * ignoring leading white space), but without splitting the rest of the line.
+     */
+    private static String[] splitColumns(String pLine, int pMaxCol) {
+        String[] result = new String[pMaxCol+1];
+        int len = pLine.length();
+        int i = 0;
+        for (int col=0; col<=pMaxCol; col++) {
+            while (i < len && isWhiteSpace(pLine.charAt(i))) {
+                i++;
+            }
+            if (i == len) {
+                throw new RuntimeException("Line has only "+col+" columns, cannot sort by column "+pMaxCol+": "+pLine);
+            }
+            int start = i;
+            while (i < len && !isWhiteSpace(pLine.charAt(i))) {
+                i++;
+            }
+            result[col] = pLine.substring(start, i);
+        }
+        return result;
+    }
+
+    /** As regex \s */
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
     }
-         
-                                   
+
     public static void main (String[] args) {
         Logger.setProgramName("java.util.io.FileSorter");
         CmdLineArgs argParser = new CmdLineArgs(args);
         String fileName = argParser.shift("file name"); // first non-opt arg
         if (fileName == null) {
-            dbgMsg("Usage: java.util.fileSorter filename (writes to STDOUT)");
-        }                                
-        String colString = argParser.getOpt("col");
-        int col = Integer.parseInt(colString);
+            dbgMsg("Usage: java.util.fileSorter filename [-col=<col> [-reverse] | -keys=<col>[n][r],...] [-includesheader] [-memory=<MB>] [-threads=<n>] [-tmpdir=<dir>] (writes to STDOUT)");
+        }
         boolean reverse = argParser.isDefined("reverse");
-        boolean includesheader = argParser.isDefined("includesheader");                    
+        boolean includesheader = argParser.isDefined("includesheader");
         String mode = argParser.getOpt("mode");
         if (mode!=null) {
-            throw new RuntimeException("option mode not implemented; nowadays just considers the sort col to be numeric data");
+            throw new RuntimeException("option mode not implemented; use option keys to sort lexicographically");
+        }
+        List<SortKey> keys = new ArrayList<SortKey>();
+        List<String> keyStrings = argParser.getListOpt("keys");
+        if (keyStrings != null) {
+            for (String keyString: keyStrings) {
+                keys.add(SortKey.parse(keyString));
+            }
+        }
+        else {
+            // as before: numeric sorting by a single column
+            keys.add(new SortKey(Integer.parseInt(argParser.getOpt("col")), true, reverse));
         }
-        
+        long memoryBudget = argParser.isDefined("memory")
+                          ? argParser.getIntOpt("memory") * (1L << 20)
+                          : (long)(Runtime.getRuntime().maxMemory() * DEFAULT_MEMORY_FRACTION);
+        int numThreads = argParser.getIntOpt("threads", 0);
+        String tmpDir = argParser.getOpt("tmpdir");
+
         try {
-            sortFile(fileName, System.out, reverse, col, includesheader);                            
+            sortFile(fileName, System.out, keys, includesheader, memoryBudget, numThreads,
+                     tmpDir != null ? new File(tmpDir) : null);
         }
         catch (Exception e) {
             e.printStackTrace();
-        }            
+        }
     }
-        
+
     private static void dbgMsg(String pMsg) {
         Logger.dbg("FileSorter: "+pMsg);
     }
-            
+
 }
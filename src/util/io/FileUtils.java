@@ -1832,15 +1832,15 @@ public final class FileUtils {
                 int col = argParser.shiftInt();
                 Logger.info("subsetidfile: "+subsetidfile);
                 Logger.info("col: "+col);
-                HashSet<String> ids = new HashSet<String>(IOUtils.readLines(subsetidfile));
-                Iterator<String> iter = IOUtils.lineIterator();
-                while (iter.hasNext()) {
-                	String line = iter.next();
-                	String key = StringUtils.extractCol(line, '\t', col);
-                	if (ids.contains(key)) {
-                		System.out.println(line);
-                	}
-                }
+                // semijoin of stdin with the (distinct) ids, keeping the order of stdin
+                FileJoiner joiner = new FileJoiner(FileJoiner.columnKey('\t', col), FileJoiner.WHOLE_LINE);
+                joiner.setDistinct(false, true);
+                joiner.setPreserveFirstOrder(true);
+                runJoin(joiner, "-", subsetidfile, new FileJoiner.JoinHandler() {
+                    public void match(String pLine, String pId) {
+                        System.out.println(pLine);
+                    }
+                }, argParser);
                 System.out.flush();
                 System.out.close();
 
@@ -2041,18 +2041,43 @@ public final class FileUtils {
                 }
             }
             else if (cmd.equals(CMD_INTERSECTION)) {
-            	String file0 = args[0];
-                Set<String> result = new LinkedHashSet<String>(IOUtils.readLines(file0));
-            	Logger.info("First file has "+result.size()+" lines");
-            	for (int i=1; i<args.length; i++) {
-            		Set<String> lines = new LinkedHashSet(IOUtils.readLines(args[i]));
-            		Logger.info(StringUtils.formatOrdinal(i+1)+" file has "+lines.size()+" lines");
-            		result.retainAll(lines);
-            	}
-            	Logger.info("There are "+result.size()+" lines in the result.");
-            	for (String line: result) {
-            		System.out.println(line);
-            	}
+                // intersect the files pairwise, via temporary files
+                IOUtils.setFastStdout();
+                FileJoiner joiner = new FileJoiner(FileJoiner.WHOLE_LINE);
+                joiner.setDistinct(true, true);
+                joiner.setPreserveFirstOrder(true);
+                File tmpDir = getTmpDir(argParser);
+                String cur = args[0];
+                File tmpFile = null;
+                // with a single file, just output its distinct lines
+                int numFiles = Math.max(args.length, 2);
+                for (int i=1; i<numFiles; i++) {
+                    String other = i < args.length ? args[i] : args[0];
+                    File resultFile = null;
+                    final PrintStream out;
+                    if (i < numFiles-1) {
+                        resultFile = File.createTempFile("intersection", ".txt", tmpDir);
+                        resultFile.deleteOnExit();
+                        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(resultFile)));
+                    }
+                    else {
+                        out = System.out;
+                    }
+                    runJoin(joiner, cur, other, new FileJoiner.JoinHandler() {
+                        public void match(String pLine1, String pLine2) {
+                            out.println(pLine1);
+                        }
+                    }, argParser);
+                    out.flush();
+                    if (tmpFile != null) {
+                        tmpFile.delete();
+                    }
+                    if (resultFile != null) {
+                        out.close();
+                        tmpFile = resultFile;
+                        cur = resultFile.getPath();
+                    }
+                }
             }
             else if (cmd.equals(CMD_INTERSECTION_NEW)) {
             	if (!(args.length == 2)) {
@@ -2187,57 +2212,28 @@ public final class FileUtils {
 
 //                    Logger.info("Args: "+cla);
 
-                    boolean fillInZeroValues = argParser.isDefined("fill_in_zero_vals");
+                    final boolean fillInZeroValues = argParser.isDefined("fill_in_zero_vals");
                     Logger.info("Filling in zero values: "+fillInZeroValues);
 
-                    Set<String> lines1 = new LinkedHashSet<String>(IOUtils.readLines(file1));
-                    Set<String> lines2 = new LinkedHashSet<String>(IOUtils.readLines(file2));
-                    Logger.info("First file has "+lines1.size()+" lines");
-                    Logger.info("Second file has "+lines2.size()+" lines");
-                    // put lines of second file into map
-                    Map<String, String> map = new HashMap();
-                    // Logger.info("There are "+result.size()+" lines in the result.");
-                    for (String line: lines2) {
-                        String[] tokens = line.split("\\s+");
-                        String key = tokens[0];
-                        String data = line.substring(key.length());
-                        map.put(key, data);
-                    }
-
-                    Set<String> keysMissingFromData1 = null;
-                    if (fillInZeroValues) {
-                        // initially, consider all keys in data 2 as potentially missing from data 1
-                        keysMissingFromData1 = new LinkedHashSet(map.keySet());
-                    }
-
-                    for (String line: lines1) {
-                        String[] tokens = line.split("\\s+");
-                        String key = tokens[0];
-                        String data1 = line.substring(key.length());
-                        String data2 = map.get(key);
-                        if (data2 != null) {
-                            System.out.println(key+data1+data2);
+                    runJoin(keyJoiner(FileJoiner.FIRST_TOKEN, argParser), file1, file2, new FileJoiner.JoinHandler() {
+                        public void match(String pLine1, String pLine2) {
+                            String key = FileJoiner.FIRST_TOKEN.getKey(pLine2);
+                            System.out.println(pLine1+pLine2.substring(key.length()));
                         }
-                        else {
+                        public void onlyInFirst(String pLine1) {
                             if (fillInZeroValues) {
                                 // output a value missing from data file 2 as "0"
-                                System.out.println(key+data1+" 0");
+                                System.out.println(pLine1+" 0");
                             }
                         }
-
-                        if (fillInZeroValues) {
-                            keysMissingFromData1.remove(key);
-                        }
-                    }
-
-                    if (fillInZeroValues) {
-                        // output values that were missing from data file 1 as "0":s
-                        for (String key: keysMissingFromData1) {
-                            String data2 = map.get(key);
-                            System.out.println(key+" 0"+data2);
+                        public void onlyInSecond(String pLine2) {
+                            if (fillInZeroValues) {
+                                // output a value missing from data file 1 as "0"
+                                String key = FileJoiner.FIRST_TOKEN.getKey(pLine2);
+                                System.out.println(key+" 0"+pLine2.substring(key.length()));
+                            }
                         }
-                    }
-
+                    }, argParser);
                 }
                 else {
                     // read everything from stdin
@@ -2288,32 +2284,12 @@ public final class FileUtils {
 
 //                    Logger.info("Args: "+cla);
 
-                    boolean fillInZeroValues = argParser.isDefined("fill_in_zero_vals");
-                    Logger.info("Filling in zero values: "+fillInZeroValues);
-
-                    Set<String> lines1 = new LinkedHashSet<String>(IOUtils.readLines(file1));
-                    Set<String> lines2 = new LinkedHashSet<String>(IOUtils.readLines(file2));
-                    Logger.info("First file has "+lines1.size()+" lines");
-                    Logger.info("Second file has "+lines2.size()+" lines");
-                    // put lines of second file into map
-                    Map<String, String> map = new HashMap();
-                    // Logger.info("There are "+result.size()+" lines in the result.");
-                    for (String line: lines2) {
-                        String[] tokens = line.split("\t");
-                        String key = tokens[0];
-                        String data = line.substring(key.length());
-                        map.put(key, data);
-                    }
-
-                    for (String line: lines1) {
-                        String[] tokens = line.split("\t");
-                        String key = tokens[0];
-                        String data1 = line.substring(key.length());
-                        String data2 = map.get(key);
-                        if (data2 != null) {
-                            System.out.println(key+data1+data2);
+                    final FileJoiner.KeyExtractor firstCol = FileJoiner.columnKey('\t', 0);
+                    runJoin(keyJoiner(firstCol, argParser), file1, file2, new FileJoiner.JoinHandler() {
+                        public void match(String pLine1, String pLine2) {
+                            System.out.println(pLine1+pLine2.substring(firstCol.getKey(pLine2).length()));
                         }
-                    }
+                    }, argParser);
                 }
                 else {
                 	System.err.println("Illegal number of args");
@@ -2328,29 +2304,25 @@ public final class FileUtils {
                 String file1 = args[0];
                 String file2 = args[1];
 
-                Set<String> lines1 = new LinkedHashSet<String>(IOUtils.readLines(file1));
-                Set<String> lines2 = new LinkedHashSet<String>(IOUtils.readLines(file2));
-                Logger.info("First file has "+lines1.size()+" lines");
-                Logger.info("Second file has "+lines2.size()+" lines");
-                // put lines of second file into map
-                Map<UnorderedPair<String>, String> map = new HashMap();
-                // Logger.info("There are "+result.size()+" lines in the result.");
-                for (String line: lines2) {
-                    List<String> tokens = Arrays.asList(line.split("\\s+"));
-                    UnorderedPair<String> key = new UnorderedPair(tokens.get(0), tokens.get(1));
-                    String data = SU.toString(CollectionUtils.tailList(tokens, 2), " ");
-                    map.put(key, data);
-                }
-
-                for (String line: lines1) {
-                    List<String> tokens = Arrays.asList(line.split("\\s+"));
-                    UnorderedPair<String> key = new UnorderedPair(tokens.get(0), tokens.get(1));
-                    String data1 = SU.toString(CollectionUtils.tailList(tokens, 2), " ");
-                    String data2 = map.get(key);
-                    if (data2 != null) {
+                // key is the canonical representation of the pair
+                FileJoiner.KeyExtractor pairKey = new FileJoiner.KeyExtractor() {
+                    public String getKey(String pLine) {
+                        String[] tokens = pLine.split("\\s+", 3);
+                        return tokens[0].compareTo(tokens[1]) <= 0 ? tokens[0]+" "+tokens[1] : tokens[1]+" "+tokens[0];
+                    }
+                };
+                IOUtils.setFastStdout();
+                runJoin(keyJoiner(pairKey, argParser), file1, file2, new FileJoiner.JoinHandler() {
+                    public void match(String pLine1, String pLine2) {
+                        List<String> tokens1 = Arrays.asList(pLine1.split("\\s+"));
+                        List<String> tokens2 = Arrays.asList(pLine2.split("\\s+"));
+                        UnorderedPair<String> key = new UnorderedPair(tokens1.get(0), tokens1.get(1));
+                        String data1 = SU.toString(CollectionUtils.tailList(tokens1, 2), " ");
+                        String data2 = SU.toString(CollectionUtils.tailList(tokens2, 2), " ");
                         System.out.println(key+" "+data1+" "+data2);
                     }
-                }
+                }, argParser);
+                System.out.flush();
             }
             else if (cmd.equals(CMD_FAST_UNIQ)) {
                 Iterator<String> lineIterator = IOUtils.lineIterator(System.in);
@@ -2541,16 +2513,13 @@ public final class FileUtils {
                 IOUtils.setFastStdout();
                 String file1 = args[0];
                 String file2 = args[1];
-                Set<String> set = new HashSet(Arrays.asList(IOUtils.readLineArray(file1)));
-                LineIterator i = new LineIterator(file2);
-                while (i.hasNext()) {
-                	String line = i.next();
-                	set.remove(line);
-                }
-
-                for (String line: set) {
-                    System.out.println(line);
-                }
+                FileJoiner joiner = new FileJoiner(FileJoiner.WHOLE_LINE);
+                joiner.setDistinct(true, true);
+                runJoin(joiner, file1, file2, new FileJoiner.JoinHandler() {
+                    public void onlyInFirst(String pLine1) {
+                        System.out.println(pLine1);
+                    }
+                }, argParser);
 //                for (String line: IO)
 //                Set<String> set2 = new HashSet(Arrays.asList(IOUtils.readLineArray(file2)));
 //                Set<String> result = CollectionUtils.minus(set1, set2);
@@ -2667,15 +2636,20 @@ public final class FileUtils {
                 System.out.flush();
             }
             else if (cmd.equals(CMD_SYM_DIFF)) {
+                IOUtils.setFastStdout();
                 String file1 = args[0];
                 String file2 = args[1];
-                Set set1 = new LinkedHashSet(Arrays.asList(IOUtils.readLineArray(file1)));
-                Set set2 = new LinkedHashSet(Arrays.asList(IOUtils.readLineArray(file2)));
-                Set result = CollectionUtils.symmetricDifference(set1, set2, new HashSet());
-
-                if (result.size() > 0) {
-                    System.out.println(StringUtils.collectionToString(result));
-                }
+                FileJoiner joiner = new FileJoiner(FileJoiner.WHOLE_LINE);
+                joiner.setDistinct(true, true);
+                runJoin(joiner, file1, file2, new FileJoiner.JoinHandler() {
+                    public void onlyInFirst(String pLine1) {
+                        System.out.println(pLine1);
+                    }
+                    public void onlyInSecond(String pLine2) {
+                        System.out.println(pLine2);
+                    }
+                }, argParser);
+                System.out.flush();
             }
             else if (cmd.equals(CMD_RELATIVE_PATH)) {
                 // return empty string if child == parent
@@ -2808,6 +2782,46 @@ public final class FileUtils {
         }
     }
 
+    /**
+     * Run a join using the options common to all join-like commands:
+     *   -sorted: input files are sorted by key, use a sort-merge join instead of a hash join
+     *   -memory=<MB>: memory budget of the hash join
+     *   -tmpdir=<dir>: directory for temporary files
+     */
+    private static void runJoin(FileJoiner pJoiner, String pFile1, String pFile2,
+                                FileJoiner.JoinHandler pHandler, CmdLineArgs pArgParser) throws IOException {
+        if (pArgParser.isDefined("memory")) {
+            pJoiner.setMemoryBudget(pArgParser.getIntOpt("memory") * (1L << 20));
+        }
+        pJoiner.setTmpDir(getTmpDir(pArgParser));
+        if (pArgParser.isDefined("sorted")) {
+            pJoiner.sortMergeJoin(pFile1, pFile2, pHandler);
+        }
+        else {
+            pJoiner.hashJoin(pFile1, pFile2, pHandler);
+        }
+    }
+
+    /** @return directory given by option -tmpdir, or null for the default temporary-file directory */
+    private static File getTmpDir(CmdLineArgs pArgParser) {
+        return pArgParser.isDefined("tmpdir") ? new File(pArgParser.getOpt("tmpdir")) : null;
+    }
+
+    /**
+     * Joiner for the commands joining lines by a key: distinct lines of the first file are output
+     * in their order, each matched with the last line of the second file having the same key (as with
+     * a map from keys to lines of the second file). Option -all_matches instead matches every pair
+     * of lines having the same key, without dropping duplicate lines.
+     */
+    private static FileJoiner keyJoiner(FileJoiner.KeyExtractor pKey, CmdLineArgs pArgParser) {
+        FileJoiner joiner = new FileJoiner(pKey);
+        boolean allMatches = pArgParser.isDefined("all_matches");
+        joiner.setDistinct(!allMatches, !allMatches);
+        joiner.setLastMatchOnly(!allMatches);
+        joiner.setPreserveFirstOrder(true);
+        return joiner;
+    }
+
     private static void usageAndExit(String pErrMsg) {
 		Logger.error(pErrMsg);
 		TreeSet<String> availableCommands = new TreeSet(ReflectionUtils.getPublicStaticStringFieldsWithPrefix(FileUtils.class, "CMD_"));
@@ -0,0 +1,545 @@
+package util.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import util.IOUtils;
+import util.StringUtils.UnexpectedNumColumnsException;
+
+/**
+ * A zero-copy alternative to {@link CSVFileReader} for large files.
+ *
+ * The file is memory-mapped (in windows of at most 1GB, so files of any size
+ * are supported) and the bytes are scanned directly for separators and
+ * newlines; no Strings or StringBuffers are created for the lines or the fields.
+ * Instead, fields of the current line are accessed either as parsed primitives
+ * ({@link #getInt(int)}, {@link #getLong(int)}, {@link #getDouble(int)}),
+ * or as {@link CharSequence} views to the mapped bytes ({@link #getCharSequence(int)}),
+ * which are only valid until the next call to readLine().
+ *
+ * Column names, separator and number of columns are resolved by
+ * {@link CSVFileMetadata} exactly as in CSVFileReader, and only the columns of
+ * interest (all by default) can be accessed. As in CSVFileReader, the number of
+ * columns on each line must match that of the header.
+ *
+ * Usage differs from CSVFileReader in that there is no reading ahead: hasNextLine()
+ * just checks whether the end of file has been reached, and readLine() parses
+ * the next line.
+ *
+ *    MappedCSVFileReader reader = new MappedCSVFileReader(file, "MARKER", "DIST");
+ *    int distCol = reader.getMetadata().getColumnInd("DIST");
+ *    long sum = 0;
+ *    while (reader.hasNextLine()) {
+ *        reader.readLine();
+ *        sum += reader.getLong(distCol);
+ *    }
+ *    reader.close();
+ *
+ * The charset must be ASCII-compatible (e.g. UTF-8 or ISO-8859-1), so that
+ * separators and newlines can be found by just looking at single bytes. Note
+ * that charAt() of the CharSequence views maps each byte to a single char, which is
+ * only correct for ASCII data; use {@link #getString(int)} (which decodes using
+ * the charset, creating a String) for other data.
+ */
+public class MappedCSVFileReader implements Closeable {
+
+    /** Max size of a single mapped window of the file; lines may not be longer than this */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /** Bytes of "\t\n\r ," in an ASCII-compatible charset */
+    private static final byte[] ASCII_TEST_BYTES = { 9, 10, 13, 32, 44 };
+
+    private final CSVFileMetadata meta;
+    private final Charset charset;
+
+    /** only these columns can be accessed. */
+    private final int[] columnsOfInterest;
+    private final boolean[] isColumnOfInterest;
+
+    /** -1 for WHITE_SPACES */
+    private final int separatorByte;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+
+    /** Currently mapped window of the file */
+    private MappedByteBuffer buf;
+    /** Offset of buf in the file */
+    private long bufStart;
+    /** Start of the next line in buf */
+    private int pos;
+
+    /** Bounds of fields of the current line in buf (end exclusive) */
+    private final int[] fieldStart;
+    private final int[] fieldEnd;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNr = 0;
+
+    /** One reusable view per column */
+    private final FieldView[] views;
+
+    public MappedCSVFileReader(String pFileName) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        this(pFileName, null, (List<String>)null);
+    }
+
+    public MappedCSVFileReader(String pFileName, String... pColumnsOfInterest) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        this(pFileName, null, Arrays.asList(pColumnsOfInterest));
+    }
+
+    public MappedCSVFileReader(String pFileName, List<String> pColumnsOfInterest) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        this(pFileName, null, pColumnsOfInterest);
+    }
+
+    /**
+     * @param charset null to use default charset
+     * @param pColumnsOfInterest null for all columns
+     */
+    public MappedCSVFileReader(String pFileName, Charset charset, List<String> pColumnsOfInterest) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        this.charset = charset != null ? charset : Charset.defaultCharset();
+        checkAsciiCompatible(this.charset);
+
+        meta = new CSVFileMetadata(pFileName, charset);
+        int numCols = meta.getNumCols();
+        columnsOfInterest = meta.getColumnIndices(pColumnsOfInterest);
+        isColumnOfInterest = new boolean[numCols];
+        for (int col: columnsOfInterest) {
+            isColumnOfInterest[col] = true;
+        }
+
+        switch (meta.getColumnSeparator()) {
+            case SPACE:
+                separatorByte = ' ';
+                break;
+            case TAB:
+                separatorByte = '\t';
+                break;
+            case COMMA:
+                separatorByte = ',';
+                break;
+            case WHITE_SPACES:
+                separatorByte = -1;
+                break;
+            default:
+                throw new RuntimeException("Unknown Column Separator type: "+meta.getColumnSeparator());
+        }
+
+        fieldStart = new int[numCols];
+        fieldEnd = new int[numCols];
+        views = new FieldView[numCols];
+        for (int i=0; i<numCols; i++) {
+            views[i] = new FieldView(i);
+        }
+
+        file = new RandomAccessFile(pFileName, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        map(0);
+
+        // skip header row
+        if (hasNextLine()) {
+            scanLine();
+        }
+    }
+
+    public String getFileName() {
+        return meta.getFilename();
+    }
+
+    public CSVFileMetadata getMetadata() {
+        return meta;
+    }
+
+    public int getLineNr() {
+        return lineNr;
+    }
+
+    public boolean hasNextLine() {
+        return bufStart + pos < fileSize;
+    }
+
+    /**
+     * Read next line. Fields of the line read last are to be accessed using methods such
+     * as {@link #getInt(int)}.
+     */
+    public void readLine() throws UnexpectedNumColumnsException, NoSuchElementException {
+        if (!hasNextLine()) {
+            throw new NoSuchElementException();
+        }
+        scanLine();
+        splitLine();
+        lineNr++;
+    }
+
+    /** Map window starting at file position pStart */
+    private void map(long pStart) throws IOException {
+        bufStart = pStart;
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, pStart, Math.min(WINDOW_SIZE, fileSize - pStart));
+        pos = 0;
+    }
+
+    /** Find bounds of the next line, remapping if it does not fit to current window */
+    private void scanLine() {
+        int limit = buf.limit();
+        int i = pos;
+        while (i < limit && buf.get(i) != '\n') {
+            i++;
+        }
+        if (i == limit && bufStart + limit < fileSize) {
+            // line continues beyond current window
+            if (pos == 0) {
+                throw new RuntimeException("Line "+(lineNr+1)+" is too long (more than "+WINDOW_SIZE+" bytes) in file: "+meta.getFilename());
+            }
+            try {
+                map(bufStart + pos);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed mapping file: "+meta.getFilename(), e);
+            }
+            scanLine();
+            return;
+        }
+
+        lineStart = pos;
+        lineEnd = i;
+        pos = i < limit ? i+1 : limit;
+        if (lineEnd > lineStart && buf.get(lineEnd-1) == '\r') {
+            lineEnd--;
+        }
+    }
+
+    /** Find bounds of fields within the current line */
+    private void splitLine() throws UnexpectedNumColumnsException {
+        int numCols = fieldStart.length;
+        if (numCols == 1) {
+            // as in StringUtils.fastSplit, the whole line
+            fieldStart[0] = lineStart;
+            fieldEnd[0] = lineEnd;
+            return;
+        }
+
+        int col = 0;
+        if (separatorByte != -1) {
+            int start = lineStart;
+            for (int i=lineStart; i<lineEnd; i++) {
+                if (buf.get(i) == separatorByte) {
+                    if (col == numCols-1) {
+                        throw new UnexpectedNumColumnsException(getCurrentLine(), -1, numCols);
+                    }
+                    fieldStart[col] = start;
+                    fieldEnd[col] = i;
+                    col++;
+                    start = i+1;
+                }
+            }
+            fieldStart[col] = start;
+            fieldEnd[col] = lineEnd;
+            col++;
+        }
+        else {
+            // as in String.split("\\s+"): leading white space produces an
+            // empty first field, trailing white space is ignored
+            int i = lineStart;
+            if (i < lineEnd && isWhiteSpace(buf.get(i))) {
+                fieldStart[col] = i;
+                fieldEnd[col] = i;
+                col++;
+                while (i < lineEnd && isWhiteSpace(buf.get(i))) {
+                    i++;
+                }
+            }
+            while (i < lineEnd) {
+                int start = i;
+                while (i < lineEnd && !isWhiteSpace(buf.get(i))) {
+                    i++;
+                }
+                if (col == numCols) {
+                    throw new UnexpectedNumColumnsException(getCurrentLine(), -1, numCols);
+                }
+                fieldStart[col] = start;
+                fieldEnd[col] = i;
+                col++;
+                while (i < lineEnd && isWhiteSpace(buf.get(i))) {
+                    i++;
+                }
+            }
+        }
+
+        if (col != numCols) {
+            throw new UnexpectedNumColumnsException(getCurrentLine(), col, numCols);
+        }
+    }
+
+    /** Readers scanning raw bytes for separators and line breaks only support ASCII-compatible charsets */
+    static void checkAsciiCompatible(Charset pCharset) {
+        if (!Arrays.equals("\t\n\r ,".getBytes(pCharset), ASCII_TEST_BYTES)) {
+            throw new RuntimeException("Charset not supported for a memory-mapped reader (not ASCII-compatible): "+pCharset);
+        }
+    }
+
+    private static boolean isWhiteSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private int checkColumn(int ind) throws NoSuchColumnException {
+        if (ind < 0 || ind >= isColumnOfInterest.length || !isColumnOfInterest[ind]) {
+            throw new NoSuchColumnException("No such column in file "+meta.getFilename()+": "+ind);
+        }
+        return ind;
+    }
+
+    private int checkColumn(String columnName) throws NoSuchColumnException {
+        int ind = meta.getColumnInd(columnName);
+        if (ind == -1 || !isColumnOfInterest[ind]) {
+            throw new NoSuchColumnException("No such column in file "+meta.getFilename()+": "+columnName);
+        }
+        return ind;
+    }
+
+    /**
+     * Get value of column as a view to the underlying bytes. The same view
+     * object is reused for the column, and is only valid until the next readLine().
+     */
+    public CharSequence getCharSequence(int ind) throws NoSuchColumnException {
+        return views[checkColumn(ind)];
+    }
+
+    public CharSequence getCharSequence(String columnName) throws NoSuchColumnException {
+        return views[checkColumn(columnName)];
+    }
+
+    /** Get value of column by index, decoded using the charset. Indexing starts from 0. */
+    public String get(int ind) throws NoSuchColumnException {
+        return decode(checkColumn(ind));
+    }
+
+    /** Get value of column by name, decoded using the charset. */
+    public String getString(String columnName) throws NoSuchColumnException {
+        return decode(checkColumn(columnName));
+    }
+
+    public int getInt(int ind) throws NoSuchColumnException, NumberFormatException {
+        return parseInt(checkColumn(ind));
+    }
+
+    public int getInt(String columnName) throws NoSuchColumnException, NumberFormatException {
+        return parseInt(checkColumn(columnName));
+    }
+
+    public long getLong(int ind) throws NoSuchColumnException, NumberFormatException {
+        return parseLong(checkColumn(ind));
+    }
+
+    public long getLong(String columnName) throws NoSuchColumnException, NumberFormatException {
+        return parseLong(checkColumn(columnName));
+    }
+
+    public double getDouble(int ind) throws NoSuchColumnException, NumberFormatException {
+        return parseDouble(checkColumn(ind));
+    }
+
+    public double getDouble(String columnName) throws NoSuchColumnException, NumberFormatException {
+        return parseDouble(checkColumn(columnName));
+    }
+
+    private String decode(int col) {
+        return decode(fieldStart[col], fieldEnd[col]);
+    }
+
+    private String decode(int pStart, int pEnd) {
+        byte[] bytes = new byte[pEnd - pStart];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = buf.get(pStart + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private int parseInt(int col) throws NumberFormatException {
+        long val = parseLong(col);
+        if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Not an int: "+decode(col));
+        }
+        return (int)val;
+    }
+
+    /** Digits are accumulated negatively (as in Long.parseLong) to handle Long.MIN_VALUE */
+    private long parseLong(int col) throws NumberFormatException {
+        int i = fieldStart[col];
+        int end = fieldEnd[col];
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number: \""+decode(col)+"\"");
+        }
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i<end; i++) {
+            int digit = buf.get(i) - '0';
+            if (digit < 0 || digit > 9 || result < multmin) {
+                throw new NumberFormatException("Not a long: \""+decode(col)+"\"");
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Not a long: \""+decode(col)+"\"");
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /** Powers of ten up to 10^22, the largest one exactly representable as a double */
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i=1; i<POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+        }
+    }
+
+    /**
+     * Plain decimals with at most 15 significant digits are parsed directly:
+     * both the digits as an integer and the power of ten are then exact doubles,
+     * so their quotient is correctly rounded, just as with Double.parseDouble.
+     * Anything else (exponents, NaN, very long numbers...) is delegated to
+     * Double.parseDouble.
+     */
+    private double parseDouble(int col) throws NumberFormatException {
+        int i = fieldStart[col];
+        int end = fieldEnd[col];
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        boolean sawDigit = false;
+        int numSignificantDigits = 0;
+        int numDecimals = -1;
+        for (; i<end; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) {
+                    numSignificantDigits++;
+                }
+                if (numDecimals >= 0) {
+                    numDecimals++;
+                }
+            }
+            else if (b == '.' && numDecimals == -1) {
+                numDecimals = 0;
+            }
+            else {
+                break;
+            }
+        }
+
+        if (i == end && sawDigit && numSignificantDigits <= 15 && numDecimals < POWERS_OF_TEN.length) {
+            double result = numDecimals > 0 ? mantissa / POWERS_OF_TEN[numDecimals] : mantissa;
+            return negative ? -result : result;
+        }
+        else {
+            return Double.parseDouble(decode(col));
+        }
+    }
+
+    /** Get the current line as a String (decoded using the charset) */
+    public String getCurrentLine() {
+        return decode(lineStart, lineEnd);
+    }
+
+    /**
+     * Return the current row as map (iteration order of fields will be as in
+     * columns of interest). Of course, this creates Strings for all fields.
+     */
+    public Map<String,String> getRowAsMap() {
+        LinkedHashMap<String,String> row = new LinkedHashMap<String,String>(columnsOfInterest.length);
+        for (int ind: columnsOfInterest) {
+            row.put(meta.getColumnName(ind), decode(ind));
+        }
+        return row;
+    }
+
+    public void close() throws IOException {
+        buf = null;
+        channel.close();
+        file.close();
+    }
+
+    /**
+     * A view to a field of the current line, each byte being considered a char.
+     * toString() decodes using the charset.
+     */
+    private class FieldView implements CharSequence {
+        private final int col;
+
+        FieldView(int pCol) {
+            col = pCol;
+        }
+
+        public int length() {
+            return fieldEnd[col] - fieldStart[col];
+        }
+
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("Index: "+index+", length: "+length());
+            }
+            return (char)(buf.get(fieldStart[col] + index) & 0xff);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        public String toString() {
+            return decode(col);
+        }
+    }
+
+    /**
+     * Output projection of the file to columns given as args, as in
+     * {@link CSVFileReader#main(String[])}.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("No input file!");
+            System.exit(1);
+            return;
+        }
+        List<String> argsList = Arrays.asList(args);
+        List<String> columns = argsList.size() > 1 ? argsList.subList(1, argsList.size()) : null;
+        MappedCSVFileReader reader = new MappedCSVFileReader(args[0], columns);
+        String separator = reader.meta.getColumnSeparator().getPrintableValue();
+        IOUtils.setFastStdout();
+        StringBuffer buf = new StringBuffer();
+        while (reader.hasNextLine()) {
+            reader.readLine();
+            buf.setLength(0);
+            for (int i=0; i<reader.columnsOfInterest.length; i++) {
+                if (i > 0) {
+                    buf.append(separator);
+                }
+                buf.append(reader.getCharSequence(reader.columnsOfInterest[i]));
+            }
+            System.out.println(buf);
+        }
+        System.out.flush();
+        reader.close();
+    }
+}
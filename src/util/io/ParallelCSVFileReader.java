@@ -0,0 +1,407 @@
+package util.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import util.ConcurrentUtils;
+import util.StringUtils.UnexpectedNumColumnsException;
+import util.dbg.Logger;
+
+/**
+ * Reads a table file (as read by {@link CSVFileReader} or {@link TableFileReader})
+ * using several threads.
+ *
+ * The data lines (everything after the header row) are split into chunks of
+ * about CHUNK_SIZE bytes, with chunk boundaries moved forward to the next line
+ * break; the chunks are then memory-mapped and parsed in parallel. The rows
+ * (values of the columns of interest, in the order given) are delivered to a
+ * {@link RowHandler} either
+ *   - in the original order, from the calling thread: chunks parsed ahead of
+ *     their turn are kept in a reorder buffer of at most 2*numThreads chunks, or
+ *   - unordered, directly from the worker threads, in which case the handler
+ *     must be thread-safe.
+ *
+ * Quotes: like the sequential readers, by default this does not interpret
+ * quotes at all, and rows are split at every line break; the results are thus
+ * exactly the same as with CSVFileReader. Lines with an unbalanced number of
+ * double quotes (which probably means that a quoted field contains a line
+ * break) are counted, and a warning is logged if there are any.
+ * If {@link #setQuotedLineBreaks(boolean)} is set, line breaks inside double quotes
+ * do not end a row. The chunk boundaries then have to be found in two passes:
+ * first, the quotes in each chunk are counted (in parallel), to find out
+ * whether each chunk starts inside quotes; then, each boundary is moved to the
+ * first line break outside quotes.
+ *
+ * Gzipped files are not supported, and the charset must be ASCII-compatible.
+ */
+public class ParallelCSVFileReader {
+
+    /** Approximate size of a chunk parsed by a single task */
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    /** Receives the parsed rows */
+    public interface RowHandler {
+        /**
+         * @param pRow values of the columns of interest. The array is not
+         *   reused, so the handler may keep it.
+         */
+        public void handle(String[] pRow);
+    }
+
+    private final CSVFileMetadata meta;
+    private final Charset charset;
+    private final int numThreads;
+
+    /** only these columns are read. */
+    private final int[] columnsOfInterest;
+
+    private boolean quotedLineBreaks = false;
+
+    /** @param pNumThreads non-positive means number of available processors */
+    public ParallelCSVFileReader(String pFileName, int pNumThreads) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        this(pFileName, null, null, pNumThreads);
+    }
+
+    /**
+     * @param charset null to use default charset
+     * @param pColumnsOfInterest null for all columns
+     * @param pNumThreads non-positive means number of available processors
+     */
+    public ParallelCSVFileReader(String pFileName, Charset charset, List<String> pColumnsOfInterest, int pNumThreads) throws IOException, UnexpectedNumColumnsException, NoSuchColumnException {
+        if (pFileName.endsWith(".gz")) {
+            throw new RuntimeException("Gzipped files cannot be read in parallel: "+pFileName);
+        }
+        this.charset = charset != null ? charset : Charset.defaultCharset();
+        MappedCSVFileReader.checkAsciiCompatible(this.charset);
+        meta = new CSVFileMetadata(pFileName, charset);
+        columnsOfInterest = meta.getColumnIndices(pColumnsOfInterest);
+        numThreads = pNumThreads > 0 ? pNumThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /** If true, line breaks inside double quotes do not end a row. False by default. */
+    public void setQuotedLineBreaks(boolean pVal) {
+        quotedLineBreaks = pVal;
+    }
+
+    public CSVFileMetadata getMetadata() {
+        return meta;
+    }
+
+    /**
+     * Parse the whole file, delivering rows to pHandler.
+     * @param pOrdered if true, call pHandler from this thread, in the original
+     *   order of rows; otherwise, call it concurrently from the worker threads.
+     */
+    public void read(RowHandler pHandler, boolean pOrdered) throws IOException, UnexpectedNumColumnsException {
+        RandomAccessFile file = new RandomAccessFile(meta.getFilename(), "r");
+        FileChannel channel = file.getChannel();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            long[] bounds = findChunkBounds(channel, executor);
+            Logger.info("Reading "+meta.getFilename()+" in "+(bounds.length-1)+" chunks using "+numThreads+" threads");
+
+            long numUnbalancedLines = 0;
+            LinkedList<Future<ChunkResult>> inFlight = new LinkedList<Future<ChunkResult>>();
+            int maxInFlight = pOrdered ? 2 * numThreads : Integer.MAX_VALUE;
+            int next = 0;
+            while (next < bounds.length-1 || !inFlight.isEmpty()) {
+                // keep the reorder buffer full
+                while (next < bounds.length-1 && inFlight.size() < maxInFlight) {
+                    inFlight.add(executor.submit(new ChunkTask(channel, bounds[next], bounds[next+1],
+                                                               pOrdered ? null : pHandler)));
+                    next++;
+                }
+                ChunkResult result = ConcurrentUtils.getIO(inFlight.removeFirst());
+                numUnbalancedLines += result.numUnbalancedLines;
+                if (pOrdered) {
+                    for (String[] row: result.rows) {
+                        pHandler.handle(row);
+                    }
+                }
+            }
+
+            if (numUnbalancedLines > 0 && !quotedLineBreaks) {
+                Logger.warning(numUnbalancedLines+" lines with an unbalanced number of double quotes in file: "+meta.getFilename()+
+                               "; quoted fields containing line breaks are not supported unless quotedLineBreaks is set");
+            }
+        }
+        finally {
+            // on errors, there may still be chunks queued
+            executor.shutdownNow();
+            channel.close();
+            file.close();
+        }
+    }
+
+    /** Read all rows into a List of Maps, as {@link CSVFileReader#readAsMapList()} */
+    public List<Map<String,String>> readAsMapList() throws IOException, UnexpectedNumColumnsException {
+        final List<Map<String,String>> result = new ArrayList<Map<String,String>>();
+        read(new RowHandler() {
+            public void handle(String[] pRow) {
+                result.add(toMap(pRow));
+            }
+        }, true);
+        return result;
+    }
+
+    /** Read all rows into a map indexed by the given field, as {@link CSVFileReader#readAsMapMap(String)} */
+    public Map<String, Map<String,String>> readAsMapMap(String keyColumn) throws IOException, UnexpectedNumColumnsException {
+        final Map<String, Map<String,String>> result = new HashMap<String, Map<String,String>>();
+        final int keyInd = indexOfColumnOfInterest(keyColumn);
+        read(new RowHandler() {
+            public void handle(String[] pRow) {
+                result.put(pRow[keyInd], toMap(pRow));
+            }
+        }, true);
+        return result;
+    }
+
+    /** Read all rows into a map indexed by the given fields, as {@link CSVFileReader#readAsMapMap(List)} */
+    public Map<List<String>, Map<String,String>> readAsMapMap(List<String> keyColumns) throws IOException, UnexpectedNumColumnsException {
+        final Map<List<String>, Map<String,String>> result = new HashMap<List<String>, Map<String,String>>();
+        final int[] keyInds = new int[keyColumns.size()];
+        for (int i=0; i<keyInds.length; i++) {
+            keyInds[i] = indexOfColumnOfInterest(keyColumns.get(i));
+        }
+        read(new RowHandler() {
+            public void handle(String[] pRow) {
+                List<String> key = new ArrayList<String>(keyInds.length);
+                for (int ind: keyInds) {
+                    key.add(pRow[ind]);
+                }
+                result.put(key, toMap(pRow));
+            }
+        }, true);
+        return result;
+    }
+
+    private int indexOfColumnOfInterest(String pColumnName) throws NoSuchColumnException {
+        int col = meta.getColumnInd(pColumnName);
+        for (int i=0; i<columnsOfInterest.length; i++) {
+            if (columnsOfInterest[i] == col) {
+                return i;
+            }
+        }
+        throw new NoSuchColumnException("No such column of interest in file "+meta.getFilename()+": "+pColumnName);
+    }
+
+    private Map<String,String> toMap(String[] pRow) {
+        LinkedHashMap<String,String> row = new LinkedHashMap<String,String>(columnsOfInterest.length);
+        for (int i=0; i<columnsOfInterest.length; i++) {
+            row.put(meta.getColumnName(columnsOfInterest[i]), pRow[i]);
+        }
+        return row;
+    }
+
+    /**
+     * @return file positions b_0..b_k, chunk i being [b_i, b_{i+1}); b_0 is
+     * the start of the first data line, and each other boundary except the
+     * last one (end of file) is the start of a row.
+     */
+    private long[] findChunkBounds(final FileChannel pChannel, ExecutorService pExecutor) throws IOException {
+        long fileSize = pChannel.size();
+        long dataStart = skipLine(pChannel, 0, false);
+        int numChunks = (int)Math.max(1, (fileSize - dataStart + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        // tentative, evenly spaced boundaries
+        final long[] tentative = new long[numChunks+1];
+        for (int i=0; i<=numChunks; i++) {
+            tentative[i] = dataStart + (fileSize - dataStart) * i / numChunks;
+        }
+
+        // whether each tentative boundary is inside quotes
+        boolean[] inQuotes = new boolean[numChunks+1];
+        if (quotedLineBreaks) {
+            List<Future<Long>> counts = new ArrayList<Future<Long>>();
+            for (int i=0; i<numChunks; i++) {
+                final int chunk = i;
+                counts.add(pExecutor.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return countQuotes(pChannel, tentative[chunk], tentative[chunk+1]);
+                    }
+                }));
+            }
+            for (int i=0; i<numChunks; i++) {
+                inQuotes[i+1] = inQuotes[i] ^ (ConcurrentUtils.getIO(counts.get(i)) % 2 == 1);
+            }
+        }
+
+        long[] result = new long[numChunks+1];
+        result[0] = dataStart;
+        result[numChunks] = fileSize;
+        for (int i=1; i<numChunks; i++) {
+            result[i] = Math.max(result[i-1], skipLine(pChannel, tentative[i], inQuotes[i]));
+        }
+        return result;
+    }
+
+    private static long countQuotes(FileChannel pChannel, long pStart, long pEnd) throws IOException {
+        MappedByteBuffer buf = pChannel.map(FileChannel.MapMode.READ_ONLY, pStart, pEnd - pStart);
+        long count = 0;
+        int limit = buf.limit();
+        for (int i=0; i<limit; i++) {
+            if (buf.get(i) == '"') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return position after the first line break (outside quotes, if
+     * quotedLineBreaks is set) at or after pPos, or end of file.
+     */
+    private long skipLine(FileChannel pChannel, long pPos, boolean pInQuotes) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 << 10);
+        long pos = pPos;
+        boolean inQuotes = pInQuotes;
+        while (true) {
+            buf.clear();
+            int n = pChannel.read(buf, pos);
+            if (n <= 0) {
+                return pChannel.size();
+            }
+            for (int i=0; i<n; i++) {
+                byte b = buf.get(i);
+                if (b == '"' && quotedLineBreaks) {
+                    inQuotes = !inQuotes;
+                }
+                else if (b == '\n' && !inQuotes) {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+    }
+
+    private static class ChunkResult {
+        /** Null when rows were delivered directly to a handler */
+        List<String[]> rows;
+        long numUnbalancedLines;
+    }
+
+    /** Parse rows from file positions [start, end) */
+    private class ChunkTask implements Callable<ChunkResult> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final RowHandler handler;
+
+        /** @param pHandler if null, collect rows into the result */
+        ChunkTask(FileChannel pChannel, long pStart, long pEnd, RowHandler pHandler) {
+            channel = pChannel;
+            start = pStart;
+            end = pEnd;
+            handler = pHandler;
+        }
+
+        public ChunkResult call() throws IOException, UnexpectedNumColumnsException {
+            ChunkResult result = new ChunkResult();
+            if (handler == null) {
+                result.rows = new ArrayList<String[]>();
+            }
+            if (end <= start) {
+                return result;
+            }
+
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int limit = buf.limit();
+            byte[] bytes = new byte[256];
+            int lineStart = 0;
+            int numQuotes = 0;
+            for (int i=0; i<=limit; i++) {
+                byte b = i < limit ? buf.get(i) : (byte)'\n';
+                if (b == '"') {
+                    numQuotes++;
+                }
+                else if (b == '\n' && (numQuotes % 2 == 0 || !quotedLineBreaks)) {
+                    if (i == limit && lineStart == limit) {
+                        // chunk ended with a line break
+                        break;
+                    }
+                    if (numQuotes % 2 == 1) {
+                        result.numUnbalancedLines++;
+                    }
+                    int lineEnd = i;
+                    if (lineEnd > lineStart && buf.get(lineEnd-1) == '\r') {
+                        lineEnd--;
+                    }
+                    int len = lineEnd - lineStart;
+                    if (bytes.length < len) {
+                        bytes = new byte[Math.max(len, bytes.length*2)];
+                    }
+                    for (int k=0; k<len; k++) {
+                        bytes[k] = buf.get(lineStart+k);
+                    }
+                    String[] row = parse(new String(bytes, 0, len, charset));
+                    if (handler != null) {
+                        handler.handle(row);
+                    }
+                    else {
+                        result.rows.add(row);
+                    }
+                    lineStart = i+1;
+                    numQuotes = 0;
+                }
+            }
+            return result;
+        }
+    }
+
+    /** Split a line and project it to the columns of interest, checking the number of columns as CSVFileReader does */
+    private String[] parse(String pLine) throws UnexpectedNumColumnsException {
+        String[] all = new String[meta.getNumCols()];
+        meta.getColumnSeparator().split(pLine, all);
+        String[] result = new String[columnsOfInterest.length];
+        for (int i=0; i<result.length; i++) {
+            result[i] = all[columnsOfInterest[i]];
+        }
+        return result;
+    }
+
+    /**
+     * Output projection of the file to columns given as args, in the original
+     * order, as in {@link CSVFileReader#main(String[])}. The first arg is the number
+     * of threads.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ParallelCSVFileReader <numthreads> <file> [columns...]");
+            System.exit(1);
+            return;
+        }
+        List<String> argsList = Arrays.asList(args);
+        List<String> columns = argsList.size() > 2 ? argsList.subList(2, argsList.size()) : null;
+        ParallelCSVFileReader reader = new ParallelCSVFileReader(args[1], null, columns, Integer.parseInt(args[0]));
+        final String separator = reader.meta.getColumnSeparator().getPrintableValue();
+        util.IOUtils.setFastStdout();
+        reader.read(new RowHandler() {
+            public void handle(String[] pRow) {
+                StringBuffer buf = new StringBuffer();
+                for (int i=0; i<pRow.length; i++) {
+                    if (i > 0) {
+                        buf.append(separator);
+                    }
+                    buf.append(pRow[i]);
+                }
+                System.out.println(buf);
+            }
+        }, true);
+        System.out.flush();
+    }
+}
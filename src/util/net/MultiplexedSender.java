@@ -0,0 +1,385 @@
+package util.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.dbg.DevNullLogger;
+import util.dbg.ILogger;
+
+/**
+ * A shared sender engine: instead of one thread per connection (as with
+ * {@link NonBlockingSender}), a few selector threads serve any number of
+ * connections. Each connection has its own outbound queue; messages are written
+ * (by gathering writes) whenever the channel is writable, without ever blocking a
+ * selector thread on one slow peer.
+ *
+ * Connections are registered as {@link SocketChannel}s, which are switched to
+ * non-blocking mode; thus they cannot also be read through the streams of their socket
+ * (read them through the channel instead, e.g. with a selector of their own).
+ *
+ * As with NonBlockingSender, {@link Connection#requestStop()} asks for the messages
+ * sent so far to be written, after which {@link NonBlockingSender.Listener#senderFinished()}
+ * is called; it is also called if writing fails, or if the engine is closed. The
+ * channel is not closed; that is to be done by the caller, after the notification.
+ * Listeners are called from a selector thread, and should return quickly.
+ */
+public class MultiplexedSender {
+
+    /** Most buffers to pass to one gathering write */
+    private static final int MAX_GATHER = 64;
+
+    /** Special "message" that is used to stop a connection */
+    private static final ByteBuffer POISON = ByteBuffer.allocate(0);
+
+    private ILogger log;
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param numThreads number of selector threads; non-positive means 1
+     * @param log null means no logging
+     */
+    public MultiplexedSender(int numThreads, ILogger log) throws IOException {
+        this.log = log != null ? log : DevNullLogger.SINGLETON;
+        this.loops = new Loop[Math.max(numThreads, 1)];
+        for (int i=0; i<loops.length; i++) {
+            loops[i] = new Loop("MultiplexedSender-"+i);
+        }
+        for (Loop loop: loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Start serving channel, which must be connected. Listener should only close the
+     * channel after receiving a finished notification, so having the listener is mandatory.
+     */
+    public Connection register(SocketChannel channel, NonBlockingSender.Listener listener) throws IOException {
+        if (listener == null) {
+            throw new IOException("Null listener!");
+        }
+        if (closed) {
+            throw new IOException("Sender engine has been closed");
+        }
+        channel.configureBlocking(false);
+        Loop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        Connection connection = new Connection(channel, listener, loop);
+        loop.registrations.add(connection);
+        loop.selector.wakeup();
+        return connection;
+    }
+
+    /** @return number of connections not yet finished */
+    public int getNumConnections() {
+        int result = 0;
+        for (Loop loop: loops) {
+            result += loop.numConnections.get();
+        }
+        return result;
+    }
+
+    /**
+     * Stop all selector threads. Connections not yet finished are finished without
+     * writing their remaining messages.
+     */
+    public void close() {
+        closed = true;
+        for (Loop loop: loops) {
+            loop.selector.wakeup();
+        }
+        for (Loop loop: loops) {
+            try {
+                loop.thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** A connection served by the engine */
+    public class Connection {
+        private final SocketChannel channel;
+        private final NonBlockingSender.Listener listener;
+        private final Loop loop;
+        private String name;
+
+        /** Messages not yet taken by the selector thread */
+        private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+        /** Messages taken by the selector thread, the first one possibly partially written */
+        private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<ByteBuffer>();
+        /** True if the connection is waiting for its selector thread to write (or to wait for writability) */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private SelectionKey key;
+
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private volatile boolean stopRequested;
+        private volatile boolean stopped;
+        // null if stopped cleanly because of being requested by calling {@link #requestStop()}
+        private volatile Exception stopCause;
+
+        private Connection(SocketChannel channel, NonBlockingSender.Listener listener, Loop loop) {
+            this.channel = channel;
+            this.listener = listener;
+            this.loop = loop;
+            this.name = "MultiplexedSender-"+channel.socket().getRemoteSocketAddress();
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        /**
+         * Put message to queue of messages to be sent and return immediately.
+         *
+         * @throws IOException if stopping has been requested, or the connection has been stopped
+         * (the cause, if any, is stored to the IOException)
+         */
+        public void send(byte[] msg) throws IOException {
+            if (stopRequested || stopped) {
+                throw new IOException("Sender has been stopped", stopCause);
+            }
+            queuedBytes.addAndGet(msg.length);
+            enqueue(ByteBuffer.wrap(msg));
+        }
+
+        /**
+         * Ask for the messages sent so far to be written, after which the listener is notified.
+         * Any further attempts to send will raise IOExceptions.
+         */
+        public void requestStop() {
+            if (!stopRequested) {
+                stopRequested = true;
+                enqueue(POISON);
+            }
+        }
+
+        private void enqueue(ByteBuffer pBuffer) {
+            queue.add(pBuffer);
+            if (scheduled.compareAndSet(false, true)) {
+                loop.ready.add(this);
+                loop.selector.wakeup();
+            }
+        }
+
+        public boolean isStopped() {
+            return stopped;
+        }
+
+        /** @return null if stopped cleanly, or not stopped */
+        public Exception getStopCause() {
+            return stopCause;
+        }
+
+        /** @return bytes sent but not yet written */
+        public long getQueuedBytes() {
+            return queuedBytes.get();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        /**
+         * Write as much as possible without blocking. Called by the selector thread only.
+         * @return true if there is more to write (i.e., the channel is not writable now)
+         */
+        private boolean write() throws IOException {
+            ByteBuffer[] buffers = new ByteBuffer[MAX_GATHER];
+            while (true) {
+                // refill in-flight messages from the queue
+                while (inFlight.size() < MAX_GATHER) {
+                    ByteBuffer next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    inFlight.add(next);
+                }
+                if (inFlight.isEmpty()) {
+                    return false;
+                }
+                if (inFlight.peekFirst() == POISON) {
+                    loop.finish(this, null);
+                    return false;
+                }
+
+                int n = 0;
+                for (ByteBuffer b: inFlight) {
+                    if (b == POISON || n == MAX_GATHER) {
+                        break;
+                    }
+                    buffers[n++] = b;
+                }
+                long written = channel.write(buffers, 0, n);
+                bytesSent.addAndGet(written);
+                queuedBytes.addAndGet(-written);
+                while (!inFlight.isEmpty() && inFlight.peekFirst() != POISON && !inFlight.peekFirst().hasRemaining()) {
+                    inFlight.removeFirst();
+                }
+                if (!inFlight.isEmpty() && inFlight.peekFirst().hasRemaining()) {
+                    // partially written: the socket buffer is full
+                    return true;
+                }
+            }
+        }
+    }
+
+    /** A selector thread, with its connections */
+    private class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final ConcurrentLinkedQueue<Connection> registrations = new ConcurrentLinkedQueue<Connection>();
+        /** Connections having something to write */
+        final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+        final AtomicInteger numConnections = new AtomicInteger();
+
+        Loop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    registerPending();
+                    Connection c;
+                    while ((c = ready.poll()) != null) {
+                        if (c.key == null) {
+                            // registered after registerPending() above, but before the send
+                            registerPending();
+                        }
+                        process(c);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isWritable()) {
+                            process((Connection)key.attachment());
+                        }
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.error(thread.getName()+": selector failed, giving up", e);
+            }
+            catch (RuntimeException e) {
+                log.error(thread.getName()+": unexpected error, giving up", e);
+            }
+            finally {
+                shutdown();
+            }
+        }
+
+        private void registerPending() {
+            Connection c;
+            while ((c = registrations.poll()) != null) {
+                numConnections.incrementAndGet();
+                try {
+                    c.key = c.channel.register(selector, 0, c);
+                }
+                catch (IOException e) {
+                    error(c, "Failed registering channel", e);
+                    finish(c, e);
+                }
+            }
+        }
+
+        /** Write what can be written, and wait for writability if needed */
+        private void process(Connection c) {
+            if (c.stopped) {
+                return;
+            }
+            try {
+                if (c.write()) {
+                    // wait for the channel to become writable; stays scheduled
+                    c.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (c.stopped) {
+                    return;
+                }
+                c.key.interestOps(0);
+                c.scheduled.set(false);
+                // a message may have been added after the queue was found empty
+                if (!c.queue.isEmpty() && c.scheduled.compareAndSet(false, true)) {
+                    ready.add(c);
+                }
+            }
+            catch (IOException e) {
+                error(c, "Failed writing, giving up", e);
+                finish(c, e);
+            }
+            catch (CancelledKeyException e) {
+                finish(c, new IOException("Channel closed", e));
+            }
+        }
+
+        void finish(Connection c, Exception cause) {
+            if (c.stopped) {
+                return;
+            }
+            c.stopCause = cause;
+            c.stopped = true;
+            if (c.key != null) {
+                c.key.cancel();
+            }
+            c.inFlight.clear();
+            c.queue.clear();
+            numConnections.decrementAndGet();
+            log.dbg(c.name+": finished");
+            try {
+                c.listener.senderFinished();
+            }
+            catch (RuntimeException e) {
+                log.error(c.name+": listener failed", e);
+            }
+        }
+
+        private void shutdown() {
+            List<Connection> remaining = new ArrayList<Connection>();
+            for (SelectionKey key: selector.keys()) {
+                remaining.add((Connection)key.attachment());
+            }
+            Connection c;
+            while ((c = registrations.poll()) != null) {
+                numConnections.incrementAndGet();
+                remaining.add(c);
+            }
+            for (Connection connection: remaining) {
+                finish(connection, new IOException("Sender engine closed"));
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                log.error(thread.getName()+": failed closing selector", e);
+            }
+        }
+
+        private void error(Connection c, String msg, Exception e) {
+            log.error(c.name+": "+msg, e);
+        }
+    }
+}
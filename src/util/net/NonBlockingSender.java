@@ -3,8 +3,13 @@ package util.net;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import util.IOUtils;
 import util.dbg.DevNullLogger;
@@ -15,6 +20,15 @@ import util.dbg.ILogger;
  * stream of socket after exiting main loop (caller should not close socket until being notified about this!).
  * Also, output stream of socket should not be used by other threads while the sender thread is running.
  * Does not close the output stream, that is to be done by the caller. 
+ * 
+ * By default, packets are written one at a time, and the queue is unbounded. With {@link Options},
+ * the sender can instead drain all queued packets on each wakeup and write them at once: 
+ * with a single gathering write, if the socket has a channel (i.e. was created by a 
+ * {@link SocketChannel}) and the packets are large, and otherwise by copying them 
+ * into one buffer. Flushes requested
+ * by the packets of a batch are coalesced into one flush after the batch. The queue can also
+ * be bounded by the total number of bytes queued, with senders then blocking, 
+ * timing out or being rejected when it is full (see {@link OverflowPolicy}).
  */
 public class NonBlockingSender {
 
@@ -28,10 +42,67 @@ public class NonBlockingSender {
     private OutputStream os;    
     private Thread senderThread;    
     private BlockingQueue<Packet> messageQueue;
-    private boolean stopped;
+    private volatile boolean stopped;
     // null if stopped cleanly because of being requested by calling {@link #stop()} 
     private Exception stopCause;
     
+    /** 
+     * Smallest average packet size for gathering writes; smaller packets are cheaper to copy 
+     * into one buffer than to pass to the kernel one by one (gathering writes are split 
+     * into chunks of at most IOV_MAX, typically 1024, buffers). 
+     */
+    private static final int MIN_GATHER_PACKET_SIZE = 1024;
+    
+    private Options options;
+    /** Null if the socket has no channel */
+    private SocketChannel channel;
+    
+    /** Guards queuedBytes; notified when bytes have been sent, or when stopped */ 
+    private final Object capacityLock = new Object();
+    private long queuedBytes;
+    
+    private final long startTime = System.nanoTime();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private volatile long maxWriteNanos;
+    
+    /** What {@link #send(byte[], boolean)} does when the queue is full */
+    public enum OverflowPolicy {
+        /** Wait until there is room */
+        BLOCK,
+        /** Wait until there is room, at most {@link Options#timeoutMillis}, then throw a {@link QueueFullException} */
+        TIMEOUT,
+        /** Throw a {@link QueueFullException} immediately */
+        REJECT;
+    }
+    
+    /** Thrown by send when the queue is full (and remains so for the timeout, if any) */
+    public static class QueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public QueueFullException(String msg) {
+            super(msg);
+        }
+    }
+    
+    public static class Options {
+        /** Write all queued packets at once on each wakeup */
+        public boolean batched = true;
+        /** Most bytes to write at once in batched mode (at least one packet is written) */ 
+        public int maxBatchBytes = 1 << 20;
+        /** 
+         * Most bytes that may be queued; a larger packet is only accepted when the 
+         * queue is empty 
+         */
+        public long maxQueuedBytes = Long.MAX_VALUE;
+        public OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+        /** For OverflowPolicy.TIMEOUT */
+        public long timeoutMillis = 1000;
+    }
+    
     public void setName(String name) {
         this.name = name; 
     }       
@@ -49,6 +120,16 @@ public class NonBlockingSender {
      * so having the listener is mandatory. 
      */
     public NonBlockingSender(Socket socket, Listener listener, ILogger log) throws IOException {
+        this(socket, listener, log, null);
+    }
+    
+    /** 
+     * Listener should only close output stream of socket after receiving a finished notification,
+     * so having the listener is mandatory.
+     * 
+     * @param options null means to write packets one at a time, with an unbounded queue
+     */
+    public NonBlockingSender(Socket socket, Listener listener, ILogger log, Options options) throws IOException {
         if (listener == null) {
             throw new IOException("Null listener!");
         }
@@ -65,6 +146,8 @@ public class NonBlockingSender {
         this.stopped = false;        
         this.messageQueue = new LinkedBlockingQueue<Packet>();
         this.os = socket.getOutputStream();    
+        this.options = options;
+        this.channel = socket.getChannel();
                           
         // Create sender and receiver threads responsible for performing the I/O.
         log("Creating sender thread");
@@ -84,6 +167,57 @@ public class NonBlockingSender {
         }
     }
     
+    /** 
+     * Wait until the queue has room for pLength bytes, and reserve it, as by the overflow policy.
+     * A packet larger than the capacity is accepted when the queue is empty.
+     */
+    private void reserve(int pLength) throws IOException {
+        if (options == null || options.maxQueuedBytes == Long.MAX_VALUE) {
+            synchronized (capacityLock) {
+                queuedBytes += pLength;
+            }
+            return;
+        }
+        synchronized (capacityLock) {
+            long deadline = System.currentTimeMillis() + options.timeoutMillis;
+            while (queuedBytes > 0 && queuedBytes + pLength > options.maxQueuedBytes) {
+                if (stopped) {
+                    throw new IOException("Sender thread has been stopped", stopCause);
+                }
+                long wait = 0;
+                if (options.overflowPolicy == OverflowPolicy.REJECT) {
+                    wait = -1;
+                }
+                else if (options.overflowPolicy == OverflowPolicy.TIMEOUT) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        wait = -1;
+                    }
+                }
+                if (wait < 0) {
+                    rejected.incrementAndGet();
+                    throw new QueueFullException(name+": queue full ("+queuedBytes+" bytes queued), cannot send "+
+                                                 pLength+" bytes");
+                }
+                try {
+                    capacityLock.wait(wait);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for room in the queue", e);
+                }
+            }
+            queuedBytes += pLength;
+        }
+    }
+    
+    private void release(long pLength) {
+        synchronized (capacityLock) {
+            queuedBytes -= pLength;
+            capacityLock.notifyAll();
+        }
+    }
+    
     public synchronized void sendNullByte() throws IOException {
         byte[] msg = new byte[1];
         msg[0] = '\0';
@@ -97,7 +231,7 @@ public class NonBlockingSender {
     
     /** 
      * Put message to queue of messages to be sent and return immediately
-     * (assume queue has unlimited capacity).
+     * (if the queue is bounded and full, act as by the overflow policy).
      *
      * @param flush should a flush be done right after writing this packet (a logical packet boundary)
      * 
@@ -112,6 +246,7 @@ public class NonBlockingSender {
             throw new IOException("Sender thread has been stopped", stopCause);
         }
         
+        reserve(msg.length);
         try {
             messageQueue.put(new Packet(msg, flush));
         }
@@ -125,6 +260,10 @@ public class NonBlockingSender {
     }    
     
     private void mainLoop() {
+        if (options != null && options.batched) {
+            batchedMainLoop();
+            return;
+        }
 
         while (!stopped) {
             try {
@@ -136,12 +275,14 @@ public class NonBlockingSender {
                 }
                 try {
                     dbg("Writing a message of "+msg.bytes.length+" bytes");
+                    long start = System.nanoTime();
                     IOUtils.writeBytes(os, msg.bytes);
                     dbg("Wrote "+msg.bytes.length+" bytes");
                     if (msg.flush) {
                         os.flush();
                         dbg("Flushed outgoing socket");
                     }
+                    sent(1, msg.bytes.length, System.nanoTime()-start);
                     
                 } catch (IOException e) {
                     error("Failed writing, giving up", e);                    
@@ -157,9 +298,143 @@ public class NonBlockingSender {
             }
         }
         
+        finish();
+    }
+    
+    private void finish() {
         dbg("Ended main loop");
+        synchronized (capacityLock) {
+            capacityLock.notifyAll();
+        }
         listener.senderFinished();
     }
+    
+    /** Drain all available packets on each wakeup, and write them at once */
+    private void batchedMainLoop() {
+        List<Packet> batch = new ArrayList<Packet>();
+        byte[] buffer = new byte[0];
+        
+        while (!stopped) {
+            batch.clear();
+            try {
+                Packet msg = messageQueue.take(); // Will block until a message is available.
+                long numBytes = 0;
+                boolean flush = false;
+                while (msg != null) {
+                    if (msg == POISON) {
+                        dbg("Received stop request");
+                        stopped = true;
+                        break;
+                    }
+                    batch.add(msg);
+                    numBytes += msg.bytes.length;
+                    flush |= msg.flush;
+                    if (numBytes >= options.maxBatchBytes) {
+                        break;
+                    }
+                    msg = messageQueue.poll();
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                
+                try {
+                    dbg("Writing "+batch.size()+" messages of "+numBytes+" bytes");
+                    long start = System.nanoTime();
+                    if (channel != null && numBytes >= MIN_GATHER_PACKET_SIZE * batch.size()) {
+                        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                        for (int i=0; i<buffers.length; i++) {
+                            buffers[i] = ByteBuffer.wrap(batch.get(i).bytes);
+                        }
+                        long remaining = numBytes;
+                        while (remaining > 0) {
+                            remaining -= channel.write(buffers);
+                        }
+                    }
+                    else {
+                        if (buffer.length < numBytes) {
+                            buffer = new byte[(int)Math.max(numBytes, 2L*buffer.length)];
+                        }
+                        int pos = 0;
+                        for (Packet p: batch) {
+                            System.arraycopy(p.bytes, 0, buffer, pos, p.bytes.length);
+                            pos += p.bytes.length;
+                        }
+                        os.write(buffer, 0, pos);
+                    }
+                    if (flush) {
+                        os.flush();
+                    }
+                    sent(batch.size(), numBytes, System.nanoTime()-start);
+                    release(numBytes);
+                }
+                catch (IOException e) {
+                    error("Failed writing, giving up", e);                    
+                    stopped = true;
+                    stopCause = e;
+                }
+            }
+            catch (InterruptedException e) {
+                error("NonBlockingSender main loop interrupted, giving up", e);
+                stopped = true;
+                stopCause = e;
+            }
+        }
+        
+        finish();
+    }
+    
+    private void sent(int pNumPackets, long pNumBytes, long pWriteNanos) {
+        packetsSent.addAndGet(pNumPackets);
+        bytesSent.addAndGet(pNumBytes);
+        batchesSent.incrementAndGet();
+        totalWriteNanos.addAndGet(pWriteNanos);
+        if (pWriteNanos > maxWriteNanos) {
+            maxWriteNanos = pWriteNanos;
+        }
+        if (options == null || !options.batched) {
+            release(pNumBytes);
+        }
+    }
+    
+    /** Snapshot of the sender's statistics */
+    public static class Metrics {
+        public int queuedPackets;
+        public long queuedBytes;
+        public long packetsSent;
+        public long bytesSent;
+        /** Number of writes; in batched mode, a write may contain several packets */
+        public long writes;
+        /** Number of packets rejected due to a full queue */
+        public long rejected;
+        /** Average since the sender was created */
+        public double bytesPerSecond;
+        public double meanWriteLatencyNanos;
+        public long maxWriteLatencyNanos;
+        
+        public String toString() {
+            return "queued="+queuedPackets+" packets/"+queuedBytes+" bytes, sent="+packetsSent+" packets/"+
+                   bytesSent+" bytes in "+writes+" writes, rejected="+rejected+", bytes/s="+(long)bytesPerSecond+
+                   ", write latency mean="+(long)meanWriteLatencyNanos+"ns, max="+maxWriteLatencyNanos+"ns";
+        }
+    }
+    
+    public Metrics getMetrics() {
+        Metrics m = new Metrics();
+        m.queuedPackets = messageQueue.size();
+        synchronized (capacityLock) {
+            m.queuedBytes = queuedBytes;
+        }
+        m.packetsSent = packetsSent.get();
+        m.bytesSent = bytesSent.get();
+        m.writes = batchesSent.get();
+        m.rejected = rejected.get();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        m.bytesPerSecond = seconds > 0 ? m.bytesSent / seconds : 0;
+        m.meanWriteLatencyNanos = m.writes > 0 ? (double)totalWriteNanos.get() / m.writes : 0;
+        m.maxWriteLatencyNanos = maxWriteNanos;
+        return m;
+    }
         
     public String toString() {
         return name;
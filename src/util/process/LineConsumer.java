@@ -0,0 +1,7 @@
+package util.process;
+
+/** Receives the output lines of a process as they are read */
+public interface LineConsumer {
+
+    public void accept(String pLine);
+}
@@ -11,17 +11,37 @@ public class ProcessOutput {
     private String[] stderrlines;
     private int exitValue;
     private Process process;
+    private long numStdoutLines;
+    private long numStderrLines;
     
     public ProcessOutput(String cmd,
                          String[] stdoutlines,
                          String[] stderrlines,
                          int exitValue,
                          Process process)  {
+        this(cmd, stdoutlines, stderrlines, exitValue, process, 
+             stdoutlines != null ? stdoutlines.length : 0, 
+             stderrlines != null ? stderrlines.length : 0);
+    }
+    
+    /** 
+     * @param numStdoutLines, numStderrLines total number of lines output, which may be more 
+     * than the number of lines retained (the last ones) in stdoutlines and stderrlines 
+     */
+    public ProcessOutput(String cmd,
+                         String[] stdoutlines,
+                         String[] stderrlines,
+                         int exitValue,
+                         Process process,
+                         long numStdoutLines,
+                         long numStderrLines)  {
         this.cmd = cmd;
         this.stdoutlines = stdoutlines;
         this.stderrlines = stderrlines;    
         this.exitValue = exitValue;
         this.process = process;        
+        this.numStdoutLines = numStdoutLines;
+        this.numStderrLines = numStderrLines;
     }
     
     public int getExitValue() {
@@ -44,6 +64,16 @@ public class ProcessOutput {
         return Strings.format(stdoutlines, "\n");
     }
     
+    /** @return total number of lines output to stdout, including those not retained */
+    public long getNumStdOutLines() {
+        return numStdoutLines;
+    }
+    
+    /** @return total number of lines output to stderr, including those not retained */
+    public long getNumStdErrLines() {
+        return numStderrLines;
+    }
+    
     public List<String> getStdOutAslist() {
         return Arrays.asList(stdoutlines);
     }
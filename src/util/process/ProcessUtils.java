@@ -8,8 +8,13 @@ import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import util.CollectionUtils;
+import util.ConcurrentUtils;
 import util.ConversionUtils;
 import util.IOUtils;
 import util.StringUtils;
@@ -19,6 +24,25 @@ import util.dbg.Logger;
 
 /** Developer likes executing executables. */
 public class ProcessUtils {
+    
+    /** 
+     * Number of last lines retained in ProcessOutput by default, when output is
+     * streamed to a consumer (see {@link Executor#outConsumer}) 
+     */
+    public static final int DEFAULT_STREAMING_TAIL_LINES = 1000;
+    
+    /** 
+     * Shared threads for reading the output streams of processes, instead of 
+     * creating two new threads for each executed process. 
+     * 
+     * The pool is deliberately unbounded: each running process needs its two readers
+     * for as long as it runs (a bounded pool could deadlock processes waiting for their
+     * output to be read), so there are up to two threads per concurrently running process. 
+     * Idle threads die after a minute. The threads are daemons, so the pool never keeps 
+     * the JVM alive.
+     */
+    private static final ExecutorService READER_POOL = 
+        Executors.newCachedThreadPool(ConcurrentUtils.daemonThreadFactory("ProcessUtils-reader"));
                   
     /** 
      * Execute a command using java's standard system command utility.
@@ -120,6 +144,11 @@ public class ProcessUtils {
         private boolean logCommand = true;
         private boolean timing = true;
         private boolean bash;        
+        private LineConsumer outConsumer;
+        private LineConsumer errConsumer;
+        private int tailLines = -1;
+        private File outFile;
+        private File errFile;
         
         /** Command must be a simple command splittable into arguments simply by delimited white space. Quoted arguments wont work */
         public Executor simpleCommand(String command) {
@@ -156,6 +185,11 @@ public class ProcessUtils {
             copy.processOwner = processOwner;
             copy.logCommand = logCommand;
             copy.timing = timing;
+            copy.outConsumer = outConsumer;
+            copy.errConsumer = errConsumer;
+            copy.tailLines = tailLines;
+            copy.outFile = outFile;
+            copy.errFile = errFile;
             
             return copy;
         }
@@ -191,6 +225,52 @@ public class ProcessUtils {
             return this;
         }
         
+        /** 
+         * Deliver stdout lines to consumer as they are read (from a reader thread). 
+         * Unless {@link #tailLines} is set, only the last {@link #DEFAULT_STREAMING_TAIL_LINES} 
+         * lines are then retained in the ProcessOutput. 
+         * If the consumer throws an exception, the rest of the output is read without passing it
+         * to the consumer, and the exception is rethrown by {@link #exec()} once the process has exited.
+         */
+        public Executor outConsumer(LineConsumer consumer) {
+            this.outConsumer = consumer;
+            return this;
+        }
+        
+        /** As {@link #outConsumer}, for stderr */
+        public Executor errConsumer(LineConsumer consumer) {
+            this.errConsumer = consumer;
+            return this;
+        }
+        
+        /** Retain only the last n lines of stdout and of stderr in the ProcessOutput; negative means all */
+        public Executor tailLines(int n) {
+            this.tailLines = n;
+            return this;
+        }
+        
+        /** 
+         * Write stdout directly to file (by the operating system, without passing
+         * through this process); the ProcessOutput will then have no stdout lines.  
+         */
+        public Executor outFile(File file) {
+            this.outFile = file;
+            return this;
+        }
+        
+        /** As {@link #outFile}, for stderr */
+        public Executor errFile(File file) {
+            this.errFile = file;
+            return this;
+        }
+        
+        private int retainedLines(LineConsumer consumer) {
+            if (tailLines >= 0) {
+                return tailLines;
+            }
+            return consumer != null ? DEFAULT_STREAMING_TAIL_LINES : -1;
+        }
+        
         public ProcessOutput exec() throws IOException {
             if (bash) {
                 return ProcessUtils.bash(this);
@@ -220,7 +300,14 @@ public class ProcessUtils {
             }
         }        
 
-        Process proc = Runtime.getRuntime().exec(args.commandArray, null, dir);        
+        ProcessBuilder builder = new ProcessBuilder(args.commandArray).directory(dir);
+        if (args.outFile != null) {
+            builder.redirectOutput(args.outFile);
+        }
+        if (args.errFile != null) {
+            builder.redirectError(args.errFile);
+        }
+        Process proc = builder.start();        
 
         if (args.processOwner != null) {
             args.processOwner.registerExternalProcess(proc, cmdAsString);
@@ -235,14 +322,14 @@ public class ProcessUtils {
         inStream.close();
         // out streams shall be closed by their respective readers...
                
-        RunnableStreamReader stdoutReader = new RunnableStreamReader(outStream, args.outputStreamListener);
-        RunnableStreamReader stderrReader = new RunnableStreamReader(errStream, args.errorStreamListener);
+        // (streams redirected to files just give end of file)
+        RunnableStreamReader stdoutReader = new RunnableStreamReader(outStream, args.outputStreamListener, 
+                                                                     args.outConsumer, args.retainedLines(args.outConsumer));
+        RunnableStreamReader stderrReader = new RunnableStreamReader(errStream, args.errorStreamListener,
+                                                                     args.errConsumer, args.retainedLines(args.errConsumer));
 
-        Thread stdOutReaderThread = new Thread(stdoutReader);
-        Thread stdErrReaderThread = new Thread(stderrReader);
-
-        stdOutReaderThread.start();
-        stdErrReaderThread.start();
+        Future<?> stdoutFuture = READER_POOL.submit(stdoutReader);
+        Future<?> stderrFuture = READER_POOL.submit(stderrReader);
 
         try {
             if (args.timing) {
@@ -252,8 +339,8 @@ public class ProcessUtils {
                 debug("Executing command line: " + cmdAsString);
             }
             
-            stdOutReaderThread.join();
-            stdErrReaderThread.join();
+            join(stdoutFuture);
+            join(stderrFuture);
             String[] outlist = stdoutReader.getResult();
             String[] errlist = stderrReader.getResult();
 
@@ -261,8 +348,12 @@ public class ProcessUtils {
             // have joined with the reader streams should already guarantee this)
             proc.waitFor();
             
+            rethrowFailure(stdoutReader, "stdout", cmdAsString);
+            rethrowFailure(stderrReader, "stderr", cmdAsString);
+            
             // all seems to have went well, return output of process
-            return new ProcessOutput(cmdAsString, outlist, errlist, proc.exitValue(), proc);
+            return new ProcessOutput(cmdAsString, outlist, errlist, proc.exitValue(), proc,
+                                     stdoutReader.getNumLines(), stderrReader.getNumLines());
         }
         catch (InterruptedException e) {
             info("interrupted while executing command: "+cmdAsString);
@@ -360,6 +451,34 @@ public class ProcessUtils {
     }
  
     
+    /** 
+     * Wait for a reader to finish; its failures have already been reported by the reader.
+     * Anything else thrown by the task is rethrown as such if it is a RuntimeException or
+     * an Error.
+     */
+    private static void join(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        }
+        catch (ExecutionException e) {
+            throw ConcurrentUtils.throwUnchecked(e.getCause());
+        }
+    }
+    
+    /** 
+     * Rethrow an exception thrown by the line consumer of a reader (as such), or by reading 
+     * the stream (as an IOException)
+     */
+    private static void rethrowFailure(RunnableStreamReader reader, String streamName, String cmd) throws IOException {
+        Exception failure = reader.getFailure();
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        }
+        else if (failure != null) {
+            throw new IOException("Failed reading "+streamName+" of command: "+cmd, failure);
+        }
+    }
+    
     private static void info(String msg) {        
         Logger.info(msg);
     }       
@@ -5,63 +5,121 @@ import java.util.*;
 import java.util.regex.*;
 
 class RunnableStreamReader implements Runnable {
-        private InputStream mInputStream;                  
+        private InputStream mInputStream;
         private String[] mResult;
         private StreamListener mListener;
-        private Pattern[] mListenerPatterns;               
-        
-        RunnableStreamReader(InputStream pInStream, 
+        private Matcher[] mListenerMatchers;
+        private LineConsumer mConsumer;
+        /** Retain at most this many last lines; negative means all */
+        private int mMaxRetainedLines;
+        private long mNumLines;
+        /** First exception thrown by the consumer, or by reading the stream */
+        private Exception mFailure;
+
+        RunnableStreamReader(InputStream pInStream,
                              StreamListener pListener) {
-                       
+            this(pInStream, pListener, null, -1);
+        }
+
+        /**
+         * @param pConsumer receives each line as it is read; may be null
+         * @param pMaxRetainedLines retain only this many last lines for {@link #getResult()};
+         *   negative means all lines
+         */
+        RunnableStreamReader(InputStream pInStream,
+                             StreamListener pListener,
+                             LineConsumer pConsumer,
+                             int pMaxRetainedLines) {
+
             mInputStream = pInStream;
-            
+            mConsumer = pConsumer;
+            mMaxRetainedLines = pMaxRetainedLines;
+
             if (pListener != null) {
                 mListener = pListener;
                 String[] patternStrings = pListener.getRegularExpressions();
-                mListenerPatterns = new Pattern[patternStrings.length];
+                mListenerMatchers = new Matcher[patternStrings.length];
                 for (int i=0; i<patternStrings.length; i++) {
-                    mListenerPatterns[i] = Pattern.compile(patternStrings[i]);                        
-                }                
+                    mListenerMatchers[i] = Pattern.compile(patternStrings[i]).matcher("");
+                }
             }
         }
-                
+
         public void run() {
             BufferedReader reader = null;
+            // all lines, or a ring of the last mMaxRetainedLines lines
+            ArrayList<String> lines = new ArrayList<String>();
+            int ringPos = 0;
             try {
-                reader = new BufferedReader(new InputStreamReader(mInputStream));
-                LinkedList lines = new LinkedList();
-                String line = reader.readLine();                                
+                reader = new BufferedReader(new InputStreamReader(mInputStream), 1 << 16);
+                String line = reader.readLine();
                 while (line!=null) {
-                    lines.add(line);                    
+                    mNumLines++;
+                    if (mMaxRetainedLines < 0 || lines.size() < mMaxRetainedLines) {
+                        lines.add(line);
+                    }
+                    else if (mMaxRetainedLines > 0) {
+                        lines.set(ringPos, line);
+                        ringPos = (ringPos+1) % mMaxRetainedLines;
+                    }
+                    if (mConsumer != null) {
+                        try {
+                            mConsumer.accept(line);
+                        }
+                        catch (RuntimeException e) {
+                            // keep draining the stream, so that the process does not block on
+                            // a full pipe; the remaining lines are not passed to the consumer
+                            mFailure = e;
+                            mConsumer = null;
+                        }
+                    }
                     if (mListener != null) {
-                        for (int i=0; i<mListenerPatterns.length; i++) {
-                            Matcher m = mListenerPatterns[i].matcher(line);
+                        for (int i=0; i<mListenerMatchers.length; i++) {
+                            Matcher m = mListenerMatchers[i].reset(line);
                             if (m.matches()) {
                                 mListener.notify(line, i);
                             }
                         }
-                    }                    
-                    
-                    line = reader.readLine();                    
+                    }
+
+                    line = reader.readLine();
                 }
                 reader.close();
-                mResult = (String[])lines.toArray(new String[lines.size()]);
-            }     
+            }
             catch (Exception e) {
                 e.printStackTrace();
+                if (mFailure == null) {
+                    mFailure = e;
+                }
                 if (reader != null) {
                     try {
-                        reader.close();                    
+                        reader.close();
                     }
                     catch (Exception fooE) {
                         // foo
-                    }                              
+                    }
                 }
             }
+            // oldest retained line first
+            Collections.rotate(lines, -ringPos);
+            mResult = lines.toArray(new String[lines.size()]);
         }
-        
+
         public String[] getResult() {
-            return mResult;    
+            return mResult;
         }
-                   
+
+        /**
+         * @return first exception thrown by the consumer (after which the rest of the stream
+         * was read without passing it to the consumer), or by reading the stream; null if none
+         */
+        public Exception getFailure() {
+            return mFailure;
+        }
+
+        /** @return number of lines read, including those not retained */
+        public long getNumLines() {
+            return mNumLines;
+        }
+
     }
@@ -0,0 +1,103 @@
+package util.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import util.net.NonBlockingSender;
+
+/**
+ * Loopback check of {@link NonBlockingSender}: sends packets through a socket connected
+ * to a ServerSocketChannel on 127.0.0.1, and checks that the receiving end gets exactly the
+ * bytes sent, in order. Run for each way of writing: one packet at a time, batches copied
+ * into one buffer (small packets), and gathering writes (large packets).
+ */
+public class NonBlockingSenderTest {
+
+    public static void main(String[] args) throws Exception {
+        run("unbatched", null, 1000, 100);
+
+        NonBlockingSender.Options batched = new NonBlockingSender.Options();
+        run("batched, copying", batched, 10000, 100);
+        run("batched, gathering", batched, 200, 10000);
+
+        NonBlockingSender.Options bounded = new NonBlockingSender.Options();
+        bounded.maxQueuedBytes = 50000;
+        run("batched, bounded queue", bounded, 1000, 5000);
+
+        System.out.println("All OK");
+    }
+
+    private static void run(String name, NonBlockingSender.Options options, int numPackets, int maxPacketSize)
+            throws Exception {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        final Socket received = server.accept().socket();
+
+        // read everything until EOF in a separate thread, so that the sender never blocks forever
+        final ByteArrayOutputStream receivedBytes = new ByteArrayOutputStream();
+        final IOException[] readError = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    InputStream is = received.getInputStream();
+                    byte[] buf = new byte[8192];
+                    int n;
+                    while ((n = is.read(buf)) != -1) {
+                        receivedBytes.write(buf, 0, n);
+                    }
+                }
+                catch (IOException e) {
+                    readError[0] = e;
+                }
+            }
+        });
+        reader.start();
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        NonBlockingSender sender = new NonBlockingSender(client.socket(), new NonBlockingSender.Listener() {
+            public void senderFinished() {
+                finished.countDown();
+            }
+        }, null, options);
+
+        Random random = new Random(numPackets);
+        ByteArrayOutputStream sentBytes = new ByteArrayOutputStream();
+        for (int i=0; i<numPackets; i++) {
+            byte[] packet = new byte[1+random.nextInt(maxPacketSize)];
+            random.nextBytes(packet);
+            sentBytes.write(packet);
+            sender.send(packet, i % 10 == 0);
+        }
+        sender.requestStop();
+        finished.await();
+
+        // the sender does not close the stream; that is up to us, once it has finished
+        client.shutdownOutput();
+        reader.join();
+        client.close();
+        received.close();
+        server.close();
+
+        if (readError[0] != null) {
+            throw new RuntimeException(name+": failed reading", readError[0]);
+        }
+        byte[] expected = sentBytes.toByteArray();
+        byte[] actual = receivedBytes.toByteArray();
+        if (!Arrays.equals(expected, actual)) {
+            throw new RuntimeException(name+": sent "+expected.length+" bytes, but received "+actual.length+
+                                       " bytes that differ");
+        }
+        System.out.println(name+": OK, "+actual.length+" bytes in "+numPackets+" packets; "+sender.getMetrics());
+    }
+}